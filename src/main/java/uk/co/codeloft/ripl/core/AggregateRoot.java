@@ -1,11 +1,13 @@
 package uk.co.codeloft.ripl.core;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.function.Consumer;
 
 /**
  * An instance of this class represents a hierarchy of entities that form an aggregate entity that has long-lived
@@ -17,7 +19,7 @@ public class AggregateRoot extends Entity {
     /**
      * The id of the snapshot that underpins this version of the aggregate.
      */
-    private final String snapshotId;
+    private EntityId snapshotId;
 
     /**
      * A reference to the event that caused the creation of this instance
@@ -25,10 +27,17 @@ public class AggregateRoot extends Entity {
     private final CreatedEvent<?, ?> createdEvent;
 
     /**
-     * A flat map of all descendents (regardless of where they are in the hiearchy)
+     * A flat index of all descendents (regardless of where they are in the hiearchy)
      */
-    private final Map<String, Entity> allDescendents;
+    @Getter(AccessLevel.NONE)
+    private DescendentIndex allDescendents;
 
+    /**
+     * The estimated heap occupied by the descendents themselves (see {@link Entity#estimateFootprint()}), kept up to
+     * date as they are added and changed, so that the footprint of a version can be estimated without visiting them
+     */
+    @Getter(AccessLevel.NONE)
+    private long descendentsFootprint;
 
     /**
      * The number of versions that should be allowed between physically stored snapshots
@@ -46,23 +55,186 @@ public class AggregateRoot extends Entity {
      * @param evt the event that caused instantiation
      */
     public AggregateRoot(CreatedEvent<?, ?> evt, int snapshotInterval) {
-        super(evt.getFactory(), UUID.randomUUID().toString());
-        this.snapshotId = UUID.randomUUID().toString();
+        super(evt.getFactory(), evt.getAggregateId());
+        this.snapshotId = this.getFactory().getIdGenerator().nextId();
         this.lsVersion = this.getVersion();
         this.createdEvent = evt;
-        this.allDescendents = new HashMap<>();
+        this.allDescendents = DescendentIndex.empty();
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Get the next version of this aggregate, in which a change has been applied to one of its entities
+     * @param entityId the id of the entity to change, which may be this aggregate root entity
+     * @param change the change, which is applied to a copy of the entity
+     * @return the next version
+     */
+    final AggregateRoot update(EntityId entityId, Consumer<Entity> change) {
+        AggregateRoot next = (AggregateRoot) this.copy();
+        Entity changed = entityId.equals(this.getId()) ? next : this.descendent(entityId).copy();
+
+        change.accept(changed);
+        next.propagate(changed);
+
+        return next;
+    }
+
+    /**
+     * Get the next version of this aggregate, in which a new child has been added to one of its entities
+     * @param parentId the id of the parent entity, which may be this aggregate root entity
+     * @param roleId the id of the role of the parent with which to associate the child
+     * @param child the new child
+     * @return the next version
+     */
+    final AggregateRoot addChild(EntityId parentId, int roleId, ChildEntity child) {
+        AggregateRoot next = (AggregateRoot) this.copy();
+        Entity parent = parentId.equals(this.getId()) ? next : this.descendent(parentId).copy();
+
+        parent.addChild(roleId, child);
+        child.createdIn(this.getVersion() + 1);
+        next.allDescendents = next.allDescendents.with(child);
+        next.descendentsFootprint += child.estimateFootprint();
+        next.propagate(parent);
+
+        return next;
+    }
+
+    /**
+     * Evolve a changed entity and each of its ancestors up to this (new) aggregate root entity, copying each ancestor
+     * in turn so that it holds the new version of its child.  The path is walked iteratively in a single pass, however
+     * deep it is; every entity on it is given the same update instant, and the new versions of the descendents on it
+     * are put in the index together at the end.
+     * @param changed the changed copy of an entity in this version
+     */
+    private void propagate(Entity changed) {
+        Instant now = this.getFactory().getClock().instant();
+        int rootVersion = this.getVersion() + 1;
+        List<ChildEntity> path = new ArrayList<>();
+        Entity current = changed;
+
+        while (current instanceof ChildEntity) {
+            ChildEntity child = (ChildEntity) current;
+            child.evolve(now, rootVersion);
+            path.add(child);
+            this.descendentsFootprint += child.estimateFootprint() - this.allDescendents.get(child.getId()).estimateFootprint();
+
+            Entity parent = child.getParentId().equals(this.getId())
+                    ? this
+                    : this.allDescendents.get(child.getParentId()).copy();
+            parent.replaceChild(child);
+            current = parent;
+        }
+
+        current.evolve(now, rootVersion);
+        this.allDescendents = this.allDescendents.replaceAll(path);
+    }
+
+    /**
+     * Get a snapshot of this version: a copy that records itself as the latest snapshot, under a new snapshot id
+     * @return the snapshot
+     */
+    final AggregateRoot asSnapshot() {
+        AggregateRoot snapshot = (AggregateRoot) this.copy();
+        snapshot.snapshotId = this.getFactory().getIdGenerator().nextId();
+        snapshot.lsVersion = snapshot.getVersion();
+        return snapshot;
+    }
+
+    /**
+     * Restore the snapshot details of a root entity that is being rebuilt from a stored snapshot.  The entity becomes
+     * its own last snapshot.
+     * @param snapshotId the id of the snapshot
+     * @param snapshotInterval the number of versions that should be allowed between snapshots
+     */
+    final void restoreSnapshot(EntityId snapshotId, int snapshotInterval) {
+        this.snapshotId = snapshotId;
         this.snapshotInterval = snapshotInterval;
+        this.lsVersion = this.getVersion();
+    }
 
-        // Special case - we put this AggregateRoot instance in its map of descendents
-        this.allDescendents.put(this.getId(), this);
+    /**
+     * Attach a descendent to a root entity that is being rebuilt from a stored snapshot.  Nothing else can see the
+     * entity yet, so the parent is changed in place rather than copied, and no versions are evolved.  Descendents must
+     * be restored in the order of their ordinals, so that each parent is restored before its children and each keeps
+     * its ordinal and its position among its siblings.
+     * @param parentId the id of the parent, which may be this root entity
+     * @param role the role of the parent with which to associate the child
+     * @param child the child, with its version already restored
+     */
+    final void restoreChild(EntityId parentId, String role, ChildEntity child) {
+        Entity parent = parentId.equals(this.getId()) ? this : this.allDescendents.get(parentId);
+        if (parent == null)
+            throw new IllegalArgumentException(String.format("Parent %s of %s has not been restored", parentId, child.getId()));
+
+        parent.addChild(this.getFactory().getSchema().getRoleId(role), child);
+        this.allDescendents = this.allDescendents.with(child);
+        this.descendentsFootprint += child.estimateFootprint();
+    }
+
+    /**
+     * Indicates whether this version is a snapshot
+     * @return {@code true} if this version is its own last snapshot
+     */
+    public boolean isSnapshot() {
+        return this.lsVersion == this.getVersion();
+    }
+
+    /**
+     * Get a descendent of this root entity, or this entity itself, identified by its id
+     * @param entityId the identity of the required entity
+     * @return the entity, or {@code null} if there is no such entity in this version
+     */
+    final Entity descendent(EntityId entityId) {
+        return entityId.equals(this.getId()) ? this : this.allDescendents.get(entityId);
+    }
+
+    /**
+     * Get the number of descendents of this root entity
+     * @return the number of descendents, excluding this entity
+     */
+    public int getDescendentCount() {
+        return this.allDescendents.size();
+    }
+
+    /**
+     * Get the ordinal of a descendent of this root entity.  Descendents are numbered from zero in the order they were
+     * added, and keep their ordinals in every later version
+     * @param entityId the identity of the descendent
+     * @return the ordinal, or -1 if there is no such descendent in this version
+     */
+    public int getDescendentOrdinal(EntityId entityId) {
+        return this.allDescendents.ordinalOf(entityId);
+    }
+
+    /**
+     * Get a descendent of this root entity by its ordinal
+     * @param ordinal the ordinal, from zero to one less than the number of descendents
+     * @return the descendent
+     * @throws IndexOutOfBoundsException if there is no descendent with the ordinal
+     */
+    public Entity getDescendentAt(int ordinal) {
+        return this.allDescendents.at(ordinal);
+    }
+
+    /**
+     * Estimate the heap occupied by this version of the aggregate: this root entity, each of its descendents (see
+     * {@link Entity#estimateFootprint()}) and the index that holds them.  Parts shared with other versions are counted
+     * in full, so this is what the version would occupy were it the only one held, as it is in a cache of the latest
+     * versions.  This is an estimate for a 64-bit JVM with compressed references, intended for sizing caches rather
+     * than exact accounting, and it is the same whenever it is asked for.
+     * @return the estimated number of bytes
+     */
+    public long getEstimatedFootprint() {
+        return this.estimateFootprint() + this.descendentsFootprint + this.allDescendents.footprint();
     }
 
     /**
-     * Record a descendent of this instance
-     * @param child the descendent
+     * Estimate the heap occupied by the index of the descendents of this root entity alone, excluding the descendents
+     * themselves (see {@link #getEstimatedFootprint()})
+     * @return the estimated number of bytes
      */
-    protected final void addDescendent(ChildEntity child) {
-        this.allDescendents.put(child.getId(), child);
+    public long getDescendentIndexFootprint() {
+        return this.allDescendents.footprint();
     }
 
     /**
@@ -72,13 +244,13 @@ public class AggregateRoot extends Entity {
      * @return an {@link Optional} instance of the required entity
      * @throws InvalidObjectTypeException
      */
-    public final Optional<Entity> getDescendent(String entityId, Class<?> clazz) throws InvalidObjectTypeException {
+    public final Optional<Entity> getDescendent(EntityId entityId, Class<?> clazz) throws InvalidObjectTypeException {
 
-        Entity e = allDescendents.get(entityId);
+        Entity e = this.descendent(entityId);
         if ((e != null) && (!e.getClass().isAssignableFrom(clazz)))
             throw new InvalidObjectTypeException(entityId, clazz.getName(), e.getClass().getName());
 
-        return Optional.ofNullable(allDescendents.get(entityId));
+        return Optional.ofNullable(e);
     }
 
     /**
@@ -99,11 +271,4 @@ public class AggregateRoot extends Entity {
                 String.format("Snapshot Interval: %d%n", this.getSnapshotInterval()) +
                 String.format("Last Snapshot Version: %d%n", this.getLsVersion());
     }
-
-    /**
-     * Reset the lsVersion attribute so that this instance becomes a snapshot
-     */
-    protected void resetLsVersion() {
-        this.lsVersion = this.getVersion();
-    }
 }
@@ -2,9 +2,19 @@ package uk.co.codeloft.ripl.core;
 
 import lombok.Getter;
 
+import java.time.Clock;
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 @Getter
 public class AggregateRootFactory<T extends AggregateRoot> {
@@ -57,7 +67,12 @@ public class AggregateRootFactory<T extends AggregateRoot> {
     /**
      * A map of declared parent-child relationships.
      */
-    protected final Map<String, AggregateRootFactory.ParentChildRelationship> allowedChildRelationships = new HashMap<>();
+    protected final Map<String, AggregateRootFactory.ParentChildRelationship> allowedChildRelationships = new LinkedHashMap<>();
+
+    /**
+     * The relationships and indexes compiled for use by entities, or {@code null} until they are frozen
+     */
+    private volatile AggregateSchema schema;
 
     /**
      * Allow a parent-child relationship between two classes, distinguished by a role.  Note the invariants defined for each parameter
@@ -75,6 +90,7 @@ public class AggregateRootFactory<T extends AggregateRoot> {
      *             This is purely because it is confusing to refer to specific roles as verbs.  Sometimes it is helpful to qualify the noun.
      */
     public void allowRelationship(Class<?> parentClass, Class<?> childClass, String role) {
+        this.checkNotFrozen();
 
         // TODO: throw an exception if role already exists for the parent class?
 
@@ -96,6 +112,226 @@ public class AggregateRootFactory<T extends AggregateRoot> {
         return rel != null && rel.childClass == expectedChildClass && rel.parentClass == expectedParentClass;
     }
 
+    /**
+     * The indexes declared for each role
+     */
+    protected final Map<String, List<ChildIndex<?, ?>>> childIndexesKeyedByRole = new HashMap<>();
+
+    /**
+     * Declare an index of the children in a relationship, so that they can be found by key without scanning them.
+     * Like relationships, indexes must be declared before the schema is frozen.
+     * @param role the role that identifies the relationship
+     * @param key takes the key from a child, typically an attribute of its kernel.  The key may be {@code null}
+     * @return the index, with which children can be found
+     * @param <C> the type of the children
+     * @param <K> the type of the key
+     */
+    public <C extends ChildEntity, K extends Comparable<? super K>> ChildIndex<C, K> indexChildren(String role, Function<? super C, ? extends K> key) {
+        this.checkNotFrozen();
+        if (!this.allowedChildRelationships.containsKey(role))
+            throw new AggregateRootFactory.InvalidRelationshipTypeException(String.format("Role %s does not identify a valid relationship", role));
+
+        ChildIndex<C, K> index = new ChildIndex<>(role, key);
+        this.childIndexesKeyedByRole.computeIfAbsent(role, r -> new ArrayList<>()).add(index);
+        return index;
+    }
+
+    /**
+     * Compile the relationships and indexes declared so far into an {@link AggregateSchema}, after which no more can
+     * be declared.  This is done automatically when the first entity is created, but can be done explicitly once
+     * the declarations are complete, so that a late declaration fails straight away.
+     * @return the schema
+     */
+    public synchronized AggregateSchema freeze() {
+        if (this.schema == null) this.schema = new AggregateSchema(this.allowedChildRelationships, this.childIndexesKeyedByRole);
+        return this.schema;
+    }
+
+    /**
+     * Get the compiled schema, freezing it if necessary
+     * @return the schema
+     */
+    public AggregateSchema getSchema() {
+        AggregateSchema schema = this.schema;
+        return schema != null ? schema : this.freeze();
+    }
+
+    private void checkNotFrozen() {
+        if (this.schema != null)
+            throw new IllegalStateException("Relationships and indexes cannot be declared once the schema is frozen");
+    }
+
+    //--------------------
+
+    /**
+     * Nested class used to register a kind of event so that it can be encoded and decoded by a {@link BinaryEventCodec}.
+     * A kind of event is distinguished by the constructor or apply function of the command template that produces it.
+     */
+    @Getter
+    protected static class EventType {
+        private final int tag;
+        private final Class<?> eventClass;
+        private final Object function;
+        private final ValueCodec<?> valueCodec;
+
+        protected EventType(int tag, Class<?> eventClass, Object function, ValueCodec<?> valueCodec) {
+            this.tag = tag;
+            this.eventClass = eventClass;
+            this.function = function;
+            this.valueCodec = valueCodec;
+        }
+    }
+
+    /**
+     * The registered kinds of event, keyed by tag
+     */
+    private final Map<Integer, EventType> eventTypesKeyedByTag = new HashMap<>();
+
+    /**
+     * The registered kinds of event, keyed by the identity of their constructor or apply function
+     */
+    private final Map<Object, EventType> eventTypesKeyedByFunction = new IdentityHashMap<>();
+
+    /**
+     * Register the kind of event produced by a create command template
+     * @param tag a small integer that identifies the kind of event in its encoded form.  It must be unique within this
+     *            factory, and must never be re-used for a different kind of event once events have been stored
+     * @param template the template
+     * @param kernelCodec the codec used for the kernel
+     */
+    public <K> void registerEventType(int tag, CreateCommandTemplate<T, K> template, ValueCodec<K> kernelCodec) {
+        this.registerEventType(new EventType(tag, CreatedEvent.class, template.getConstructor(), kernelCodec));
+    }
+
+    /**
+     * Register the kind of event produced by an update command template
+     * @param tag a small integer that identifies the kind of event in its encoded form
+     * @param template the template
+     * @param paramCodec the codec used for the update parameter
+     */
+    public <O> void registerEventType(int tag, UpdateCommandTemplate<T, O> template, ValueCodec<O> paramCodec) {
+        this.registerEventType(new EventType(tag, UpdatedEvent.class, template.getEventFunc(), paramCodec));
+    }
+
+    /**
+     * Register the kind of event produced by a create child command template
+     * @param tag a small integer that identifies the kind of event in its encoded form
+     * @param template the template
+     * @param kernelCodec the codec used for the kernel of the child
+     */
+    public <P extends Entity, C extends ChildEntity, K> void registerEventType(
+            int tag,
+            CreateChildCommandTemplate<T, P, C, K> template,
+            ValueCodec<K> kernelCodec) {
+        this.registerEventType(new EventType(tag, ChildCreatedEvent.class, template.getConstructor(), kernelCodec));
+    }
+
+    /**
+     * Register the kind of event produced by an update child command template
+     * @param tag a small integer that identifies the kind of event in its encoded form
+     * @param template the template
+     * @param paramCodec the codec used for the update parameter
+     */
+    public <C extends ChildEntity, O> void registerEventType(
+            int tag,
+            UpdateChildCommandTemplate<T, C, O> template,
+            ValueCodec<O> paramCodec) {
+        this.registerEventType(new EventType(tag, ChildUpdatedEvent.class, template.getApplyFunc(), paramCodec));
+    }
+
+    private void registerEventType(EventType type) {
+        if (this.eventTypesKeyedByTag.containsKey(type.getTag()))
+            throw new IllegalArgumentException(String.format("Event type tag %d is already registered", type.getTag()));
+
+        this.eventTypesKeyedByTag.put(type.getTag(), type);
+        this.eventTypesKeyedByFunction.put(type.getFunction(), type);
+    }
+
+    /**
+     * Get the registered kind of event identified by a tag
+     * @param tag the tag
+     * @return the kind of event
+     */
+    protected EventType getEventType(int tag) {
+        EventType type = this.eventTypesKeyedByTag.get(tag);
+        if (type == null) throw new IllegalArgumentException(String.format("Event type tag %d is not registered", tag));
+        return type;
+    }
+
+    /**
+     * Get the registered kind of event produced by a constructor or apply function
+     * @param function the constructor or apply function
+     * @return the kind of event
+     */
+    protected EventType getEventType(Object function) {
+        EventType type = this.eventTypesKeyedByFunction.get(function);
+        if (type == null) throw new IllegalArgumentException("No event type is registered for " + function);
+        return type;
+    }
+
+    //--------------------
+
+    /**
+     * Nested class used to register how a class of entity is written in a stored snapshot (see
+     * {@link BinarySnapshotCodec}).  An entity is written as the kernel that its create event would need in order to
+     * construct it in its current state, and is rebuilt by that event's constructor, so its state must be fully
+     * captured by such a kernel.
+     */
+    @Getter
+    protected static class SnapshotType {
+        private final EventType createdType;
+        private final Function<Object, ?> kernelOf;
+
+        @SuppressWarnings("unchecked")
+        protected SnapshotType(EventType createdType, Function<?, ?> kernelOf) {
+            this.createdType = createdType;
+            this.kernelOf = (Function<Object, ?>) kernelOf;
+        }
+    }
+
+    /**
+     * The registered snapshot types, keyed by the class of entity
+     */
+    private final Map<Class<?>, SnapshotType> snapshotTypesKeyedByClass = new HashMap<>();
+
+    /**
+     * Register how a class of aggregate root entity is written in a stored snapshot.  The kind of event produced by the
+     * template must already be registered.
+     * @param entityClass the class of entity
+     * @param template the template whose constructor rebuilds an entity of the class
+     * @param kernelOf gives the kernel that would construct an entity in its current state
+     */
+    public <R extends T, K> void registerSnapshotType(
+            Class<R> entityClass,
+            CreateCommandTemplate<T, K> template,
+            Function<? super R, ? extends K> kernelOf) {
+        this.snapshotTypesKeyedByClass.put(entityClass, new SnapshotType(this.getEventType(template.getConstructor()), kernelOf));
+    }
+
+    /**
+     * Register how a class of child entity is written in a stored snapshot.  The kind of event produced by the
+     * template must already be registered.
+     * @param entityClass the class of entity
+     * @param template the template whose constructor rebuilds an entity of the class
+     * @param kernelOf gives the kernel that would construct an entity in its current state
+     */
+    public <P extends Entity, C extends ChildEntity, K> void registerSnapshotType(
+            Class<C> entityClass,
+            CreateChildCommandTemplate<T, P, C, K> template,
+            Function<? super C, ? extends K> kernelOf) {
+        this.snapshotTypesKeyedByClass.put(entityClass, new SnapshotType(this.getEventType(template.getConstructor()), kernelOf));
+    }
+
+    /**
+     * Get the registered snapshot type of a class of entity
+     * @param entityClass the class of entity
+     * @return the snapshot type
+     */
+    protected SnapshotType getSnapshotType(Class<?> entityClass) {
+        SnapshotType type = this.snapshotTypesKeyedByClass.get(entityClass);
+        if (type == null) throw new IllegalArgumentException("No snapshot type is registered for " + entityClass.getName());
+        return type;
+    }
 
     //--------------------
 
@@ -103,53 +339,535 @@ public class AggregateRootFactory<T extends AggregateRoot> {
         public InvalidCommandTargetException(String message) { super(message); }
     }
 
+    public static final int DEFAULT_LOCK_STRIPES = 1024;
+
     private final AggregateRootRepository<T> repository;
 
+    /**
+     * The locks used to serialize commands on the same aggregate root entity, or {@code null} if commands are not
+     * expected to be performed concurrently
+     */
+    private StripedLocks locks;
+
+    /**
+     * The clock from which the timestamps of events and entities are taken
+     */
+    private Clock clock = Clock.systemUTC();
+
+    /**
+     * Generates the ids of commands, events, entities and snapshots
+     */
+    private IdGenerator idGenerator = IdGenerator.timeOrdered(this.clock);
+
+    /**
+     * Whether the id generator was set explicitly, rather than being the default generator built on the clock
+     */
+    private boolean customIdGenerator;
+
+    /**
+     * Decides which versions are stored as snapshots
+     */
+    private SnapshotPolicy snapshotPolicy = SnapshotPolicy.ROOT_INTERVAL;
+
+    /**
+     * The writer that stores snapshots in the background, or {@code null} if snapshots are stored by the command that
+     * produces them
+     */
+    private SnapshotWriter<T> snapshotWriter;
+
+    /**
+     * The scheduler that snapshots aggregate root entities once they have gone quiet, or {@code null} if there is none
+     */
+    private IdleSnapshotScheduler<T> idleSnapshotScheduler;
+
     public AggregateRootFactory(AggregateRootRepository<T> repo) {
         this.repository = repo;
     }
 
+    /**
+     * Replace the policy that decides which versions are stored as snapshots.  By default, each aggregate root entity
+     * is snapshotted according to its own snapshot interval.
+     * @param snapshotPolicy the policy
+     */
+    public void setSnapshotPolicy(SnapshotPolicy snapshotPolicy) {
+        this.snapshotPolicy = snapshotPolicy;
+    }
+
+    /**
+     * Replace the clock from which the timestamps of events and entities are taken.  The default id generator is
+     * rebuilt on the new clock, so that ids stay in the same time order as timestamps; a generator that has been set
+     * explicitly is kept as it is.
+     * @param clock the clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        if (!this.customIdGenerator) this.idGenerator = IdGenerator.timeOrdered(clock);
+    }
+
+    /**
+     * Replace the generator of the ids of commands, events, entities and snapshots.  By default ids are time-ordered
+     * UUIDs (see {@link IdGenerator#timeOrdered(Clock)}).
+     * @param idGenerator the generator
+     */
+    public void setIdGenerator(IdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+        this.customIdGenerator = true;
+    }
+
+    /**
+     * Allow commands to be performed concurrently, using the default number of lock stripes
+     */
+    public void enableConcurrentExecution() {
+        this.enableConcurrentExecution(DEFAULT_LOCK_STRIPES);
+    }
+
+    /**
+     * Allow commands to be performed concurrently.  Commands on the same aggregate root entity are serialized by a
+     * table of striped locks, while commands on different aggregate root entities proceed in parallel (unless their
+     * ids happen to share a stripe).  The repository must itself be safe for concurrent use.
+     * @param stripes the number of lock stripes
+     */
+    public void enableConcurrentExecution(int stripes) {
+        this.locks = new StripedLocks(stripes);
+    }
+
+    /**
+     * Store snapshots in the background, using a queue of the default capacity
+     */
+    public void enableBackgroundSnapshots() {
+        this.enableBackgroundSnapshots(SnapshotWriter.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Store snapshots in the background, so that a command that produces a snapshot does not wait for it to be
+     * stored.  The writer can be closed (by way of {@link #getSnapshotWriter()}) to store any snapshots still waiting.
+     * @param capacity the maximum number of aggregate root entities that may have a snapshot waiting to be stored
+     */
+    public void enableBackgroundSnapshots(int capacity) {
+        this.snapshotWriter = new SnapshotWriter<>(this.repository, capacity, this::snapshotStored);
+    }
+
+    /**
+     * Snapshot aggregate root entities once they have had no events for a quiet period, in addition to any snapshots
+     * called for by the snapshot policy.  The scheduler can be closed by way of {@link #getIdleSnapshotScheduler()}.
+     * @param quietPeriod the time without events after which an entity is snapshotted
+     * @param maxSnapshotsPerSweep the maximum number of snapshots stored each time the scheduler looks for idle
+     *                             entities (twice per quiet period)
+     */
+    public void enableIdleSnapshots(Duration quietPeriod, int maxSnapshotsPerSweep) {
+        this.idleSnapshotScheduler = new IdleSnapshotScheduler<>(this.repository, quietPeriod, maxSnapshotsPerSweep);
+    }
+
+    /**
+     * Acquire the lock that serializes commands on an aggregate root entity.  A sub-class should hold this while it
+     * retrieves the latest version of the entity and performs a command on it, so that the command cannot be based on
+     * a version that another thread is about to supersede.  The lock is re-entrant, and does nothing unless
+     * concurrent execution has been enabled.
+     * @param aggregateId the id of the aggregate root entity, which may be {@code null} for a new entity
+     * @return the held lock, to be closed when the work on the entity is complete
+     */
+    protected StripedLocks.Held lock(EntityId aggregateId) {
+        if (this.locks == null || aggregateId == null) return () -> {};
+        return this.locks.acquire(aggregateId);
+    }
+
+    @SuppressWarnings("try")
     public T perform(Command<T> command) throws Command.PreConditionException {
-        // store the command
-        this.repository.storeCommand(command);
+        try (StripedLocks.Held held = this.lock(command.getAggregateId())) {
+            return this.execute(command);
+        }
+    }
 
-        // TODO: We might have to retrieve the latest version from the repo here
+    /**
+     * Perform a command without waiting for its event to become durable.  The event is applied as soon as the
+     * repository has accepted it, so further commands on the same aggregate root entity can be built on the new
+     * version straight away, but the version should not be treated as committed until the returned future completes.
+     * @param command the command to perform
+     * @return a future that completes with the new version of the aggregate root entity once its event is durable, or
+     *         exceptionally if a pre-condition fails, the event conflicts with another, or it cannot be stored
+     */
+    @SuppressWarnings("try")
+    public CompletableFuture<T> performAsync(Command<T> command) {
+        try (StripedLocks.Held held = this.lock(command.getAggregateId())) {
+            return this.submit(command).getDurable();
+        } catch (Command.PreConditionException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
-        // evaluate pre-conditions (might throw up)
-        command.checkPreConditions();
+    /**
+     * Build a command from the latest version of an aggregate root entity and perform it without waiting for its
+     * event to become durable.  The entity's lock is held while the command is built and submitted.
+     * @param aggregateId the id of the target aggregate root entity
+     * @param function builds the command from the latest version
+     * @return a future that completes as for {@link #performAsync(Command)}, or exceptionally if the entity does not
+     *         exist or the command cannot be built
+     */
+    @SuppressWarnings("try")
+    protected CompletableFuture<T> performAsync(EntityId aggregateId, CommandFunction<T> function) {
+        try (StripedLocks.Held held = this.lock(aggregateId)) {
+            return this.submit(function.commandFor(this.getLatest(aggregateId))).getDurable();
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Perform several commands, on the same or different aggregate root entities, as one batch (see {@link Batch}).
+     * Commands on the same entity must each be built from the version produced by the one before; for commands that
+     * cannot be built in advance, use {@link #newBatch()} directly.
+     * @param commands the commands to perform, in order
+     * @return the final version of each aggregate root entity the commands relate to, in the order in which each
+     *         entity first appears
+     * @throws Command.PreConditionException if a pre-condition of any command fails, in which case nothing is stored
+     */
+    public List<T> performAll(List<Command<T>> commands) throws Command.PreConditionException {
+        Batch batch = this.newBatch();
+        for (Command<T> command : commands) {
+            batch.perform(command);
+        }
+        return batch.commit();
+    }
+
+    /**
+     * Start a batch of commands
+     * @return an empty batch
+     */
+    public Batch newBatch() {
+        return new Batch(false);
+    }
+
+    /**
+     * Start a batch of commands for a bulk load (see {@link BulkLoader})
+     * @return an empty batch that does not store its commands, and stores its snapshots directly in the repository
+     */
+    Batch newBulkBatch() {
+        return new Batch(true);
+    }
+
+    /**
+     * A batch of commands, on the same or different aggregate root entities.  Each command is checked and its event
+     * applied as it is added, so the next command on the same entity can be built from the version it produces (see
+     * {@link #getLatest(EntityId)}), but nothing is stored until the batch is committed.  Then all the events go to the
+     * repository in one batched append, and the snapshot policy is consulted once for each entity, on its final
+     * version.  An entity created by the batch is always snapshotted at its final version, in place of the snapshot
+     * that would otherwise have been stored when it was created.
+     * <p>
+     * A batch does not hold the locks of the entities it relates to.  As with any command, an event is only appended
+     * if its entity has not moved on in the meantime, so a commit may fail with a {@link ConcurrencyException}.  The
+     * batch is not atomic (see {@link AggregateRootRepository#storeEvents(List)}), so the failure is reported as a
+     * {@link BatchCommitException} that says which entities had all their events stored; those entities are
+     * snapshotted as if the batch had succeeded.
+     * <p>
+     * The commands of a batch are stored together when it is committed, and only those whose pre-conditions were met.
+     */
+    public class Batch {
 
-        // TODO: Figure out how to store a 'snapshot' identifier in the event so that we can retrieve all events
-        //       that succeed a given snapshot.  I think we should be able to store the aggregate root version of
-        //       the last snapshot.
-        //
-        //       Basically, an AR has TWO versions.  The version of the AR, and the version of the last snapshot.
-        //       When we create an AR, the two are the same.  When we mutate it, we only update the version, not the
-        //       lsVersion.  When we store a new snapshot, we set them to be the same again.
-        //
-        //       When we create an Event, we set the lsVersion of the event to be the lsVersion of the AR that it is
-        //       applying to
-        //
-        //       Thus when we retrieve the latest version of the AR, we get the most recent snapshot, then we get
-        //       all events that are tied to this, in chronological order, then we apply them, then we return
-        //       the latest snapshot.
+        private final List<Command<T>> commands = new ArrayList<>();
+
+        private final List<Event<T>> events = new ArrayList<>();
+
+        /**
+         * The latest version of each aggregate root entity in the batch, in the order in which each first appeared
+         */
+        private final Map<EntityId, T> latestKeyedByAggregateId = new LinkedHashMap<>();
+
+        /**
+         * The events of each aggregate root entity in the batch, in the order in which each entity first appeared
+         */
+        private final Map<EntityId, List<Event<T>>> eventsKeyedByAggregateId = new LinkedHashMap<>();
+
+        /**
+         * The ids of the aggregate root entities created by the batch
+         */
+        private final Set<EntityId> created = new HashSet<>();
+
+        /**
+         * Whether the batch is part of a bulk load, in which case its commands are not stored, and its snapshots are
+         * stored directly in the repository rather than by way of any snapshot writer or idle snapshot scheduler
+         */
+        private final boolean bulk;
+
+        private boolean committed;
+
+        private Batch(boolean bulk) {
+            this.bulk = bulk;
+        }
+
+        /**
+         * Check a command's pre-conditions and apply its event, without storing it
+         * @param command the command, built from the latest version of its target (if any) in this batch
+         * @return the new version of the aggregate root entity
+         * @throws Command.PreConditionException if a pre-condition of the command fails
+         * @throws ConcurrencyException if the command was not built from the latest version in this batch
+         */
+        public T perform(Command<T> command) throws Command.PreConditionException {
+            if (this.committed) throw new IllegalStateException("The batch has already been committed");
+
+            Event<T> event = AggregateRootFactory.this.check(command);
+
+            T latest = this.latestKeyedByAggregateId.get(event.getAggregateId());
+            if (latest != null && latest.getVersion() != event.getVersion() - 1)
+                throw new ConcurrencyException(event.getAggregateId(), event.getVersion() - 1, latest.getVersion());
+
+            T next = event.apply();
+            if (!this.bulk) this.commands.add(command);
+            this.events.add(event);
+            this.latestKeyedByAggregateId.put(next.getId(), next);
+            this.eventsKeyedByAggregateId.computeIfAbsent(next.getId(), k -> new ArrayList<>()).add(event);
+            if (event.getVersion() == 1) this.created.add(next.getId());
+            return next;
+        }
+
+        /**
+         * Move the commands performed in another batch into this one
+         * @param other the other batch, which must relate to different aggregate root entities
+         */
+        void append(Batch other) {
+            this.commands.addAll(other.commands);
+            this.events.addAll(other.events);
+            this.latestKeyedByAggregateId.putAll(other.latestKeyedByAggregateId);
+            this.eventsKeyedByAggregateId.putAll(other.eventsKeyedByAggregateId);
+            this.created.addAll(other.created);
+            other.committed = true;
+        }
+
+        /**
+         * Get the number of events in this batch
+         * @return the number of events
+         */
+        public int size() {
+            return this.events.size();
+        }
+
+        /**
+         * Get the latest version of an aggregate root entity, as produced by this batch or else from the repository
+         * @param id the id of the aggregate root entity
+         * @return the latest version
+         * @throws InvalidCommandTargetException if there is no such entity
+         */
+        public T getLatest(EntityId id) throws InvalidCommandTargetException {
+            T latest = this.latestKeyedByAggregateId.get(id);
+            return latest != null ? latest : AggregateRootFactory.this.getLatest(id);
+        }
+
+        /**
+         * Store the commands and events of this batch, and any snapshots called for
+         * @return the final version of each aggregate root entity in this batch, in the order in which each first
+         *         appeared
+         * @throws BatchCommitException if an event could not be stored, for example because it conflicts with one
+         *                              already stored
+         */
+        public List<T> commit() {
+            if (this.committed) throw new IllegalStateException("The batch has already been committed");
+            this.committed = true;
+
+            if (!this.commands.isEmpty()) AggregateRootFactory.this.repository.storeCommands(this.commands);
+
+            try {
+                AggregateRootFactory.this.repository.storeEvents(this.events);
+            } catch (RuntimeException e) {
+                throw this.failed(e);
+            }
+
+            List<T> result = new ArrayList<>(this.latestKeyedByAggregateId.size());
+            for (T latest : this.latestKeyedByAggregateId.values()) {
+                result.add(this.stored(latest));
+            }
+            return result;
+        }
+
+        /**
+         * Deal with the final version of an entity whose events have all been stored, snapshotting it if called for
+         * @param latest the final version
+         * @return the final version, or a snapshot of it
+         */
+        @SuppressWarnings("unchecked")
+        private T stored(T latest) {
+            List<Event<T>> events = this.eventsKeyedByAggregateId.get(latest.getId());
+            boolean created = this.created.contains(latest.getId());
+
+            // The policy is consulted once, for the final version, but is given every event that led to it
+            if (!latest.isSnapshot() && (created || AggregateRootFactory.this.snapshotPolicy.requiresSnapshot(events, latest)))
+                latest = (T) latest.asSnapshot();
+
+            if (this.bulk) AggregateRootFactory.this.repository.storeSnapshot(latest); else AggregateRootFactory.this.stored(latest);
+            return latest;
+        }
+
+        /**
+         * Find out, from the repository, which entities had all their events stored by a failed commit, and deal with
+         * them as if the commit had succeeded
+         * @param cause the failure
+         * @return the exception to throw
+         */
+        private BatchCommitException failed(RuntimeException cause) {
+            List<EntityId> storedIds = new ArrayList<>();
+            List<EntityId> failedIds = new ArrayList<>();
+            this.eventsKeyedByAggregateId.forEach((aggregateId, events) -> {
+                // An event at the same version may have been stored by someone else, so the events are matched by id
+                List<Event<T>> found = AggregateRootFactory.this.repository.getEvents(aggregateId, events.get(0).getVersion());
+                boolean stored = found.size() >= events.size();
+                for (int i = 0; stored && i < events.size(); i++) {
+                    stored = found.get(i).getId().equals(events.get(i).getId());
+                }
+
+                if (stored) {
+                    try {
+                        this.stored(this.latestKeyedByAggregateId.get(aggregateId));
+                    } catch (RuntimeException e) {
+                        // The snapshot is only an optimisation, so the entity is simply left to its events
+                    }
+                    storedIds.add(aggregateId);
+                } else {
+                    failedIds.add(aggregateId);
+                }
+            });
+
+            return new BatchCommitException(storedIds, failedIds, cause);
+        }
+    }
+
+    /**
+     * The outcome of a command whose event has been accepted and applied, but may not yet be durable
+     */
+    @Getter
+    static class Submission<T> {
+        private final T applied;
+        private final CompletableFuture<T> durable;
+
+        private Submission(T applied, CompletableFuture<T> durable) {
+            this.applied = applied;
+            this.durable = durable;
+        }
+    }
+
+    private T execute(Command<T> command) throws Command.PreConditionException {
+        Event<T> event = this.prepare(command);
 
         // store the event
-        Event<T> event = command.getEvent();
         this.repository.storeEvent(event);
 
         // apply the event, getting the updated entity
-        T snapshot = event.apply();
+        T snapshot = this.apply(event);
 
         // store a new snapshot, but only if necessary
-        if (event.requiresSnapshot()) {
-            this.repository.storeSnapshot(snapshot);
-        }
+        this.stored(snapshot);
 
         return snapshot;
     }
 
-    protected T getLatest(String id) throws InvalidCommandTargetException {
-        return this.repository.getLatest(id).orElseThrow(
+    /**
+     * Store a command's event without waiting for it to become durable, and apply it.  Any snapshot is stored once
+     * the event is durable.
+     * @param command the command to perform
+     * @return the applied version and a future that completes with it once the event is durable
+     * @throws Command.PreConditionException if a pre-condition of the command fails
+     */
+    Submission<T> submit(Command<T> command) throws Command.PreConditionException {
+        Event<T> event = this.prepare(command);
+
+        CompletableFuture<Void> stored = this.repository.storeEventAsync(event);
+
+        T snapshot = this.apply(event);
+
+        return new Submission<>(snapshot, stored.thenApply(ignored -> {
+            this.stored(snapshot);
+            return snapshot;
+        }));
+    }
+
+    /**
+     * Apply an event, producing the next version of its aggregate root entity.  If the snapshot policy calls for a
+     * snapshot, the version is made into one, so that it (and the versions that follow from it) record it as their
+     * last snapshot.
+     * @param event the event
+     * @return the next version
+     */
+    @SuppressWarnings("unchecked")
+    private T apply(Event<T> event) {
+        T next = event.apply();
+        return !next.isSnapshot() && this.snapshotPolicy.requiresSnapshot(event, next) ? (T) next.asSnapshot() : next;
+    }
+
+    /**
+     * Deal with a new version once the event that produced it is durable: store it if it is a snapshot, and let the
+     * idle snapshot scheduler (if any) know about it
+     * @param version the new version
+     */
+    private void stored(T version) {
+        if (this.idleSnapshotScheduler != null) this.idleSnapshotScheduler.track(version);
+
+        if (version.isSnapshot()) {
+            if (this.snapshotWriter != null) {
+                this.snapshotWriter.submit(version);
+            } else {
+                this.repository.storeSnapshot(version);
+                this.snapshotStored(version);
+            }
+        }
+    }
+
+    /**
+     * Let the idle snapshot scheduler (if any) know that a snapshot has been stored, so that it can stop tracking the
+     * entity
+     * @param snapshot the snapshot
+     */
+    private void snapshotStored(T snapshot) {
+        if (this.idleSnapshotScheduler != null) this.idleSnapshotScheduler.snapshotStored(snapshot);
+    }
+
+    /**
+     * Store a command, check its pre-conditions and get the resulting event
+     * @param command the command
+     * @return the event
+     * @throws Command.PreConditionException if a pre-condition of the command fails
+     */
+    private Event<T> prepare(Command<T> command) throws Command.PreConditionException {
+        // store the command
+        this.repository.storeCommand(command);
+
+        return this.check(command);
+    }
+
+    /**
+     * Check a command's pre-conditions and get the resulting event, without storing the command
+     * @param command the command
+     * @return the event
+     * @throws Command.PreConditionException if a pre-condition of the command fails
+     */
+    private Event<T> check(Command<T> command) throws Command.PreConditionException {
+        // evaluate pre-conditions (might throw up)
+        command.checkPreConditions();
+
+        // The command may have been built from a version that has since been superseded.  Rather than retrieve the
+        // latest version here, the event is appended conditionally: the repository only accepts it if the stream is
+        // still at the version the event was based on, and otherwise throws a ConcurrencyException.  A command can
+        // also pin the version it expects, which is checked first.
+        Event<T> event = command.getEvent();
+        int baseVersion = event.getVersion() - 1;
+        if (command.getExpectedVersion().isPresent() && command.getExpectedVersion().getAsInt() != baseVersion) {
+            throw new ConcurrencyException(event.getAggregateId(), command.getExpectedVersion().getAsInt(), baseVersion);
+        }
+
+        return event;
+    }
+
+    /**
+     * Tell the snapshot policy how long a repository took to replay the events that follow a snapshot (see
+     * {@link AggregateRootRepository#replay})
+     * @param latest the version produced by the replay
+     * @param events the number of events replayed
+     * @param nanos the time taken, in nanoseconds
+     */
+    void replayed(AggregateRoot latest, int events, long nanos) {
+        this.snapshotPolicy.replayed(latest, events, nanos);
+    }
+
+    protected T getLatest(EntityId id) throws InvalidCommandTargetException {
+        Optional<T> latest = this.repository.getLatest(id);
+
+        return latest.orElseThrow(
                 () -> new InvalidCommandTargetException(
                         String.format("Id %s does not identify valid aggregate root entity in the repository", id)) );
     }
@@ -1,6 +1,8 @@
 package uk.co.codeloft.ripl.core;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A repository for {@link AggregateRoot} entities in which commands, events and snapshots are persisted
@@ -12,7 +14,23 @@ public interface AggregateRootRepository<T extends AggregateRoot> {
      * @param id the identity of the aggregate root entity required
      * @return an {@link Optional} containting the sub-type instance of {@link AggregateRoot} if it exists
      */
-    public Optional<T> getLatest(String id);
+    public Optional<T> getLatest(EntityId id);
+
+    /**
+     * Get the events relating to a specific aggregate root entity, in version order
+     * @param aggregateId the identity of the aggregate root entity
+     * @param fromVersion the version produced by the first event required (inclusive)
+     * @return a {@link List} of events.  The list is empty if there are no such events
+     */
+    public List<Event<T>> getEvents(EntityId aggregateId, int fromVersion);
+
+    /**
+     * Get events relating to any aggregate root entity, in the order in which they were stored
+     * @param fromPosition the global position of the first event required (inclusive)
+     * @param maxEvents the maximum number of events to return
+     * @return a {@link List} of events.  The list is empty if there are no such events
+     */
+    public List<Event<T>> getEventsFrom(long fromPosition, int maxEvents);
 
     /**
      * Store a command
@@ -21,14 +39,81 @@ public interface AggregateRootRepository<T extends AggregateRoot> {
     public void storeCommand(Command<T> command);
 
     /**
-     * Store an event
+     * Store several commands, in order, as one batch.  By default the commands are stored one at a time.
+     * @param commands the commands to store
+     */
+    public default void storeCommands(List<Command<T>> commands) {
+        for (Command<T> command : commands) {
+            this.storeCommand(command);
+        }
+    }
+
+    /**
+     * Store an event, allocating the next global position to it.  The event is only appended if the stream of its
+     * aggregate root entity is still at the version immediately preceding the event's version; this check and the
+     * append happen atomically.
      * @param event the event to store
+     * @throws ConcurrencyException if another event has already been appended at or after the event's version
      */
     public void storeEvent(Event<T> event);
 
+    /**
+     * Store an event without waiting for it to become durable.  The event is accepted (or rejected) straight away,
+     * exactly as by {@link #storeEvent(Event)}, so the next event for the same aggregate root entity can be stored
+     * before this one is durable.  By default this stores the event synchronously.
+     * @param event the event to store
+     * @return a future that completes once the event is durable, or exceptionally if it cannot be stored
+     */
+    public default CompletableFuture<Void> storeEventAsync(Event<T> event) {
+        try {
+            this.storeEvent(event);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Store several events, in order, as one batch.  Each event is appended conditionally, exactly as by
+     * {@link #storeEvent(Event)}, but a repository may make the whole batch durable at once.  The batch is not
+     * atomic: if an event is rejected, the events before it remain stored and those after it are not stored.  By
+     * default the events are stored one at a time.
+     * @param events the events to store
+     * @throws ConcurrencyException if an event conflicts with one already appended
+     */
+    public default void storeEvents(List<Event<T>> events) {
+        for (Event<T> event : events) {
+            this.storeEvent(event);
+        }
+    }
+
     /**
      * Store a snapshot of an {@link AggregateRoot} sub-type entity
      * @param snapshot
      */
     public void storeSnapshot(T snapshot);
+
+    /**
+     * Fold events onto a version of an aggregate root entity, in order, and tell the factory that performed them how
+     * long it took, so that its {@link SnapshotPolicy} can weigh the cost of replay against that of a snapshot.
+     * Repositories use this wherever they replay events, so that only actual replays are measured.
+     * @param root the version to start from, or {@code null} if the events start with the creation of the entity
+     * @param events the events that follow it
+     * @return the resulting version, which is {@code root} if there are no events
+     * @param <T> the sub-type of the {@link AggregateRoot} class
+     */
+    public static <T extends AggregateRoot> T replay(T root, Iterable<Event<T>> events) {
+        long start = System.nanoTime();
+        int replayed = 0;
+        AggregateRootFactory<?> factory = null;
+
+        for (Event<T> event : events) {
+            root = event.applyTo(root);
+            factory = event.getFactory();
+            replayed++;
+        }
+
+        if (replayed > 0) factory.replayed(root, replayed, System.nanoTime() - start);
+        return root;
+    }
 }
@@ -0,0 +1,140 @@
+package uk.co.codeloft.ripl.core;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The relationships and child indexes registered with an {@link AggregateRootFactory}, compiled into a form that
+ * entities can use without hashing role names or inspecting classes.  Each role is given a dense integer id, and the
+ * layout of the child collections of each class of entity (which roles it is the parent in, and where its collection
+ * for each one is held) is worked out once, when the first entity of the class is created.
+ * <p>
+ * A schema is created by {@link AggregateRootFactory#freeze()} and never changes.
+ */
+public final class AggregateSchema {
+
+    /**
+     * The slot given to a role in the layout of a class that is not the parent in the relationship
+     */
+    static final int NO_SLOT = -1;
+
+    /**
+     * The layout of the child collections of a class of entity
+     */
+    static final class Layout {
+
+        /**
+         * The position of the collection for each role id, or {@link #NO_SLOT}
+         */
+        private final int[] slotsByRoleId;
+
+        /**
+         * The role id of the collection in each position
+         */
+        private final int[] roleIdsBySlot;
+
+        /**
+         * The collections of an entity with no children.  These are shared by every such entity, so the array must be
+         * copied before it is changed
+         */
+        private final ChildCollection<ChildEntity>[] empty;
+
+        @SuppressWarnings("unchecked")
+        private Layout(AggregateSchema schema, Class<?> entityClass) {
+            this.slotsByRoleId = new int[schema.roles.length];
+
+            int slots = 0;
+            for (int roleId = 0; roleId < schema.roles.length; roleId++) {
+                boolean parent = schema.relationships[roleId].getParentClass().isAssignableFrom(entityClass);
+                this.slotsByRoleId[roleId] = parent ? slots++ : NO_SLOT;
+            }
+
+            this.roleIdsBySlot = new int[slots];
+            this.empty = (ChildCollection<ChildEntity>[]) new ChildCollection<?>[slots];
+            for (int roleId = 0; roleId < schema.roles.length; roleId++) {
+                int slot = this.slotsByRoleId[roleId];
+                if (slot == NO_SLOT) continue;
+
+                this.roleIdsBySlot[slot] = roleId;
+                this.empty[slot] = ChildCollection.empty(schema.indexes[roleId]);
+            }
+        }
+
+        int slotOf(int roleId) {
+            return roleId < 0 ? NO_SLOT : this.slotsByRoleId[roleId];
+        }
+
+        int roleIdAt(int slot) {
+            return this.roleIdsBySlot[slot];
+        }
+
+        ChildCollection<ChildEntity>[] empty() {
+            return this.empty;
+        }
+    }
+
+    private final String[] roles;
+
+    private final AggregateRootFactory.ParentChildRelationship[] relationships;
+
+    private final List<ChildIndex<?, ?>>[] indexes;
+
+    private final Map<String, Integer> roleIdsKeyedByRole = new HashMap<>();
+
+    private final Map<Class<?>, Layout> layoutsKeyedByClass = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    AggregateSchema(Map<String, AggregateRootFactory.ParentChildRelationship> relationships, Map<String, List<ChildIndex<?, ?>>> indexes) {
+        int count = relationships.size();
+        this.roles = new String[count];
+        this.relationships = new AggregateRootFactory.ParentChildRelationship[count];
+        this.indexes = (List<ChildIndex<?, ?>>[]) new List<?>[count];
+
+        int roleId = 0;
+        for (Map.Entry<String, AggregateRootFactory.ParentChildRelationship> entry : relationships.entrySet()) {
+            this.roles[roleId] = entry.getKey();
+            this.relationships[roleId] = entry.getValue();
+            this.indexes[roleId] = List.copyOf(indexes.getOrDefault(entry.getKey(), List.of()));
+            for (ChildIndex<?, ?> index : this.indexes[roleId]) index.bind(roleId);
+            this.roleIdsKeyedByRole.put(entry.getKey(), roleId);
+            roleId++;
+        }
+    }
+
+    /**
+     * Get the number of roles
+     * @return the number of roles
+     */
+    public int getRoleCount() {
+        return this.roles.length;
+    }
+
+    /**
+     * Get the id of a role
+     * @param role the role
+     * @return the id, or -1 if the role does not identify a relationship
+     */
+    public int getRoleId(String role) {
+        Integer roleId = this.roleIdsKeyedByRole.get(role);
+        return roleId == null ? -1 : roleId;
+    }
+
+    /**
+     * Get the role with a given id
+     * @param roleId the id
+     * @return the role
+     */
+    public String getRole(int roleId) {
+        return this.roles[roleId];
+    }
+
+    AggregateRootFactory.ParentChildRelationship relationship(int roleId) {
+        return this.relationships[roleId];
+    }
+
+    Layout layoutOf(Class<?> entityClass) {
+        return this.layoutsKeyedByClass.computeIfAbsent(entityClass, c -> new Layout(this, c));
+    }
+}
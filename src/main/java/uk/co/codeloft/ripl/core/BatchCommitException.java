@@ -0,0 +1,35 @@
+package uk.co.codeloft.ripl.core;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Represents the failure of a batch of commands to store all its events (see {@link AggregateRootFactory.Batch}).  The
+ * batch is not atomic, so some of the aggregate root entities it relates to may have had all their events stored, and
+ * others only some or none of them.  The cause is the original failure, for example a {@link ConcurrencyException}.
+ */
+@Getter
+public class BatchCommitException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The ids of the aggregate root entities whose events were all stored, in the order in which each first appeared
+     * in the batch
+     */
+    private final List<EntityId> storedIds;
+
+    /**
+     * The ids of the aggregate root entities with at least one event that was not stored, in the order in which each
+     * first appeared in the batch
+     */
+    private final List<EntityId> failedIds;
+
+    public BatchCommitException(List<EntityId> storedIds, List<EntityId> failedIds, RuntimeException cause) {
+        super(String.format("Stored the events of %d aggregate root entities but not all of those of %d: %s",
+                storedIds.size(), failedIds.size(), cause.getMessage()), cause);
+        this.storedIds = List.copyOf(storedIds);
+        this.failedIds = List.copyOf(failedIds);
+    }
+}
@@ -0,0 +1,111 @@
+package uk.co.codeloft.ripl.core;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * An {@link EventCodec} that writes events in a compact binary form.  Each event starts with the tag of its kind, as
+ * registered with the {@link AggregateRootFactory}, followed by its id and timestamp, then the fields particular to
+ * its kind, with kernels and update parameters written by the {@link ValueCodec} registered for them.  Decoding
+ * re-binds the constructor or apply function registered for the tag.
+ * <p>
+ * A codec is bound to its factory after construction, because the factory is normally constructed with a repository
+ * that is itself constructed with the codec.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the events relate to
+ */
+public class BinaryEventCodec<T extends AggregateRoot> implements EventCodec<T> {
+
+    private AggregateRootFactory<T> factory;
+
+    /**
+     * Bind this codec to the factory whose registered event types it uses
+     * @param factory the factory
+     */
+    public void bind(AggregateRootFactory<T> factory) {
+        this.factory = factory;
+    }
+
+    private AggregateRootFactory<T> getFactory() {
+        if (this.factory == null) throw new IllegalStateException("The codec has not been bound to a factory");
+        return this.factory;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Event<T> event) {
+        BinaryOutput out = new BinaryOutput();
+
+        if (event instanceof CreatedEvent<T, ?> created) {
+            AggregateRootFactory.EventType type = this.getFactory().getEventType(created.getConstructor());
+            this.writeHeader(type, event, out);
+            ((ValueCodec<Object>) type.getValueCodec()).write(created.getKernel(), out);
+        } else if (event instanceof UpdatedEvent<T, ?> updated) {
+            AggregateRootFactory.EventType type = this.getFactory().getEventType(updated.getApplyFunc());
+            this.writeHeader(type, event, out);
+            ((ValueCodec<Object>) type.getValueCodec()).write(updated.getParam(), out);
+        } else if (event instanceof ChildCreatedEvent<T, ?, ?, ?> childCreated) {
+            AggregateRootFactory.EventType type = this.getFactory().getEventType(childCreated.getConstructor());
+            this.writeHeader(type, event, out);
+            out.writeId(childCreated.getParentId());
+            out.writeId(childCreated.getChildId());
+            out.writeString(childCreated.getRole());
+            ((ValueCodec<Object>) type.getValueCodec()).write(childCreated.getKernel(), out);
+        } else if (event instanceof ChildUpdatedEvent<T, ?, ?> childUpdated) {
+            AggregateRootFactory.EventType type = this.getFactory().getEventType(childUpdated.getApplyFunc());
+            this.writeHeader(type, event, out);
+            out.writeId(childUpdated.getChildId());
+            ((ValueCodec<Object>) type.getValueCodec()).write(childUpdated.getParam(), out);
+        } else {
+            throw new IllegalArgumentException("Cannot encode event of type " + event.getClass().getName());
+        }
+
+        return out.toByteArray();
+    }
+
+    private void writeHeader(AggregateRootFactory.EventType type, Event<T> event, BinaryOutput out) {
+        out.writeVarint(type.getTag());
+        out.writeId(event.getId());
+        ValueCodec.INSTANT.write(event.getTimestamp(), out);
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Event<T> decode(EntityId aggregateId, int version, ByteBuffer body) {
+        BinaryInput in = new BinaryInput(body);
+
+        AggregateRootFactory.EventType type = this.getFactory().getEventType(in.readVarint());
+        EntityId id = in.readId();
+        Instant timestamp = ValueCodec.INSTANT.read(in);
+        ValueCodec<?> valueCodec = type.getValueCodec();
+
+        if (type.getEventClass() == CreatedEvent.class) {
+            return new CreatedEvent<>(
+                    this.factory, id, timestamp, aggregateId,
+                    valueCodec.read(in),
+                    (BiFunction) type.getFunction());
+        } else if (type.getEventClass() == UpdatedEvent.class) {
+            return new UpdatedEvent<>(
+                    this.factory, id, timestamp, aggregateId, version,
+                    (BiConsumer<T, Object>) type.getFunction(),
+                    valueCodec.read(in));
+        } else if (type.getEventClass() == ChildCreatedEvent.class) {
+            EntityId parentId = in.readId();
+            EntityId childId = in.readId();
+            String role = in.readString();
+            return new ChildCreatedEvent<>(
+                    this.factory, id, timestamp, aggregateId, version, parentId, childId, role,
+                    valueCodec.read(in),
+                    (BiFunction) type.getFunction());
+        } else if (type.getEventClass() == ChildUpdatedEvent.class) {
+            EntityId childId = in.readId();
+            return new ChildUpdatedEvent<>(
+                    this.factory, id, timestamp, aggregateId, version, childId,
+                    (BiConsumer<ChildEntity, Object>) type.getFunction(),
+                    valueCodec.read(in));
+        } else {
+            throw new IllegalArgumentException("Cannot decode event of type " + type.getEventClass().getName());
+        }
+    }
+}
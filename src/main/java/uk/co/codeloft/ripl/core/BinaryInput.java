@@ -0,0 +1,100 @@
+package uk.co.codeloft.ripl.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads values written by a {@link BinaryOutput} from a {@link ByteBuffer}, advancing its position
+ */
+public class BinaryInput {
+
+    private final ByteBuffer buffer;
+
+    public BinaryInput(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public int readByte() {
+        return this.buffer.get();
+    }
+
+    public boolean readBoolean() {
+        return this.buffer.get() != 0;
+    }
+
+    public int readVarint() {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = this.buffer.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IllegalStateException("Malformed variable-length int");
+    }
+
+    public long readVarlong() {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = this.buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IllegalStateException("Malformed variable-length long");
+    }
+
+    public int readSignedVarint() {
+        int value = this.readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readSignedVarlong() {
+        long value = this.readVarlong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readLong() {
+        return this.buffer.getLong();
+    }
+
+    public byte[] readBytes() {
+        byte[] result = new byte[this.readVarint()];
+        this.buffer.get(result);
+        return result;
+    }
+
+    /**
+     * Read a length-prefixed array of bytes as a view of the underlying buffer, without copying it
+     * @return a buffer positioned at the first byte and limited to the last
+     */
+    public ByteBuffer readSlice() {
+        int length = this.readVarint();
+        ByteBuffer result = this.buffer.slice(this.buffer.position(), length);
+        this.buffer.position(this.buffer.position() + length);
+        return result;
+    }
+
+    public String readString() {
+        int prefix = this.readVarint();
+        if (prefix == 0) return null;
+
+        int length = prefix - 1;
+        String result;
+        if (this.buffer.hasArray()) {
+            result = new String(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(), length, StandardCharsets.UTF_8);
+            this.buffer.position(this.buffer.position() + length);
+        } else {
+            byte[] utf8 = new byte[length];
+            this.buffer.get(utf8);
+            result = new String(utf8, StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    public EntityId readId() {
+        return new EntityId(this.buffer.getLong(), this.buffer.getLong());
+    }
+
+    public boolean hasRemaining() {
+        return this.buffer.hasRemaining();
+    }
+}
@@ -0,0 +1,124 @@
+package uk.co.codeloft.ripl.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable buffer into which values are written in a compact binary form.  Integers are written as variable-length
+ * quantities (7 bits per byte, least significant group first), signed integers are zig-zag encoded first so that
+ * small negative values stay small, and strings are prefixed with their length.
+ */
+public class BinaryOutput {
+
+    private byte[] bytes;
+
+    private int length;
+
+    public BinaryOutput() {
+        this(64);
+    }
+
+    public BinaryOutput(int initialCapacity) {
+        this.bytes = new byte[Math.max(initialCapacity, 16)];
+        this.length = 0;
+    }
+
+    private void ensureCapacity(int required) {
+        if (this.length + required > this.bytes.length)
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.length + required));
+    }
+
+    public void writeByte(int value) {
+        this.ensureCapacity(1);
+        this.bytes[this.length++] = (byte) value;
+    }
+
+    public void writeBoolean(boolean value) {
+        this.writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Write an int as an unsigned variable-length quantity
+     * @param value the value, treated as unsigned
+     */
+    public void writeVarint(int value) {
+        this.ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            this.bytes[this.length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.bytes[this.length++] = (byte) value;
+    }
+
+    /**
+     * Write a long as an unsigned variable-length quantity
+     * @param value the value, treated as unsigned
+     */
+    public void writeVarlong(long value) {
+        this.ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            this.bytes[this.length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.bytes[this.length++] = (byte) value;
+    }
+
+    public void writeSignedVarint(int value) {
+        this.writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    public void writeSignedVarlong(long value) {
+        this.writeVarlong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeLong(long value) {
+        this.ensureCapacity(Long.BYTES);
+        for (int shift = 56; shift >= 0; shift -= 8) this.bytes[this.length++] = (byte) (value >>> shift);
+    }
+
+    /**
+     * Write a length-prefixed array of bytes
+     * @param value the bytes
+     */
+    public void writeBytes(byte[] value) {
+        this.writeVarint(value.length);
+        this.ensureCapacity(value.length);
+        System.arraycopy(value, 0, this.bytes, this.length, value.length);
+        this.length += value.length;
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string.  The prefix is one more than the length so that {@code null} can be
+     * written as a zero prefix.
+     * @param value the string, which may be {@code null}
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            this.writeVarint(0);
+            return;
+        }
+
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        this.writeVarint(utf8.length + 1);
+        this.ensureCapacity(utf8.length);
+        System.arraycopy(utf8, 0, this.bytes, this.length, utf8.length);
+        this.length += utf8.length;
+    }
+
+    /**
+     * Write an entity, command or event id as 16 bytes
+     * @param id the id
+     */
+    public void writeId(EntityId id) {
+        this.writeLong(id.getMostSignificantBits());
+        this.writeLong(id.getLeastSignificantBits());
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.bytes, this.length);
+    }
+}
@@ -0,0 +1,208 @@
+package uk.co.codeloft.ripl.core;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * A {@link SnapshotCodec} that writes snapshots in a compact binary form.  The root entity is written first, then the
+ * descendents in the order of their ordinals, so that a parent always precedes its children.  Each entity is written as
+ * a length-prefixed record of its id, versions and instants, followed by the tag of the event that creates it and the
+ * kernel that would create it in its current state, as registered with
+ * {@link AggregateRootFactory#registerSnapshotType}.
+ * <p>
+ * A delta holds the root entity and only those descendents whose {@link Entity#getRootVersion() root version} shows
+ * they were created or changed since the earlier snapshot, each with its ordinal.  Decoding a base and its deltas
+ * keeps the latest record for each ordinal without decoding those it supersedes, then constructs each entity afresh
+ * with the registered constructor and restores its versions and instants.
+ * <p>
+ * A codec is bound to its factory after construction, because the factory is normally constructed with a repository
+ * that is itself constructed with the codec.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the snapshots are of
+ */
+public class BinarySnapshotCodec<T extends AggregateRoot> implements SnapshotCodec<T> {
+
+    private static final int BASE = 0;
+
+    private static final int DELTA = 1;
+
+    private AggregateRootFactory<T> factory;
+
+    /**
+     * Bind this codec to the factory whose registered snapshot types it uses
+     * @param factory the factory
+     */
+    public void bind(AggregateRootFactory<T> factory) {
+        this.factory = factory;
+    }
+
+    private AggregateRootFactory<T> getFactory() {
+        if (this.factory == null) throw new IllegalStateException("The codec has not been bound to a factory");
+        return this.factory;
+    }
+
+    @Override
+    public byte[] encode(T snapshot) {
+        BinaryOutput out = this.writeRoot(BASE, snapshot);
+
+        for (int ordinal = 0; ordinal < snapshot.getDescendentCount(); ordinal++) {
+            out.writeBytes(this.writeChild((ChildEntity) snapshot.getDescendentAt(ordinal)));
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeDelta(T snapshot, int sinceVersion) {
+        BinaryOutput out = this.writeRoot(DELTA, snapshot);
+
+        int changed = 0;
+        for (int ordinal = 0; ordinal < snapshot.getDescendentCount(); ordinal++) {
+            if (snapshot.getDescendentAt(ordinal).getRootVersion() > sinceVersion) changed++;
+        }
+
+        out.writeVarint(changed);
+        for (int ordinal = 0; ordinal < snapshot.getDescendentCount(); ordinal++) {
+            ChildEntity child = (ChildEntity) snapshot.getDescendentAt(ordinal);
+            if (child.getRootVersion() <= sinceVersion) continue;
+
+            out.writeVarint(ordinal);
+            out.writeBytes(this.writeChild(child));
+        }
+
+        return out.toByteArray();
+    }
+
+    private BinaryOutput writeRoot(int kind, T snapshot) {
+        BinaryOutput out = new BinaryOutput();
+
+        out.writeByte(kind);
+        out.writeId(snapshot.getId());
+        out.writeId(snapshot.getSnapshotId());
+        out.writeVarint(snapshot.getSnapshotInterval());
+        out.writeId(snapshot.getCreatedEvent().getId());
+        ValueCodec.INSTANT.write(snapshot.getCreatedEvent().getTimestamp(), out);
+
+        BinaryOutput root = new BinaryOutput();
+        this.writeEntity(snapshot, root);
+        out.writeBytes(root.toByteArray());
+
+        out.writeVarint(snapshot.getDescendentCount());
+        return out;
+    }
+
+    private byte[] writeChild(ChildEntity child) {
+        BinaryOutput out = new BinaryOutput();
+        out.writeId(child.getParentId());
+        out.writeString(child.getRole());
+        out.writeId(child.getId());
+        this.writeEntity(child, out);
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeEntity(Entity entity, BinaryOutput out) {
+        AggregateRootFactory.SnapshotType type = this.getFactory().getSnapshotType(entity.getClass());
+
+        out.writeVarint(entity.getVersion());
+        out.writeVarint(entity.getRootVersion());
+        ValueCodec.INSTANT.write(entity.getCreatedAt(), out);
+        ValueCodec.INSTANT.write(entity.getUpdatedAt(), out);
+        out.writeVarint(type.getCreatedType().getTag());
+        ((ValueCodec<Object>) type.getCreatedType().getValueCodec()).write(type.getKernelOf().apply(entity), out);
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public T decode(List<ByteBuffer> bodies) {
+        EntityId id = null;
+        EntityId snapshotId = null;
+        int snapshotInterval = 0;
+        EntityId createdEventId = null;
+        Instant createdEventTimestamp = null;
+        ByteBuffer rootRecord = null;
+        ByteBuffer[] childRecords = null;
+
+        // Gather the latest record of each entity, from the base and then each delta in turn
+        for (ByteBuffer body : bodies) {
+            BinaryInput in = new BinaryInput(body);
+
+            int kind = in.readByte();
+            if ((kind == BASE) != (childRecords == null))
+                throw new IllegalArgumentException("A snapshot must be decoded from one base followed by its deltas");
+
+            id = in.readId();
+            snapshotId = in.readId();
+            snapshotInterval = in.readVarint();
+            createdEventId = in.readId();
+            createdEventTimestamp = ValueCodec.INSTANT.read(in);
+            rootRecord = in.readSlice();
+
+            int descendents = in.readVarint();
+            childRecords = childRecords == null ? new ByteBuffer[descendents] : Arrays.copyOf(childRecords, descendents);
+
+            if (kind == BASE) {
+                for (int ordinal = 0; ordinal < descendents; ordinal++) {
+                    childRecords[ordinal] = in.readSlice();
+                }
+            } else {
+                int changed = in.readVarint();
+                for (int i = 0; i < changed; i++) {
+                    int ordinal = in.readVarint();
+                    childRecords[ordinal] = in.readSlice();
+                }
+            }
+        }
+
+        if (childRecords == null) throw new IllegalArgumentException("There is no snapshot to decode");
+
+        // The root is constructed by a created event that carries its current kernel, in place of the original
+        BinaryInput in = new BinaryInput(rootRecord);
+        int version = in.readVarint();
+        int rootVersion = in.readVarint();
+        Instant createdAt = ValueCodec.INSTANT.read(in);
+        Instant updatedAt = ValueCodec.INSTANT.read(in);
+        AggregateRootFactory.EventType type = this.typeOf(in.readVarint(), CreatedEvent.class);
+
+        CreatedEvent<T, Object> created = new CreatedEvent<>(
+                this.factory, createdEventId, createdEventTimestamp, id,
+                type.getValueCodec().read(in),
+                (BiFunction) type.getFunction());
+        T root = created.apply();
+        root.restore(version, rootVersion, createdAt, updatedAt);
+        root.restoreSnapshot(snapshotId, snapshotInterval);
+
+        for (ByteBuffer childRecord : childRecords) {
+            in = new BinaryInput(childRecord);
+            EntityId parentId = in.readId();
+            String role = in.readString();
+            EntityId childId = in.readId();
+
+            version = in.readVarint();
+            rootVersion = in.readVarint();
+            createdAt = ValueCodec.INSTANT.read(in);
+            updatedAt = ValueCodec.INSTANT.read(in);
+            type = this.typeOf(in.readVarint(), ChildCreatedEvent.class);
+
+            // The event is only used to construct the child, so it is given the id of the snapshot
+            ChildCreatedEvent<T, Entity, ChildEntity, Object> event = new ChildCreatedEvent<>(
+                    this.factory, snapshotId, createdAt, id, version, parentId, childId, role,
+                    type.getValueCodec().read(in),
+                    (BiFunction) type.getFunction());
+            ChildEntity child = event.getConstructor().apply(event, event.getKernel());
+            child.restore(version, rootVersion, createdAt, updatedAt);
+            root.restoreChild(parentId, role, child);
+        }
+
+        return root;
+    }
+
+    private AggregateRootFactory.EventType typeOf(int tag, Class<?> eventClass) {
+        AggregateRootFactory.EventType type = this.getFactory().getEventType(tag);
+        if (type.getEventClass() != eventClass)
+            throw new IllegalArgumentException(String.format("Event type tag %d does not create an entity of the expected kind", tag));
+        return type;
+    }
+}
@@ -0,0 +1,113 @@
+package uk.co.codeloft.ripl.core;
+
+import java.util.List;
+
+/**
+ * Loads aggregate root entities in bulk, for example when importing them from another system.  Each entity is built
+ * from a command that creates it and a sequence of functions that build further commands (typically to create its
+ * children) from the versions that follow.
+ * <p>
+ * The entities are gathered into batches (see {@link AggregateRootFactory.Batch}).  When a batch holds at least a
+ * given number of events, its events are written to the repository in one batched append and exactly one snapshot of
+ * each entity, at its final version, is stored; the batch is then discarded, so the loader only ever holds a bounded
+ * number of entities in memory, however many are loaded.  The snapshot policy is not consulted, and the commands are
+ * not stored.
+ * <p>
+ * An entity is never split between batches, and {@link #close()} writes the last, partial, batch.  A loader is not
+ * safe for concurrent use.
+ * <p>
+ * If a batch cannot be written, the {@link BatchCommitException} thrown by {@link #flush()} (or by the {@link #load}
+ * or {@link #close()} that wrote it) lists the ids, as returned by {@link #load}, of the entities that were written
+ * and of those that were not.  The batch is discarded either way, and the loader carries on with a new one, so a load
+ * is resumed by loading the failed entities again from their source.  Some of the events of a failed entity may have
+ * been written, but the entity is loaded again under a new id, so these are never read as part of it.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that is loaded
+ */
+public class BulkLoader<T extends AggregateRoot> implements AutoCloseable {
+
+    public static final int DEFAULT_EVENTS_PER_BATCH = 8192;
+
+    private final AggregateRootFactory<T> factory;
+
+    private final int eventsPerBatch;
+
+    private AggregateRootFactory<T>.Batch batch;
+
+    private long loaded;
+
+    /**
+     * Create a loader that writes batches of the default size
+     * @param factory the factory that governs the entities
+     */
+    public BulkLoader(AggregateRootFactory<T> factory) {
+        this(factory, DEFAULT_EVENTS_PER_BATCH);
+    }
+
+    /**
+     * Create a loader
+     * @param factory the factory that governs the entities
+     * @param eventsPerBatch the number of events at which a batch is written
+     */
+    public BulkLoader(AggregateRootFactory<T> factory, int eventsPerBatch) {
+        if (eventsPerBatch < 1) throw new IllegalArgumentException("The number of events per batch must be positive");
+
+        this.factory = factory;
+        this.eventsPerBatch = eventsPerBatch;
+        this.batch = factory.newBulkBatch();
+    }
+
+    /**
+     * Load an aggregate root entity
+     * @param create the command that creates the entity
+     * @param steps build the commands that follow, each from the version produced by the one before
+     * @return the id of the entity
+     * @throws Exception if a pre-condition of a command fails, or a command cannot be built.  The entity is not
+     *                   loaded, but the batch it would have joined is left intact
+     * @throws BatchCommitException if the entity completed a batch that could not be written
+     */
+    public EntityId load(Command<T> create, List<? extends CommandFunction<T>> steps) throws Exception {
+        AggregateRootFactory<T>.Batch entity = this.factory.newBulkBatch();
+
+        // Build the entity in a batch of its own first, so that a failure part way through leaves nothing behind
+        T latest = entity.perform(create);
+        for (CommandFunction<T> step : steps) {
+            latest = entity.perform(step.commandFor(latest));
+        }
+
+        this.batch.append(entity);
+        this.loaded++;
+
+        if (this.batch.size() >= this.eventsPerBatch) this.flush();
+
+        return latest.getId();
+    }
+
+    /**
+     * Write the current batch, even if it is not full
+     * @throws BatchCommitException if the batch could not be written, listing the entities that were not
+     */
+    public void flush() {
+        if (this.batch.size() == 0) return;
+
+        AggregateRootFactory<T>.Batch full = this.batch;
+        this.batch = this.factory.newBulkBatch();
+        full.commit();
+    }
+
+    /**
+     * Get the number of entities loaded so far, including any not yet written and any in batches that failed
+     * @return the number of entities
+     */
+    public long getLoadedCount() {
+        return this.loaded;
+    }
+
+    /**
+     * Write the last batch
+     * @throws BatchCommitException if the batch could not be written, listing the entities that were not
+     */
+    @Override
+    public void close() {
+        this.flush();
+    }
+}
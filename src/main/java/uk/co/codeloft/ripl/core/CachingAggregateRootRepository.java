@@ -0,0 +1,315 @@
+package uk.co.codeloft.ripl.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * A repository that keeps the latest, fully hydrated, version of recently used aggregate root entities in front of
+ * another repository, so that retrieving an entity does not mean replaying its events each time.
+ * <p>
+ * The cache is bounded by weight, which is either the number of entries or an estimate of their size in bytes.  When
+ * it is full, the least recently used entries are evicted.  It is divided into segments, each with its own lock and a
+ * share of the maximum weight, so that readers of different entities seldom contend.
+ * <p>
+ * A cached entity is advanced in place as each of its events is stored, so the cache stays current as long as every
+ * event passes through this repository.  If an event cannot be applied to the cached version (because the version is
+ * not the one the event follows), or an event is rejected as a conflict, the entity is simply evicted and reloaded when
+ * next retrieved.
+ * <p>
+ * An entity that is not cached is loaded from the underlying repository without holding a lock, so an event may be
+ * stored for it while it is being loaded.  Each segment therefore keeps a count of the events stored for the entities
+ * it holds (striped by id, so that the counts take a fixed amount of space), and a loaded version is only cached if
+ * the count for its entity has not moved since the load began.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the repository holds
+ */
+public class CachingAggregateRootRepository<T extends AggregateRoot> implements AggregateRootRepository<T> {
+
+    public static final int SEGMENTS = 16;
+
+    /**
+     * The number of invalidation counts kept by each segment
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * Estimates the heap occupied by an aggregate root entity, its descendents and their index (see
+     * {@link AggregateRoot#getEstimatedFootprint()})
+     */
+    public static final ToLongFunction<AggregateRoot> ESTIMATED_BYTES = AggregateRoot::getEstimatedFootprint;
+
+    /**
+     * A least-recently-used map of cached entities with its own lock
+     */
+    private class Segment {
+        private final Map<EntityId, T> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long[] invalidations = new long[STRIPES];
+        private final long maxWeight;
+        private long weight;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        private synchronized T get(EntityId id) {
+            return this.entries.get(id);
+        }
+
+        /**
+         * Get the number of times an entity has been invalidated, to be passed to {@link #offer} once it is loaded
+         */
+        private synchronized long invalidations(EntityId id) {
+            return this.invalidations[stripeOf(id)];
+        }
+
+        /**
+         * Record that an event has been stored for an entity, so that any version of it being loaded is not cached
+         */
+        private synchronized void invalidate(EntityId id) {
+            this.invalidations[stripeOf(id)]++;
+        }
+
+        /**
+         * Cache a version that was loaded from the underlying repository, unless the entity has been invalidated since
+         * the load began or a later version is already cached
+         * @param invalidations the count given by {@link #invalidations} before the load began
+         */
+        private synchronized void offer(T version, long invalidations) {
+            if (this.invalidations[stripeOf(version.getId())] != invalidations) return;
+
+            T cached = this.entries.get(version.getId());
+            if (cached != null && cached.getVersion() > version.getVersion()) return;
+
+            this.replace(cached, version);
+        }
+
+        /**
+         * Replace the cached version of an entity with a snapshot of it, if it is cached and the snapshot is at least
+         * as recent
+         */
+        private synchronized void refresh(T snapshot) {
+            T cached = this.entries.get(snapshot.getId());
+            if (cached == null || cached.getVersion() > snapshot.getVersion()) return;
+
+            this.replace(cached, snapshot);
+        }
+
+        /**
+         * Advance a cached entity by applying an event to it, or evict it if the event does not follow it
+         */
+        private synchronized void advance(Event<T> event) {
+            this.invalidate(event.getAggregateId());
+
+            T cached = this.entries.get(event.getAggregateId());
+            if (cached == null) return;
+
+            T next = null;
+            if (cached.getVersion() == event.getVersion() - 1) {
+                try {
+                    next = event.applyTo(cached);
+                } catch (RuntimeException e) {
+                    // Leave it to be reloaded
+                }
+            }
+
+            this.replace(cached, next);
+            if (next == null) this.entries.remove(event.getAggregateId());
+        }
+
+        private synchronized void evict(EntityId id) {
+            this.invalidate(id);
+            this.replace(this.entries.remove(id), null);
+        }
+
+        private void replace(T cached, T version) {
+            if (cached != null) this.weight -= weigher.applyAsLong(cached);
+            if (version == null) return;
+
+            this.entries.put(version.getId(), version);
+            this.weight += weigher.applyAsLong(version);
+
+            // Evict the least recently used entries (but never the one just added) until the segment is within bounds
+            Iterator<T> eldest = this.entries.values().iterator();
+            while (this.weight > this.maxWeight && this.entries.size() > 1) {
+                this.weight -= weigher.applyAsLong(eldest.next());
+                eldest.remove();
+            }
+        }
+    }
+
+    private final AggregateRootRepository<T> delegate;
+
+    private final ToLongFunction<? super T> weigher;
+
+    private final List<Segment> segments;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Cache up to a number of entities
+     * @param delegate the repository that holds the entities
+     * @param maxEntries the maximum number of entities to cache
+     */
+    public CachingAggregateRootRepository(AggregateRootRepository<T> delegate, int maxEntries) {
+        this(delegate, maxEntries, root -> 1);
+    }
+
+    /**
+     * Cache entities up to a maximum total weight, for example using {@link #ESTIMATED_BYTES}
+     * @param delegate the repository that holds the entities
+     * @param maxWeight the maximum total weight of the cached entities
+     * @param weigher gives the weight of an entity
+     */
+    public CachingAggregateRootRepository(AggregateRootRepository<T> delegate, long maxWeight, ToLongFunction<? super T> weigher) {
+        this.delegate = delegate;
+        this.weigher = weigher;
+        this.segments = new ArrayList<>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments.add(new Segment(Math.max(1, maxWeight / SEGMENTS)));
+        }
+    }
+
+    private static int spread(EntityId aggregateId) {
+        int hash = aggregateId.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private Segment segmentFor(EntityId aggregateId) {
+        return this.segments.get(spread(aggregateId) & (SEGMENTS - 1));
+    }
+
+    /**
+     * Get the invalidation count of an entity within its segment, using the bits of its hash that do not choose the
+     * segment
+     */
+    private static int stripeOf(EntityId aggregateId) {
+        return (spread(aggregateId) >>> Integer.numberOfTrailingZeros(SEGMENTS)) & (STRIPES - 1);
+    }
+
+    @Override
+    public Optional<T> getLatest(EntityId id) {
+        Segment segment = this.segmentFor(id);
+
+        T cached = segment.get(id);
+        if (cached != null) {
+            this.hits.increment();
+            return Optional.of(cached);
+        }
+
+        this.misses.increment();
+        long invalidations = segment.invalidations(id);
+        Optional<T> latest = this.delegate.getLatest(id);
+        latest.ifPresent(version -> segment.offer(version, invalidations));
+        return latest;
+    }
+
+    @Override
+    public List<Event<T>> getEvents(EntityId aggregateId, int fromVersion) {
+        return this.delegate.getEvents(aggregateId, fromVersion);
+    }
+
+    @Override
+    public List<Event<T>> getEventsFrom(long fromPosition, int maxEvents) {
+        return this.delegate.getEventsFrom(fromPosition, maxEvents);
+    }
+
+    @Override
+    public void storeCommand(Command<T> command) {
+        this.delegate.storeCommand(command);
+    }
+
+    @Override
+    public void storeCommands(List<Command<T>> commands) {
+        this.delegate.storeCommands(commands);
+    }
+
+    @Override
+    public void storeEvent(Event<T> event) {
+        Segment segment = this.segmentFor(event.getAggregateId());
+
+        try {
+            this.delegate.storeEvent(event);
+        } catch (ConcurrencyException e) {
+            // The cached version may be the stale one that the event was built from
+            segment.evict(event.getAggregateId());
+            throw e;
+        }
+
+        segment.advance(event);
+    }
+
+    /**
+     * Store a batch of events by way of the underlying repository, then advance each cached entity they relate to.
+     * If the batch is rejected part way through, every entity it relates to is evicted.
+     * @param events the events to store
+     */
+    @Override
+    public void storeEvents(List<Event<T>> events) {
+        try {
+            this.delegate.storeEvents(events);
+        } catch (RuntimeException e) {
+            events.forEach(event -> this.segmentFor(event.getAggregateId()).evict(event.getAggregateId()));
+            throw e;
+        }
+
+        events.forEach(event -> this.segmentFor(event.getAggregateId()).advance(event));
+    }
+
+    /**
+     * Store an event by way of the underlying repository without waiting for it to become durable.  The cached entity
+     * is advanced as soon as the event is accepted, and evicted if the event then fails to become durable.
+     * @param event the event to store
+     * @return a future that completes once the event is durable
+     */
+    @Override
+    public CompletableFuture<Void> storeEventAsync(Event<T> event) {
+        CompletableFuture<Void> durable = this.delegate.storeEventAsync(event);
+
+        Segment segment = this.segmentFor(event.getAggregateId());
+        if (durable.isCompletedExceptionally()) {
+            segment.evict(event.getAggregateId());
+            return durable;
+        }
+
+        segment.advance(event);
+        return durable.whenComplete((ignored, e) -> {
+            // A version loaded before the event became visible to readers of the underlying repository is stale too
+            if (e != null) segment.evict(event.getAggregateId()); else segment.invalidate(event.getAggregateId());
+        });
+    }
+
+    /**
+     * Store a snapshot by way of the underlying repository.  If the snapshot is at least as recent as the cached
+     * version of its entity, it replaces it, so that the cached version records the snapshot.
+     * @param snapshot the snapshot to store
+     */
+    @Override
+    public void storeSnapshot(T snapshot) {
+        this.delegate.storeSnapshot(snapshot);
+        this.segmentFor(snapshot.getId()).refresh(snapshot);
+    }
+
+    /**
+     * Get the number of retrievals that were satisfied from the cache
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Get the number of retrievals that had to be passed to the underlying repository
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+}
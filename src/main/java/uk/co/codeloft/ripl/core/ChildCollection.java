@@ -1,29 +1,131 @@
 package uk.co.codeloft.ripl.core;
 
-import lombok.Getter;
-import lombok.Setter;
-
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Objects;
 
-@Getter
-@Setter
+/**
+ * The children of an entity that relate to it through one role.  A collection is immutable: adding or replacing a
+ * child yields a new collection that shares the rest of its structure with the old one, so every version of the parent
+ * can keep its own collection without copying it.
+ * <p>
+ * A collection also maintains an {@link IndexTree} for each {@link ChildIndex} declared for its role.
+ * @param <T> the type of the children
+ */
 public class ChildCollection<T extends ChildEntity> {
 
-    private AtomicInteger lastId;
-    private List<T> collection;
+    private static final ChildCollection<?> EMPTY = new ChildCollection<>(PersistentVector.empty(), List.of(), new IndexTree[0]);
+
+    private final PersistentVector<T> children;
+
+    /**
+     * The indexes maintained by this collection, and their trees (in the same order)
+     */
+    private final List<ChildIndex<?, ?>> indexes;
+    private final IndexTree[] trees;
 
-    protected ChildCollection() {
-        collection = new ArrayList<>();
-        lastId = new AtomicInteger();
+    private ChildCollection(PersistentVector<T> children, List<ChildIndex<?, ?>> indexes, IndexTree[] trees) {
+        this.children = children;
+        this.indexes = indexes;
+        this.trees = trees;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <T extends ChildEntity> ChildCollection<T> empty() {
+        return (ChildCollection<T>) EMPTY;
+    }
+
+    /**
+     * Get an empty collection that maintains the given indexes
+     * @param indexes the indexes
+     * @return the collection
+     */
+    protected static <T extends ChildEntity> ChildCollection<T> empty(List<ChildIndex<?, ?>> indexes) {
+        if (indexes.isEmpty()) return empty();
+
+        IndexTree[] trees = new IndexTree[indexes.size()];
+        Arrays.fill(trees, IndexTree.EMPTY);
+        return new ChildCollection<>(PersistentVector.empty(), List.copyOf(indexes), trees);
     }
 
     protected List<T> asList() {
-        return this.collection;
+        return this.children.asList();
     }
 
-    protected void add(T child) {
-        collection.add(child);
+    /**
+     * Get the number of children in this collection
+     * @return the number of children
+     */
+    public int size() {
+        return this.children.size();
+    }
+
+    /**
+     * Get a collection with a child added at the end
+     * @param child the child to add
+     * @return a new collection
+     */
+    protected ChildCollection<T> with(T child) {
+        int slot = this.children.size();
+
+        IndexTree[] trees = this.trees.clone();
+        for (int i = 0; i < trees.length; i++) {
+            trees[i] = trees[i].insert(this.indexes.get(i).keyOf(child), slot);
+        }
+
+        return new ChildCollection<>(this.children.append(child), this.indexes, trees);
+    }
+
+    /**
+     * Get a collection with the child in a given slot replaced by a new version
+     * @param slot the position of the child in this collection
+     * @param child the new version of the child
+     * @return a new collection
+     */
+    protected ChildCollection<T> replace(int slot, T child) {
+        T previous = this.children.get(slot);
+
+        // Only the indexes whose keys have changed need to be touched
+        IndexTree[] trees = this.trees;
+        for (int i = 0; i < trees.length; i++) {
+            Object previousKey = this.indexes.get(i).keyOf(previous);
+            Object key = this.indexes.get(i).keyOf(child);
+            if (Objects.equals(previousKey, key)) continue;
+
+            if (trees == this.trees) trees = this.trees.clone();
+            trees[i] = trees[i].remove(previousKey, slot).insert(key, slot);
+        }
+
+        return new ChildCollection<>(this.children.set(slot, child), this.indexes, trees);
+    }
+
+    /**
+     * Find the children whose keys, according to an index, lie in a range.  If this collection does not maintain the
+     * index (because the index was declared with another factory) the children are scanned instead.
+     * @param index the index
+     * @param from the lowest key, or {@link IndexTree#UNBOUNDED}
+     * @param to the highest key, or {@link IndexTree#UNBOUNDED}
+     * @param toInclusive whether the highest key is itself included
+     * @return the matching children
+     */
+    @SuppressWarnings("unchecked")
+    <C extends ChildEntity> List<C> find(ChildIndex<C, ?> index, Object from, Object to, boolean toInclusive) {
+        List<C> result = new ArrayList<>();
+        List<T> children = this.asList();
+
+        int i = this.indexes.indexOf(index);
+        if (i >= 0) {
+            this.trees[i].visit(from, to, toInclusive, slot -> result.add((C) children.get(slot)));
+            return result;
+        }
+
+        for (T child : children) {
+            Comparable<Object> key = (Comparable<Object>) index.keyOf(child);
+            boolean aboveFrom = from == IndexTree.UNBOUNDED || IndexTree.compareKeys(key, (Comparable<Object>) from) >= 0;
+            int c = to == IndexTree.UNBOUNDED ? -1 : IndexTree.compareKeys(key, (Comparable<Object>) to);
+            if (aboveFrom && (c < 0 || (c == 0 && toInclusive))) result.add((C) child);
+        }
+        return result;
     }
 }
@@ -1,7 +1,11 @@
 package uk.co.codeloft.ripl.core;
 
+import lombok.Getter;
+
+import java.time.Instant;
 import java.util.function.BiFunction;
 
+@Getter
 public class ChildCreatedEvent<R extends AggregateRoot, P extends Entity, C extends ChildEntity, K> extends Event<R> {
 
     private final BiFunction<ChildCreatedEvent<R, P, C, K>, K, C> constructor;
@@ -9,6 +13,27 @@ public class ChildCreatedEvent<R extends AggregateRoot, P extends Entity, C exte
     private final P parent;
     private final String role;
 
+    /**
+     * The id of the role in the factory's {@link AggregateSchema}, resolved once when the event is built
+     */
+    private final int roleId;
+
+    /**
+     * The version of the aggregate root entity that the child is added to
+     */
+    private final R aggregateRoot;
+
+    /**
+     * The id of the parent entity, used to locate the parent when the event is replayed
+     */
+    private final EntityId parentId;
+
+    /**
+     * The id of the child entity created by this event.  It is allocated here so that replaying the event always
+     * yields the same identity.
+     */
+    private final EntityId childId;
+
     public ChildCreatedEvent(
             AggregateRootFactory<R> factory,
             CreateChildCommand<R, P, C, K> command,
@@ -16,9 +41,38 @@ public class ChildCreatedEvent<R extends AggregateRoot, P extends Entity, C exte
             String role,
             K kernel,
             BiFunction<ChildCreatedEvent<R, P, C, K>, K, C> ctor) {
-        super(factory, command);
+        super(factory, command, command.getRoot().getId(), command.getRoot().getVersion() + 1);
+        this.aggregateRoot = command.getRoot();
         this.parent = parent;
+        this.parentId = parent.getId();
+        this.childId = factory.getIdGenerator().nextId();
         this.role = role;
+        this.roleId = command.getRoleId();
+        this.constructor = ctor;
+        this.kernel = kernel;
+    }
+
+    /**
+     * Re-create an instance that was previously stored
+     */
+    protected ChildCreatedEvent(
+            AggregateRootFactory<R> factory,
+            EntityId id,
+            Instant timestamp,
+            EntityId aggregateId,
+            int version,
+            EntityId parentId,
+            EntityId childId,
+            String role,
+            K kernel,
+            BiFunction<ChildCreatedEvent<R, P, C, K>, K, C> ctor) {
+        super(factory, id, timestamp, aggregateId, version);
+        this.aggregateRoot = null;
+        this.parent = null;
+        this.parentId = parentId;
+        this.childId = childId;
+        this.role = role;
+        this.roleId = factory.getSchema().getRoleId(role);
         this.constructor = ctor;
         this.kernel = kernel;
     }
@@ -30,26 +84,18 @@ public class ChildCreatedEvent<R extends AggregateRoot, P extends Entity, C exte
 
     @Override
     public R apply() {
-        // Get the root of the parent (type = R)
-        R root = (R) this.parent.getRoot();
-
-        // Create a new child (type = C) with a kernel (type = K)
-        C newChild = this.constructor.apply(this, kernel);
-
-        // Add the child to the immediate parent (type = P)
-        this.parent.addChild(this.role, newChild);
-
-        // Return the aggregate root
-        return root;
+        return this.applyTo(this.aggregateRoot);
     }
 
     @Override
-    public boolean requiresSnapshot() {
-        R root = (R) this.parent.getRoot();
+    @SuppressWarnings("unchecked")
+    public R applyTo(R root) {
+        // Create a new child (type = C) with a kernel (type = K)
+        C newChild = this.constructor.apply(this, kernel);
 
-        return
-                root.getSnapshotInterval() == 0 ||
-                root.getVersion() % root.getSnapshotInterval() == 0;
+        // Add the child to the immediate parent in the version being applied to, and return the new version of the
+        // aggregate root
+        return (R) root.addChild(this.parentId, this.roleId, newChild);
     }
 
 }
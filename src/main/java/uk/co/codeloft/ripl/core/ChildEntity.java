@@ -2,15 +2,57 @@ package uk.co.codeloft.ripl.core;
 
 import lombok.Getter;
 
-import java.util.UUID;
-
+/**
+ * The base class for entities that are the children of other entities within an aggregate.
+ * <p>
+ * A child holds no reference to its aggregate root entity, nor to its root's id.  A version of a child is shared by
+ * every version of the root in which it is unchanged, so a reference would keep the oldest of those root versions
+ * reachable for as long as the child is, and would not say which version the child is being read through.  Code that
+ * works on a child always reaches it through a version of the root (and the events and commands that change it carry
+ * the id of their aggregate), so the root is resolved from there and its descendents are found by id through its
+ * index.
+ */
 @Getter
 public class ChildEntity extends Entity {
 
-    private final Entity parent;
+    /**
+     * The id of the parent of this entity.  A child refers to its parent by id rather than by reference because it is
+     * shared by every version of its parent in which it is unchanged; the parent in a given version can be found with
+     * {@link AggregateRoot#getDescendent(EntityId, Class)}.
+     */
+    private EntityId parentId;
+
+    /**
+     * The role through which the parent relates to this entity
+     */
+    private String role;
+
+    /**
+     * The position of the parent's collection of children for the role, in the layout of the parent's class
+     */
+    private int collectionSlot;
+
+    /**
+     * The position of this entity in its parent's collection of children for the role
+     */
+    private int slot;
 
     public ChildEntity(ChildCreatedEvent<?, ?, ?, ?> evt) {
-        super(evt.getFactory(), UUID.randomUUID().toString());
-        this.parent = evt.getCommand().getParent();
+        super(evt.getFactory(), evt.getChildId());
+    }
+
+    /**
+     * Attach this instance to its parent.  This is done when the entity is added to its parent (see
+     * {@link Entity#addChild(int, ChildEntity)})
+     * @param parent the parent entity
+     * @param role the role through which the parent relates to this entity
+     * @param collectionSlot the position of the parent's collection of children for the role
+     * @param slot the position of this entity in the parent's collection of children for the role
+     */
+    void attachTo(Entity parent, String role, int collectionSlot, int slot) {
+        this.parentId = parent.getId();
+        this.role = role;
+        this.collectionSlot = collectionSlot;
+        this.slot = slot;
     }
 }
@@ -0,0 +1,81 @@
+package uk.co.codeloft.ripl.core;
+
+import lombok.Getter;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * An index of the children that relate to their parents through one role, by a key taken from each child (typically
+ * an attribute of its kernel).  An index is declared with {@link AggregateRootFactory#indexChildren(String, Function)}
+ * and is maintained as children are added and updated, so that children can be found by key, or by a range of keys,
+ * without scanning them all.
+ * @param <C> the type of the children
+ * @param <K> the type of the key
+ */
+@Getter
+public class ChildIndex<C extends ChildEntity, K extends Comparable<? super K>> {
+
+    /**
+     * The role of the parent in the relationships with the indexed children
+     */
+    private final String role;
+
+    /**
+     * The id of the role, assigned when the schema is frozen
+     */
+    private int roleId = -1;
+
+    /**
+     * Takes the key from a child
+     */
+    private final Function<? super C, ? extends K> key;
+
+    ChildIndex(String role, Function<? super C, ? extends K> key) {
+        this.role = role;
+        this.key = key;
+    }
+
+    /**
+     * Record the id given to the role of this index by the {@link AggregateSchema} that holds it
+     * @param roleId the id of the role
+     */
+    void bind(int roleId) {
+        this.roleId = roleId;
+    }
+
+    /**
+     * Find the children of a parent that have a given key
+     * @param parent the parent
+     * @param key the key, which may be {@code null}
+     * @return the matching children, in the order they were added.  The list may be empty
+     */
+    public List<C> find(Entity parent, K key) {
+        return this.collectionOf(parent).find(this, key, key, true);
+    }
+
+    /**
+     * Find the children of a parent whose keys lie in a range
+     * @param parent the parent
+     * @param from the lowest key (inclusive), or {@code null} for no lower bound
+     * @param to the highest key (exclusive), or {@code null} for no upper bound
+     * @return the matching children, ordered by key.  The list may be empty
+     */
+    public List<C> findRange(Entity parent, K from, K to) {
+        return this.collectionOf(parent).find(
+                this,
+                from == null ? IndexTree.UNBOUNDED : from,
+                to == null ? IndexTree.UNBOUNDED : to,
+                false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ChildCollection<C> collectionOf(Entity parent) {
+        return (ChildCollection<C>) (ChildCollection<?>) parent.childCollection(this.roleId);
+    }
+
+    @SuppressWarnings("unchecked")
+    Object keyOf(ChildEntity child) {
+        return this.key.apply((C) child);
+    }
+}
@@ -2,44 +2,70 @@ package uk.co.codeloft.ripl.core;
 
 import lombok.Getter;
 
+import java.time.Instant;
+import java.util.function.BiConsumer;
+
 @Getter
 public class ChildUpdatedEvent<R extends AggregateRoot, C extends ChildEntity, O> extends Event<R> {
 
     private final C targetChild;
     private final O param;
 
+    /**
+     * The id of the child entity that this event updates
+     */
+    private final EntityId childId;
+
+    /**
+     * The function that applies the update to a version of the child entity
+     */
+    private final BiConsumer<C, O> applyFunc;
+
     private final R aggregateRoot;
     private final UpdateChildCommand<R, C, O> command;
 
     public ChildUpdatedEvent(AggregateRootFactory<R> factory, UpdateChildCommand<R, C, O> cmd) {
-        super(factory, cmd);
+        super(factory, cmd, cmd.getTargetRoot().getId(), cmd.getTargetRoot().getVersion() + 1);
         this.targetChild = cmd.getTargetChild();
+        this.childId = cmd.getTargetChild().getId();
+        this.applyFunc = cmd.getApplyFunc();
         this.param = cmd.getParam();
         this.command = cmd;
         aggregateRoot = cmd.getTargetRoot();
     }
 
+    /**
+     * Re-create an instance that was previously stored
+     */
+    protected ChildUpdatedEvent(
+            AggregateRootFactory<R> factory,
+            EntityId id,
+            Instant timestamp,
+            EntityId aggregateId,
+            int version,
+            EntityId childId,
+            BiConsumer<C, O> applyFunc,
+            O param) {
+        super(factory, id, timestamp, aggregateId, version);
+        this.targetChild = null;
+        this.childId = childId;
+        this.applyFunc = applyFunc;
+        this.param = param;
+        this.command = null;
+        this.aggregateRoot = null;
+    }
+
     @Override
     public R apply() {
-
-        // Maybe: Check that the child exists in the target root??
-        // - here we need to get a reference to the SAME child from the new copy
-
-        // Get the command
-        UpdateChildCommand<R, C, O> cmd = (UpdateChildCommand<R, C,  O>) this.getCommand();
-
-        // Call the apply function
-        cmd.getApplyFunc().accept(this.targetChild, this.param);
-        this.targetChild.mutate();
-
-        // Return the root
-        return this.aggregateRoot;
+        return this.applyTo(this.aggregateRoot);
     }
 
     @Override
-    public boolean requiresSnapshot() {
-        return
-                this.aggregateRoot.getSnapshotInterval() == 0 ||
-                this.aggregateRoot.getVersion() % this.aggregateRoot.getSnapshotInterval() == 0;
+    @SuppressWarnings("unchecked")
+    public R applyTo(R root) {
+
+        // Call the apply function on a copy of the SAME child in the version being applied to, and return the new
+        // version of the root that holds it
+        return (R) root.update(this.childId, child -> this.applyFunc.accept((C) child, this.param));
     }
 }
@@ -2,7 +2,7 @@ package uk.co.codeloft.ripl.core;
 
 import lombok.Getter;
 
-import java.util.UUID;
+import java.util.OptionalInt;
 
 /**
  * A command that can be performed on an AggregateRoot entity
@@ -17,22 +17,53 @@ public abstract class Command<T extends AggregateRoot> {
         }
     }
 
-    private final String id;
+    private final EntityId id;
 
     private final AggregateRootFactory<T> origin;
 
+    /**
+     * The version that the target aggregate root entity is expected to be at when this command is performed, or
+     * {@code null} if the command may be performed on whichever version it was built from
+     */
+    private Integer expectedVersion;
+
     protected Command(AggregateRootFactory<T> origin)
     {
-        this.id = UUID.randomUUID().toString();
+        this.id = origin.getIdGenerator().nextId();
         this.origin = origin;
     }
 
+    /**
+     * Require the target aggregate root entity to be at a given version when this command is performed.  If it is
+     * not, or if another event is appended to its stream first, the command fails with a {@link ConcurrencyException}.
+     * @param version the expected version
+     * @return this command
+     */
+    public Command<T> expectVersion(int version) {
+        this.expectedVersion = version;
+        return this;
+    }
+
+    /**
+     * Get the version that the target aggregate root entity is expected to be at when this command is performed
+     * @return the expected version, if there is one
+     */
+    public OptionalInt getExpectedVersion() {
+        return this.expectedVersion == null ? OptionalInt.empty() : OptionalInt.of(this.expectedVersion);
+    }
+
     /**
      * No-op implementation for simple commands to inherit
      * @throws PreConditionException
      */
     public void checkPreConditions() throws PreConditionException {}
 
+    /**
+     * Get the id of the aggregate root entity that this command targets
+     * @return the id, or {@code null} if the command creates a new aggregate root entity
+     */
+    public abstract EntityId getAggregateId();
+
     /**
      * Create an event reflecting successful execution of this command
      * @return
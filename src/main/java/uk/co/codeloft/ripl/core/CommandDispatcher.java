@@ -0,0 +1,226 @@
+package uk.co.codeloft.ripl.core;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Routes commands to a mailbox per aggregate root entity, so that each entity has a single writer and commands on it
+ * need no locks.  A mailbox is drained by a task submitted to an {@link Executor} only while it holds commands, so an
+ * idle entity occupies no thread; hundreds of thousands of mostly-idle entities can share a small pool (or, where the
+ * platform provides them, virtual threads, by supplying a virtual-thread-per-task executor).
+ * <p>
+ * The latest version of an entity is kept resident in its mailbox while the entity is active, so consecutive commands
+ * do not retrieve it from the repository.  A mailbox that has been idle for longer than the idle timeout is released,
+ * along with its resident entity.
+ * <p>
+ * The dispatcher assumes that it is the only writer of the entities it dispatches to.  If another writer moves an
+ * entity on, the next command on it fails with a {@link ConcurrencyException} and the resident version is discarded.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the commands relate to
+ */
+public class CommandDispatcher<T extends AggregateRoot> implements AutoCloseable {
+
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(1);
+
+    /**
+     * A command waiting in a mailbox, and the future that reports its outcome
+     */
+    private class PendingCommand {
+        private final CommandFunction<T> function;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private PendingCommand(CommandFunction<T> function) {
+            this.function = function;
+        }
+    }
+
+    /**
+     * The commands waiting for one aggregate root entity, and its resident latest version
+     */
+    private class Mailbox {
+        private final EntityId aggregateId;
+        private final Queue<PendingCommand> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long lastActive = System.nanoTime();
+
+        /**
+         * Only accessed by the task draining this mailbox
+         */
+        private T resident;
+
+        /**
+         * Set if an event failed to become durable, so that the resident version can no longer be trusted
+         */
+        private volatile boolean stale;
+
+        private Mailbox(EntityId aggregateId) {
+            this.aggregateId = aggregateId;
+        }
+
+        private void schedule() {
+            if (this.scheduled.compareAndSet(false, true)) executor.execute(this::drain);
+        }
+
+        private void drain() {
+            do {
+                PendingCommand next;
+                while ((next = this.pending.poll()) != null) {
+                    CompletableFuture<T> result = next.result;
+                    try {
+                        this.perform(next.function).whenComplete((entity, e) -> {
+                            if (e == null) result.complete(entity); else result.completeExceptionally(e);
+                        });
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+
+                this.lastActive = System.nanoTime();
+                this.scheduled.set(false);
+
+                // A command may have arrived after the queue was found to be empty but before the flag was cleared
+            } while (!this.pending.isEmpty() && this.scheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * Perform a command on the resident version without waiting for its event to become durable, so the next
+         * command in the mailbox can be built on the new version while the event is being written
+         */
+        private CompletableFuture<T> perform(CommandFunction<T> function) throws Exception {
+            if (this.stale) {
+                this.stale = false;
+                this.resident = null;
+            }
+            if (this.resident == null) this.resident = factory.getLatest(this.aggregateId);
+
+            try {
+                AggregateRootFactory.Submission<T> submission = factory.submit(function.commandFor(this.resident));
+                this.resident = submission.getApplied();
+                return submission.getDurable().whenComplete((entity, e) -> {
+                    if (e != null) this.stale = true;
+                });
+            } catch (ConcurrencyException e) {
+                this.resident = null;
+                throw e;
+            }
+        }
+
+        private boolean isIdleSince(long cutoff) {
+            return !this.scheduled.get() && this.pending.isEmpty() && this.lastActive < cutoff;
+        }
+    }
+
+    private final AggregateRootFactory<T> factory;
+
+    private final Executor executor;
+
+    private final long idleTimeoutNanos;
+
+    private final Map<EntityId, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * Create a dispatcher that drains mailboxes on the common fork-join pool, with the default idle timeout
+     * @param factory the factory that performs the commands
+     */
+    public CommandDispatcher(AggregateRootFactory<T> factory) {
+        this(factory, ForkJoinPool.commonPool(), DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Create a dispatcher
+     * @param factory the factory that performs the commands
+     * @param executor the executor on which mailboxes are drained
+     * @param idleTimeout the time after which an idle mailbox, and its resident entity, are released
+     */
+    public CommandDispatcher(AggregateRootFactory<T> factory, Executor executor, Duration idleTimeout) {
+        this.factory = factory;
+        this.executor = executor;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+
+        ScheduledThreadPoolExecutor sweeper = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "ripl-mailbox-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1L, idleTimeout.toMillis() / 2);
+        sweeper.scheduleWithFixedDelay(this::releaseIdleMailboxes, period, period, TimeUnit.MILLISECONDS);
+        this.sweeper = sweeper;
+    }
+
+    /**
+     * Dispatch a command to an existing aggregate root entity.  The command is built, from the latest version of the
+     * entity, by the task that drains the entity's mailbox, after every command dispatched to it before.
+     * @param aggregateId the id of the target aggregate root entity
+     * @param function builds the command from the latest version of the entity
+     * @return a future that completes with the new version of the entity, or exceptionally if the command could not
+     *         be built or performed
+     */
+    public CompletableFuture<T> dispatch(EntityId aggregateId, CommandFunction<T> function) {
+        PendingCommand command = new PendingCommand(function);
+
+        // Enqueue atomically with respect to the release of an idle mailbox, so that a command is never added to a
+        // mailbox that has just been discarded
+        Mailbox mailbox = this.mailboxes.compute(aggregateId, (id, existing) -> {
+            Mailbox target = existing == null ? new Mailbox(id) : existing;
+            target.pending.add(command);
+            return target;
+        });
+        mailbox.schedule();
+
+        return command.result;
+    }
+
+    /**
+     * Dispatch a command that creates a new aggregate root entity.  As the entity has no mailbox yet, the command is
+     * simply performed on the executor.
+     * @param command the command
+     * @return a future that completes with the new entity, or exceptionally if the command could not be performed
+     */
+    public CompletableFuture<T> dispatchCreate(Command<T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        this.executor.execute(() -> {
+            try {
+                result.complete(this.factory.perform(command));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        return result;
+    }
+
+    private void releaseIdleMailboxes() {
+        long cutoff = System.nanoTime() - this.idleTimeoutNanos;
+        for (EntityId aggregateId : this.mailboxes.keySet()) {
+            this.mailboxes.computeIfPresent(aggregateId, (id, mailbox) -> mailbox.isIdleSince(cutoff) ? null : mailbox);
+        }
+    }
+
+    /**
+     * Get the number of mailboxes currently held, whether active or idle
+     * @return the number of mailboxes
+     */
+    public int getMailboxCount() {
+        return this.mailboxes.size();
+    }
+
+    /**
+     * Stop releasing idle mailboxes.  The executor is not shut down, as it may be shared.
+     */
+    @Override
+    public void close() {
+        this.sweeper.shutdownNow();
+    }
+}
@@ -0,0 +1,10 @@
+package uk.co.codeloft.ripl.core;
+
+/**
+ * Builds a command from the latest version of its target aggregate root entity
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the command relates to
+ */
+@FunctionalInterface
+public interface CommandFunction<T extends AggregateRoot> {
+    Command<T> commandFor(T latest) throws Exception;
+}
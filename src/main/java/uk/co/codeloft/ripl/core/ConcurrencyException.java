@@ -0,0 +1,17 @@
+package uk.co.codeloft.ripl.core;
+
+/**
+ * Represents an attempt to append an event to the stream of an aggregate root entity that has moved on from the
+ * version the event was based on, because another event was appended first.  The command may be retried against the
+ * latest version.
+ */
+public class ConcurrencyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConcurrencyException(EntityId aggregateId, int expectedVersion, int actualVersion) {
+        super(String.format(
+                "Aggregate root entity [%s] is at version %d, not the expected version %d",
+                aggregateId, actualVersion, expectedVersion));
+    }
+}
@@ -14,18 +14,29 @@ import java.util.function.Predicate;
 @Getter
 public class CreateChildCommand<R extends AggregateRoot, P extends Entity, C extends ChildEntity, K> extends Command<R> {
 
+    private final R root;
     private final P parent;
     private final String role;
+
+    /**
+     * The id of the role in the factory's {@link AggregateSchema}, or -1 if it does not identify a relationship.  It is
+     * resolved once, here, and carried by the event, so that adding the child involves no lookup by role
+     */
+    private final int roleId;
+
     private final K kernel;
     BiFunction<ChildCreatedEvent<R, P, C, K>, K, C> constructor;
     Predicate<K> preCondition;
 
 
-    // NOTE - we don't need to pass in the AggregateRoot as target because it should be derivable from the P parent
-    public CreateChildCommand(AggregateRootFactory<R> origin, Predicate<K> preCondition, K kernel, P parent, String role, BiFunction<ChildCreatedEvent<R, P, C, K>, K, C> ctor) {
+    // NOTE - the AggregateRoot is passed in as well as the P parent because a version of a child entity is shared by
+    // every version of the aggregate in which it is unchanged, so the root cannot be derived from it
+    public CreateChildCommand(AggregateRootFactory<R> origin, Predicate<K> preCondition, K kernel, R root, P parent, String role, BiFunction<ChildCreatedEvent<R, P, C, K>, K, C> ctor) {
         super(origin);
+        this.root = root;
         this.parent = parent;
         this.role = role;
+        this.roleId = origin.getSchema().getRoleId(role);
         this.kernel = kernel;
         this.constructor = ctor;
         this.preCondition = preCondition;
@@ -35,31 +46,21 @@ public class CreateChildCommand<R extends AggregateRoot, P extends Entity, C ext
     public void checkPreConditions() throws PreConditionException {
         super.checkPreConditions();
 
-        // Use the role to get the definition of the relationship
-        //AggregateRoot.ParentChildRelationship rel = AggregateRoot.allowedRelationships.get(role);
-        AggregateRootFactory.ParentChildRelationship rel = this.getOrigin().getAllowedChildRelationships().get(role);
-
-        Class<?> parentClass = rel.getParentClass();
-        Class<?> childClass = rel.getChildClass();
-
-        /*
-        Class<?> parentClass = parent.getClass();
-        Class<?> childClass = kernel.getClass().getEnclosingClass();
-
-         */
-
-
-        if (!this.getOrigin().isAllowedRelationship(parentClass, childClass, role))
-
-        //if (!AggregateRoot.isAllowedRelationship(parentClass, childClass, role))
+        // The layout of the parent's class, compiled by the schema, says whether it is the parent in the relationship
+        if (this.roleId < 0 || !this.parent.isParentIn(this.roleId))
             throw new AggregateRootFactory.InvalidRelationshipInstanceException(
                     String.format(
-                            "Invalid attempt to relate %s with %s using role %s%n",
-                            parentClass.getName(), childClass.getName(), role));
+                            "Invalid attempt to relate %s with a child using role %s%n",
+                            this.parent.getClass().getName(), role));
 
         if (!preCondition.test(kernel)) throw new PreConditionException("Child pre-condition failed");
     }
 
+    @Override
+    public EntityId getAggregateId() {
+        return this.root.getId();
+    }
+
     @Override
     public ChildCreatedEvent<R, P, C, K> getEvent() {
         return new ChildCreatedEvent<>(
@@ -1,5 +1,6 @@
 package uk.co.codeloft.ripl.core;
 
+import lombok.Getter;
 
 import java.util.function.BiFunction;
 import java.util.function.Predicate;
@@ -7,6 +8,7 @@ import java.util.function.Predicate;
 /**
  * A template for a CreateChildCommand for a Child Entity
  */
+@Getter
 public class CreateChildCommandTemplate<R extends AggregateRoot, P extends Entity, C extends ChildEntity, K> {
 
     private final Predicate<K> preCondition;
@@ -23,13 +25,13 @@ public class CreateChildCommandTemplate<R extends AggregateRoot, P extends Entit
         this.constructor = constructor;
     }
 
-    //TODO: we might be able to get rid of R as an explicit parameter as it should be derivable from the parent
     public CreateChildCommand<R, P, C, K> using(R root, P parent, K kernel, String role) throws AggregateRootFactory.InvalidRelationshipInstanceException {
 
         return new CreateChildCommand<>(
                 this.factory,
                 this.preCondition,
                 kernel,
+                root,
                 parent,
                 role,
                 this.constructor);
@@ -33,6 +33,11 @@ public class CreateCommand<T extends AggregateRoot, K> extends Command<T> {
         if (!preConditionFunc.test(kernel)) throw new PreConditionException("Pre-Condition failed");
     }
 
+    @Override
+    public EntityId getAggregateId() {
+        return null;
+    }
+
     @Override
     public CreatedEvent<T, K> getEvent() {
         return new CreatedEvent<>( this.getOrigin(), this, this.constructor);
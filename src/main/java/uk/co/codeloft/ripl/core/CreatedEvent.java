@@ -1,13 +1,16 @@
 package uk.co.codeloft.ripl.core;
 
+import lombok.Getter;
+
+import java.time.Instant;
 import java.util.function.BiFunction;
-import java.util.function.Function;
 
 /**
  * An event reflecting the construction of a sub-type of {@link AggregateRoot}
  * @param <T> the sub-type of {@link AggregateRoot} entity
  * @param <K> the type of the 'kernel' object from which the entity is constructed
  */
+@Getter
 public class CreatedEvent<T extends AggregateRoot, K> extends Event<T> {
 
     /**
@@ -22,7 +25,8 @@ public class CreatedEvent<T extends AggregateRoot, K> extends Event<T> {
     private K kernel;
 
     /**
-     * Construct an instance of this event type
+     * Construct an instance of this event type.  The identity of the new aggregate root entity is allocated here
+     * (rather than by the entity itself) so that replaying the event always yields the same identity.
      * @param createCmd the command that led to the creation of this event
      * @param ctor the constructor needed to create the first version of the AggregateRoot
      */
@@ -30,23 +34,46 @@ public class CreatedEvent<T extends AggregateRoot, K> extends Event<T> {
             AggregateRootFactory<T> factory,
             CreateCommand<T, K> createCmd,
             BiFunction<CreatedEvent<T, K>, K, T> ctor) {
-        super(factory, createCmd);
+        super(factory, createCmd, factory.getIdGenerator().nextId(), 1);
         this.kernel = createCmd.getKernel();
         this.constructor = ctor;
     }
 
+    /**
+     * Re-create an instance that was previously stored
+     * @param kernel the 'kernel' object used to seed the creation of the aggregate root entity
+     * @param ctor the constructor needed to create the first version of the AggregateRoot
+     */
+    protected CreatedEvent(
+            AggregateRootFactory<T> factory,
+            EntityId id,
+            Instant timestamp,
+            EntityId aggregateId,
+            K kernel,
+            BiFunction<CreatedEvent<T, K>, K, T> ctor) {
+        super(factory, id, timestamp, aggregateId, 1);
+        this.kernel = kernel;
+        this.constructor = ctor;
+    }
+
     /**
      * Apply this event, creating an instance of the sub-type of {@link AggregateRoot}
      * @return a new instance of the sub-type of {@link AggregateRoot}
      */
     @Override
     public T apply() {
-        return constructor.apply(this, this.kernel);
+        return this.applyTo(null);
     }
 
+    /**
+     * Apply this event, creating an instance of the sub-type of {@link AggregateRoot}.  There is no preceding version
+     * so the {@code root} parameter is ignored.
+     * @param root ignored
+     * @return a new instance of the sub-type of {@link AggregateRoot}
+     */
     @Override
-    public boolean requiresSnapshot() {
-        return true;
+    public T applyTo(T root) {
+        return constructor.apply(this, this.kernel);
     }
 
 
@@ -0,0 +1,263 @@
+package uk.co.codeloft.ripl.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable index of the descendents of one version of an aggregate root entity, by id and by ordinal.
+ * <p>
+ * Each descendent is given an ordinal when it is added, and each version holds its descendents in a
+ * {@link PersistentVector} by ordinal, so a new version shares all but the changed path with the one before.  The table
+ * from id to ordinal only ever grows, so it is shared by every version descended from the one that created it; a
+ * version ignores any ordinal beyond its own size.  If two versions are evolved from the same version (as happens when
+ * concurrent writers race) only the first to add a descendent keeps extending the shared table, and the other takes
+ * its own copy - unless it is adding the same descendent, as when events are replayed from a snapshot.
+ */
+final class DescendentIndex {
+
+    /**
+     * The ordinals allocated along one line of versions, in an open-addressing hash table that holds the two halves of
+     * each id and its ordinal in primitive arrays, rather than a node object per entry.  The table starts small and is
+     * doubled as it fills, so it stays in proportion to the number of descendents.
+     * <p>
+     * Only one thread adds to a table at a time (the one whose claim of the next ordinal succeeded), while any number
+     * may read it.  An entry's ordinal is written last, with release semantics, and read first, with acquire
+     * semantics, so a reader never sees a partly written entry; an entry that is still being written looks empty, but
+     * as entries are never removed, it cannot lie in the probe sequence of any entry that a reader's version holds.
+     */
+    private static final class Ordinals {
+
+        private static final int MIN_CAPACITY = 8;
+
+        private static final VarHandle ORDINALS = MethodHandles.arrayElementVarHandle(int[].class);
+
+        /**
+         * A table of fixed capacity, which is a power of two
+         */
+        private static final class Table {
+
+            /**
+             * The two halves of the id in each slot
+             */
+            private final long[] ids;
+
+            /**
+             * The ordinal in each slot plus one, or zero if the slot is empty
+             */
+            private final int[] ordinals;
+
+            private final int mask;
+
+            private Table(int capacity) {
+                this.ids = new long[2 * capacity];
+                this.ordinals = new int[capacity];
+                this.mask = capacity - 1;
+            }
+
+            private int get(long high, long low, int hash) {
+                for (int slot = hash & this.mask; ; slot = (slot + 1) & this.mask) {
+                    int ordinal = (int) ORDINALS.getAcquire(this.ordinals, slot);
+                    if (ordinal == 0) return -1;
+                    if (this.ids[2 * slot] == high && this.ids[2 * slot + 1] == low) return ordinal - 1;
+                }
+            }
+
+            private void put(long high, long low, int hash, int ordinal) {
+                int slot = hash & this.mask;
+                while (this.ordinals[slot] != 0) slot = (slot + 1) & this.mask;
+
+                this.ids[2 * slot] = high;
+                this.ids[2 * slot + 1] = low;
+                ORDINALS.setRelease(this.ordinals, slot, ordinal + 1);
+            }
+
+            private Table grow() {
+                Table grown = new Table(2 * this.ordinals.length);
+                for (int slot = 0; slot < this.ordinals.length; slot++) {
+                    if (this.ordinals[slot] == 0) continue;
+
+                    long high = this.ids[2 * slot];
+                    long low = this.ids[2 * slot + 1];
+                    grown.put(high, low, hash(high, low), this.ordinals[slot] - 1);
+                }
+                return grown;
+            }
+
+            private static long footprint(int capacity) {
+                return ARRAY_HEADER + 16L * capacity + ARRAY_HEADER + 4L * capacity + OBJECT_HEADER + 8;
+            }
+        }
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * The table, or {@code null} until the first descendent is added
+         */
+        private volatile Table table;
+
+        /**
+         * Get the ordinal allocated to an id
+         * @return the ordinal, or -1 if none has been allocated
+         */
+        private int get(EntityId id) {
+            Table table = this.table;
+            if (table == null) return -1;
+
+            long high = id.getMostSignificantBits();
+            long low = id.getLeastSignificantBits();
+            return table.get(high, low, hash(high, low));
+        }
+
+        /**
+         * Allocate the next ordinal to an id, provided no other version has already given it to a different id.  The
+         * same descendent is added again at the same ordinal whenever the event that created it is replayed onto the
+         * same earlier version, so finding the ordinal already allocated to the id counts as success.
+         */
+        private boolean claim(EntityId id, int ordinal) {
+            if (!this.size.compareAndSet(ordinal, ordinal + 1)) return this.get(id) == ordinal;
+
+            // Keep the table no more than three-quarters full.  A grown table is filled before it is published
+            Table table = this.table;
+            if (table == null) {
+                table = new Table(MIN_CAPACITY);
+            } else if (4 * (ordinal + 1) > 3 * table.ordinals.length) {
+                table = table.grow();
+            }
+
+            long high = id.getMostSignificantBits();
+            long low = id.getLeastSignificantBits();
+            table.put(high, low, hash(high, low), ordinal);
+            this.table = table;
+            return true;
+        }
+
+        /**
+         * Estimate the heap occupied by the table as it would be when holding a given number of ordinals.  The table
+         * only ever grows, so its actual size depends on how far the line of versions sharing it has gone
+         */
+        private static long footprint(int size) {
+            if (size == 0) return OBJECT_HEADER + 8 + ATOMIC_INTEGER;
+
+            int capacity = MIN_CAPACITY;
+            while (4 * size > 3 * capacity) capacity *= 2;
+            return OBJECT_HEADER + 8 + ATOMIC_INTEGER + Table.footprint(capacity);
+        }
+
+        private static int hash(long high, long low) {
+            long h = (high ^ low) * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32);
+        }
+    }
+
+    /**
+     * Rough sizes of the parts of an index on a 64-bit JVM with compressed references, in bytes
+     */
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int ATOMIC_INTEGER = 16;
+
+    private final Ordinals ordinals;
+
+    private final PersistentVector<Entity> entities;
+
+    private DescendentIndex(Ordinals ordinals, PersistentVector<Entity> entities) {
+        this.ordinals = ordinals;
+        this.entities = entities;
+    }
+
+    /**
+     * Get an empty index, for the first version of an aggregate root entity
+     * @return an empty index with its own ordinals
+     */
+    static DescendentIndex empty() {
+        return new DescendentIndex(new Ordinals(), PersistentVector.empty());
+    }
+
+    Entity get(EntityId id) {
+        int ordinal = this.ordinalOf(id);
+        return ordinal < 0 ? null : this.entities.get(ordinal);
+    }
+
+    /**
+     * Get the ordinal of a descendent
+     * @param id the id of the descendent
+     * @return the ordinal, or -1 if there is no such descendent in this version
+     */
+    int ordinalOf(EntityId id) {
+        int ordinal = this.ordinals.get(id);
+        return ordinal < this.entities.size() ? ordinal : -1;
+    }
+
+    /**
+     * Get the descendent with a given ordinal
+     * @param ordinal the ordinal, from zero to one less than the size of this index
+     * @return the descendent
+     */
+    Entity at(int ordinal) {
+        return this.entities.get(ordinal);
+    }
+
+    /**
+     * Estimate the heap occupied by this index, excluding the descendents themselves.  The table of ordinals is shared
+     * with other versions of the same aggregate root entity, and may have grown since this version was produced, so it
+     * is counted at the size it would have for the descendents of this version alone.  The estimate for a version
+     * therefore never changes, and is what it would occupy were it the only version held.
+     * @return the estimated number of bytes
+     */
+    long footprint() {
+        return OBJECT_HEADER + 8 + Ordinals.footprint(this.entities.size()) + this.entities.footprint();
+    }
+
+    int size() {
+        return this.entities.size();
+    }
+
+    List<Entity> values() {
+        return this.entities.asList();
+    }
+
+    /**
+     * Get an index with a new descendent added
+     * @param entity the new descendent
+     * @return a new index
+     */
+    DescendentIndex with(Entity entity) {
+        Ordinals ordinals = this.ordinals;
+        int ordinal = this.entities.size();
+
+        if (!ordinals.claim(entity.getId(), ordinal)) {
+            ordinals = new Ordinals();
+            List<Entity> existing = this.entities.asList();
+            for (int i = 0; i < existing.size(); i++) {
+                ordinals.claim(existing.get(i).getId(), i);
+            }
+            ordinals.claim(entity.getId(), ordinal);
+        }
+
+        return new DescendentIndex(ordinals, this.entities.append(entity));
+    }
+
+    /**
+     * Get an index with a descendent replaced by a new version of itself
+     * @param entity the new version of the descendent
+     * @return a new index
+     */
+    DescendentIndex replace(Entity entity) {
+        return new DescendentIndex(this.ordinals, this.entities.set(this.ordinals.get(entity.getId()), entity));
+    }
+
+    /**
+     * Get an index with several descendents replaced by new versions of themselves, in one step
+     * @param entities the new versions of the descendents
+     * @return a new index
+     */
+    DescendentIndex replaceAll(List<? extends Entity> entities) {
+        int[] ordinals = new int[entities.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = this.ordinals.get(entities.get(i).getId());
+        }
+        return new DescendentIndex(this.ordinals, this.entities.setAll(ordinals, entities));
+    }
+}
@@ -1,5 +1,6 @@
 package uk.co.codeloft.ripl.core;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 
 import java.time.Instant;
@@ -7,26 +8,38 @@ import java.util.*;
 import java.util.function.Predicate;
 
 /**
- * The base class for all entities, whether they are aggregates or children
+ * The base class for all entities, whether they are aggregates or children.
+ * <p>
+ * Each version of an entity is immutable once it has been produced by an event.  An event that changes an entity is
+ * applied to a copy of it, and copies of its ancestors are made to hold the new version, while every entity that the
+ * event does not touch is shared with the previous version.  A version can therefore be held and read without locking
+ * while later versions are produced.
  */
 @Getter
-public abstract class Entity {
+public abstract class Entity implements Cloneable {
 
     /**
      * The id of this entity.  This remains immutable over the lifetime of
      * the entity, and as it evolves through different versions
      */
-    private String id;
+    private EntityId id;
 
     /**
      * The version number of an instance
      */
     private int version;
 
+    /**
+     * The version of the aggregate root entity in which this entity was created or last changed.  Entities that were
+     * not changed since a given version of the root entity can be told apart by this, as their own version numbers
+     * count only their own changes
+     */
+    private int rootVersion;
+
     /**
      * The instant of creation
      */
-    private final Instant createdAt;
+    private Instant createdAt;
 
     /**
      * The instant of the last update
@@ -39,55 +52,113 @@ public abstract class Entity {
     private final AggregateRootFactory<?> factory;
 
     /**
-     * The collections of children, kept in a Map keyed by the factory-specific role that
-     * describes the parent-child relationship (for example, a Person entity might have "achieved"
-     * multiple qualifications; here the role is "achieved").
+     * The layout of the child collections of this class of entity, taken from the {@link AggregateSchema} of the
+     * factory
+     */
+    @Getter(AccessLevel.NONE)
+    private final AggregateSchema.Layout layout;
+
+    /**
+     * The collections of children, one for each factory-specific role that describes a parent-child relationship in
+     * which this entity is the parent (for example, a Person entity might have "achieved" multiple qualifications; here
+     * the role is "achieved"), positioned according to the layout.
      *
      * In this context, factory-specific, means specific to the {@link AggregateRootFactory} that governs this entity.
      */
-    private Map<String, ChildCollection<ChildEntity>> childCollections = new HashMap<>();
+    @Getter(AccessLevel.NONE)
+    private ChildCollection<ChildEntity>[] childCollections;
+
+    /**
+     * A rough estimate of the heap occupied by an entity with a small kernel, in bytes: the fields of this class, its
+     * id and instants, and an allowance for the kernel, on a 64-bit JVM with compressed references
+     */
+    protected static final long DEFAULT_FOOTPRINT = 256;
 
     /**
      * Construct an instance under the control of a given {@link AggregateRootFactory}
      * @param factory the {@link AggregateRootFactory that governs changes to this instance}
      * @param id the globally-unique identity of this entity
      */
-    protected Entity(AggregateRootFactory<?> factory, String id) {
+    protected Entity(AggregateRootFactory<?> factory, EntityId id) {
         this.factory = factory;
         this.id = id;
         this.version = 1;
-        this.createdAt = Instant.now();
+        this.rootVersion = 1;
+        this.createdAt = factory.getClock().instant();
         this.updatedAt = this.createdAt;
-        this.childCollections = new HashMap<>();
 
-        // Initialise all the allowable child collections
-        this.factory.getAllowedChildRelationships().forEach((s, parentChildRelationship) -> {
-            // Only create a child collection if the class of this entity is the parent (or a sub-type)
-            if (parentChildRelationship.getParentClass().isAssignableFrom(this.getClass()))
-                this.childCollections.put(s, new ChildCollection<>());
-        });
+        // Start with the (shared) empty collections for every relationship in which this class is the parent
+        this.layout = this.factory.getSchema().layoutOf(this.getClass());
+        this.childCollections = this.layout.empty();
     }
 
-
     /**
-     * Record a mutation in this, and all parent instances.  A mutation results in the version number of each affected
-     * instance being incremented, and the last-update time being recorded.
+     * Make a copy of this instance, to which a change can be applied to produce a new version.  The copy shares its
+     * children with this instance.
+     * @return the copy
      */
-    protected void mutate() {
-        // recurse up the parents until we find one that cannot be assigned to ChildEntity - that must be the root
-        if (ChildEntity.class.isAssignableFrom(this.getClass())) {
-            ((ChildEntity)this).getParent().mutate();
+    Entity copy() {
+        Entity copy;
+        try {
+            copy = (Entity) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
         }
 
-        this.evolve();
+        copy.copyState();
+        return copy;
     }
 
+    /**
+     * Called on a new copy of this entity, before a change is applied to it.  A sub-class that holds its state in
+     * mutable objects (such as a kernel) must replace them with copies here, so that the change does not reach earlier
+     * versions.
+     */
+    protected void copyState() {}
+
     /**
      * Increment the version number and reset the updatedAt instant
+     * @param updatedAt the instant of the update, which is shared by every entity that one event evolves
+     * @param rootVersion the version of the aggregate root entity that the event produces
      */
-    private void evolve() {
+    void evolve(Instant updatedAt, int rootVersion) {
         this.version += 1;
-        this.updatedAt = Instant.now();
+        this.rootVersion = rootVersion;
+        this.updatedAt = updatedAt;
+    }
+
+    /**
+     * Record the version of the aggregate root entity in which a new child entity was created
+     * @param rootVersion the version of the aggregate root entity
+     */
+    void createdIn(int rootVersion) {
+        this.rootVersion = rootVersion;
+    }
+
+    /**
+     * Restore the version number and instants of an entity that is being rebuilt from a stored snapshot, in place of
+     * those it was given when it was constructed
+     * @param version the version number
+     * @param rootVersion the version of the aggregate root entity in which the entity was created or last changed
+     * @param createdAt the instant of creation
+     * @param updatedAt the instant of the last update
+     */
+    void restore(int version, int rootVersion, Instant createdAt, Instant updatedAt) {
+        this.version = version;
+        this.rootVersion = rootVersion;
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+    }
+
+    /**
+     * Estimate the heap occupied by this version of the entity, excluding its children, for sizing caches rather than
+     * exact accounting.  By default this is {@link #DEFAULT_FOOTPRINT}; a sub-class whose state is large, or varies
+     * in size, should override this to add an estimate of it.  The estimate must depend only on the state of this
+     * version, as it may be asked for again at any time.
+     * @return the estimated number of bytes
+     */
+    protected long estimateFootprint() {
+        return DEFAULT_FOOTPRINT;
     }
 
     /**
@@ -96,47 +167,77 @@ public abstract class Entity {
      * @return a {@link List} of {@link ChildEntity} instances.  The list may be empty
      */
     public List<ChildEntity> getChildren(String role) {
+        return this.childCollection(role).asList();
+    }
 
-        // TODO: throw exception if no map entry for role
+    /**
+     * Get the collection of children relating to a given role
+     * @param role the role
+     * @return the collection
+     * @throws IllegalArgumentException if this entity is not the parent in a relationship with the role
+     */
+    ChildCollection<ChildEntity> childCollection(String role) {
+        int slot = this.layout.slotOf(this.factory.getSchema().getRoleId(role));
+        if (slot == AggregateSchema.NO_SLOT)
+            throw new IllegalArgumentException(String.format("Role %s does not identify a valid relationship", role));
 
-        ChildCollection<ChildEntity> children = childCollections.get(role);
-        return children.asList();
+        return this.childCollections[slot];
     }
 
     /**
-     * Add a {@link ChildEntity} instance to this instance, associated with the given parent role
-     * @param role the role of this (parent) instance with which to associate the child
-     * @param child the {@link ChildEntity} to associate
+     * Get the collection of children relating to a role that has already been resolved to its id
+     * @param roleId the id of the role in the factory's {@link AggregateSchema}
+     * @return the collection
+     * @throws IllegalArgumentException if this entity is not the parent in a relationship with the role
      */
-    public void addChild(String role, ChildEntity child) {
-        Class<?> parentClass = this.getClass();
-        Class<?> childClass = child.getClass();
+    ChildCollection<ChildEntity> childCollection(int roleId) {
+        int slot = this.layout.slotOf(roleId);
+        if (slot == AggregateSchema.NO_SLOT)
+            throw new IllegalArgumentException(String.format("Role %d does not identify a valid relationship", roleId));
 
-        AggregateRootFactory.ParentChildRelationship rel = new AggregateRootFactory.ParentChildRelationship(this.getClass(), child.getClass());
+        return this.childCollections[slot];
+    }
+
+    /**
+     * Determine whether this class of entity is the parent in the relationship with a given role
+     * @param roleId the id of the role in the factory's {@link AggregateSchema}
+     * @return {@code true} or {@code false}
+     */
+    boolean isParentIn(int roleId) {
+        return this.layout.slotOf(roleId) != AggregateSchema.NO_SLOT;
+    }
 
-        AggregateRootFactory.ParentChildRelationship found = this.factory.allowedChildRelationships.get(role);
-        if (found == null) {
-            throw new AggregateRootFactory.InvalidRelationshipTypeException(String.format("Class %s cannot be a child of %s%n", childClass.getName(), parentClass.getName()));
+    /**
+     * Add a {@link ChildEntity} instance to this copy, associated with the given parent role
+     * @param roleId the id, in the factory's {@link AggregateSchema}, of the role of this (parent) instance with which
+     *               to associate the child
+     * @param child the {@link ChildEntity} to associate
+     */
+    void addChild(int roleId, ChildEntity child) {
+        int slot = this.layout.slotOf(roleId);
+        if (slot == AggregateSchema.NO_SLOT) {
+            throw new AggregateRootFactory.InvalidRelationshipTypeException(String.format("Class %s cannot be a child of %s%n", child.getClass().getName(), this.getClass().getName()));
         }
 
-        ChildCollection<ChildEntity> children = childCollections.get(role);
-        children.add(child);
-        AggregateRoot root = this.getRoot();
-        root.addDescendent(child);
-        this.mutate();
+        ChildCollection<ChildEntity> children = this.childCollections[slot];
+        child.attachTo(this, this.factory.getSchema().getRole(roleId), slot, children.size());
+        this.putChildCollection(slot, children.with(child));
     }
 
     /**
-     * Get the {@link AggregateRoot} instance of this entity
-     * @return  the {@link AggregateRoot} entity at the root of the hierarchy of entities that this instance belongs to.
-     *          If this instance <i>is</i> the aggregate root, then it will be returned.
+     * Replace a child of this copy with a new version of the child
+     * @param child the new version of the child
      */
-    public AggregateRoot getRoot() {
-        // recurse up the parents until we find one that cannot be assigned to ChildEntity - that must be the root
-        if (ChildEntity.class.isAssignableFrom(this.getClass())) {
-            return ((ChildEntity)this).getParent().getRoot();
-        } else
-            return (AggregateRoot)this;
+    void replaceChild(ChildEntity child) {
+        int slot = child.getCollectionSlot();
+        this.putChildCollection(slot, this.childCollections[slot].replace(child.getSlot(), child));
+    }
+
+    private void putChildCollection(int slot, ChildCollection<ChildEntity> children) {
+        // The array of collections is shared with the version this copy was made from (or with every entity of this
+        // class, if it has no children), so it is copied before it changes
+        this.childCollections = this.childCollections.clone();
+        this.childCollections[slot] = children;
     }
 
     /**
@@ -147,33 +248,21 @@ public abstract class Entity {
      * @return all matching children in the form of {@link ChildEntity} sub-class instances contained in a {@link List}
      * @param <T> the sub-type of the {@link ChildEntity} instances
      */
-    @SuppressWarnings("unchecked") // TODO: See body
+    @SuppressWarnings("unchecked")
     public <T extends ChildEntity> List<T> findChildren(String role, Predicate<T> p) {
         List<T> result = new ArrayList<>();
 
-        // Get the relationship meta data using the role
-        AggregateRootFactory.ParentChildRelationship rel = this.factory.allowedChildRelationships.get(role);
-
-        if (rel != null) {
-            // Get all children that match the predicate
-            ChildCollection<ChildEntity> children = this.childCollections.get(role);
-
-            if (children != null) {
-                for (ChildEntity child : children.asList()) {
-                    if (child.getClass().isAssignableFrom(rel.getChildClass())) {
-                        // See if the predicate holds
-                        if (p.test((T)child)) {
-                            // TODO: Try to resolve this warning (the one that happens without @SuppressWarnings)
-                            result.add((T) child);
-                        }
-                    } else {
-                        throw new ClassCastException(
-                                String.format("Class %s is not assignable from class %s%n", child.getClass().getName(), rel.getChildClass().getName()));
-                    }
-                }
-            }
-        } else {
+        // Resolve the role once; the class of each child was fixed by the relationship when it was added, so the
+        // children are not inspected again here
+        int roleId = this.factory.getSchema().getRoleId(role);
+        if (roleId < 0)
             throw new IllegalArgumentException(String.format("Role %s does not identify a valid relationship", role));
+
+        int slot = this.layout.slotOf(roleId);
+        if (slot != AggregateSchema.NO_SLOT) {
+            for (ChildEntity child : this.childCollections[slot].asList()) {
+                if (p.test((T) child)) result.add((T) child);
+            }
         }
 
         return result;
@@ -201,11 +290,12 @@ public abstract class Entity {
         StringBuilder sb = new StringBuilder();
 
         // Iterate through each child collection, stringifying the children in each one
-        this.childCollections.forEach((role, collection) -> {
-            List<ChildEntity> list = collection.asList();
+        AggregateSchema schema = this.factory.getSchema();
+        for (int slot = 0; slot < this.childCollections.length; slot++) {
+            List<ChildEntity> list = this.childCollections[slot].asList();
             if (!list.isEmpty()) {
                 sb.append(String.format(">>>>%n"));
-                sb.append(String.format("** Role: %s **%n", role));
+                sb.append(String.format("** Role: %s **%n", schema.getRole(this.layout.roleIdAt(slot))));
                 list.forEach(child -> {
                     sb.append(String.format("----------%n"));
                     sb.append(child.toString());
@@ -213,7 +303,7 @@ public abstract class Entity {
                     sb.append(child.allChildren());  // Recurse
                 });
             }
-        });
+        }
 
         return sb.toString();
     }
@@ -0,0 +1,91 @@
+package uk.co.codeloft.ripl.core;
+
+import java.util.UUID;
+
+/**
+ * The identity of an entity, or of a command, event or snapshot: a 128-bit UUID held as two {@code long}s.  An id
+ * occupies a fraction of the heap of its {@link String} form, and is hashed and compared without touching any
+ * characters.  It is converted to and from its string form only where it crosses the boundary of the application,
+ * using {@link #parse(String)} and {@link #toString()}.
+ * <p>
+ * Ids are ordered as unsigned 128-bit numbers, which is the same as the order of their string forms, so time-ordered
+ * ids (see {@link IdGenerator#timeOrdered(java.time.Clock)}) sort in the order they were generated.
+ */
+public final class EntityId implements Comparable<EntityId> {
+
+    private final long mostSignificantBits;
+
+    private final long leastSignificantBits;
+
+    public EntityId(long mostSignificantBits, long leastSignificantBits) {
+        this.mostSignificantBits = mostSignificantBits;
+        this.leastSignificantBits = leastSignificantBits;
+    }
+
+    /**
+     * Get the id with a given string form
+     * @param id the string form of a UUID
+     * @return the id
+     * @throws IllegalArgumentException if the string is not the form of a UUID
+     */
+    public static EntityId parse(String id) {
+        return of(UUID.fromString(id));
+    }
+
+    /**
+     * Get the id with the value of a UUID
+     * @param uuid the UUID
+     * @return the id
+     */
+    public static EntityId of(UUID uuid) {
+        return new EntityId(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public long getMostSignificantBits() {
+        return this.mostSignificantBits;
+    }
+
+    public long getLeastSignificantBits() {
+        return this.leastSignificantBits;
+    }
+
+    /**
+     * Get this id as a UUID
+     * @return the UUID
+     */
+    public UUID toUUID() {
+        return new UUID(this.mostSignificantBits, this.leastSignificantBits);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof EntityId)) return false;
+
+        EntityId other = (EntityId) o;
+        return this.mostSignificantBits == other.mostSignificantBits && this.leastSignificantBits == other.leastSignificantBits;
+    }
+
+    @Override
+    public int hashCode() {
+        // The low bits of a time-ordered id are random, but the high bits of ids generated together are nearly equal,
+        // so both halves are mixed in
+        long h = this.mostSignificantBits * 0x9E3779B97F4A7C15L ^ this.leastSignificantBits;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public int compareTo(EntityId other) {
+        int c = Long.compareUnsigned(this.mostSignificantBits, other.mostSignificantBits);
+        return c != 0 ? c : Long.compareUnsigned(this.leastSignificantBits, other.leastSignificantBits);
+    }
+
+    /**
+     * Get the string form of this id
+     * @return the id in the standard form of a UUID
+     */
+    @Override
+    public String toString() {
+        return this.toUUID().toString();
+    }
+}
@@ -3,7 +3,6 @@ package uk.co.codeloft.ripl.core;
 import lombok.Getter;
 
 import java.time.Instant;
-import java.util.UUID;
 
 /**
  * An event that has happened to an AggregateRoot
@@ -14,7 +13,7 @@ public abstract class Event<T extends AggregateRoot> {
     /**
      * The unique id of this event
      */
-    private String id;
+    private EntityId id;
 
     /**
      * The instant that this event happened
@@ -31,28 +30,93 @@ public abstract class Event<T extends AggregateRoot> {
      */
     private final AggregateRootFactory factory;
 
+    /**
+     * The id of the aggregate root entity that this event applies to
+     */
+    private final EntityId aggregateId;
+
+    /**
+     * The version of the aggregate root entity that results from applying this event.  Events for the same
+     * aggregate root are numbered contiguously from 1 (the version produced by its {@link CreatedEvent}).
+     */
+    private final int version;
+
+    /**
+     * The position of this event in the global, monotonically increasing sequence of all events held by a
+     * repository.  This is assigned by the repository when the event is stored, and is zero until then.
+     */
+    private long position;
+
+    /**
+     * The size in bytes of the encoded form of this event, recorded by a repository that encodes it when it is stored,
+     * or zero if it has not been encoded
+     */
+    private int encodedSize;
+
     /**
      * Create an instance
      * @param factory the factory that performed the event represented by an instance
      * @param command the command that gave rise to the event
+     * @param aggregateId the id of the aggregate root entity that the event applies to
+     * @param version the version of the aggregate root entity that results from applying the event
      */
-    protected Event(AggregateRootFactory factory, Command<T> command) {
+    protected Event(AggregateRootFactory factory, Command<T> command, EntityId aggregateId, int version) {
         this.factory = factory;
-        this.id = UUID.randomUUID().toString();
+        this.id = factory.getIdGenerator().nextId();
         this.command = command;
-        this.timestamp = Instant.now();
+        this.timestamp = factory.getClock().instant();
+        this.aggregateId = aggregateId;
+        this.version = version;
+    }
+
+    /**
+     * Re-create an instance that was previously stored.  A re-created instance has no command, so it can only be
+     * applied by way of {@link #applyTo(AggregateRoot)}
+     * @param factory the factory that performed the event represented by an instance
+     * @param id the unique id of the event
+     * @param timestamp the instant that the event happened
+     * @param aggregateId the id of the aggregate root entity that the event applies to
+     * @param version the version of the aggregate root entity that results from applying the event
+     */
+    protected Event(AggregateRootFactory factory, EntityId id, Instant timestamp, EntityId aggregateId, int version) {
+        this.factory = factory;
+        this.id = id;
+        this.command = null;
+        this.timestamp = timestamp;
+        this.aggregateId = aggregateId;
+        this.version = version;
+    }
+
+    /**
+     * Record the global position allocated to this event by a repository
+     * @param position the position of this event in the repository's global sequence of events
+     */
+    void assignPosition(long position) {
+        this.position = position;
+    }
+
+    /**
+     * Record the size of the encoded form of this event, so that it need not be encoded again to find it
+     * @param encodedSize the size in bytes
+     */
+    void recordEncodedSize(int encodedSize) {
+        this.encodedSize = encodedSize;
     }
 
     /**
-     * Apply the event to an aggregate root entity.
+     * Apply the event to the aggregate root entity targeted by the command that gave rise to it.
      * @return a new version of the aggregate root entity, after having had the event applied
      */
     public abstract T apply();
 
     /**
-     * Indicates whether this event should trigger storage of a snapshot
-     * @return {@<code>true</code>} or {@<code>false</code>}
+     * Apply the event to a given version of the aggregate root entity.  This is used to replay stored events on top of
+     * a snapshot, so an implementation must locate whatever it changes via the ids it recorded, never via references
+     * to the entities that existed when the event was first created.
+     * @param root the version of the aggregate root entity immediately preceding {@link #getVersion()}, or
+     *             {@code null} when replaying a {@link CreatedEvent}
+     * @return the version of the aggregate root entity after having had the event applied
      */
-    public abstract boolean requiresSnapshot();
+    public abstract T applyTo(T root);
 
 }
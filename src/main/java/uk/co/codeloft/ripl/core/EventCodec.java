@@ -0,0 +1,39 @@
+package uk.co.codeloft.ripl.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts events to and from a binary form so that they can be persisted.  The identity of the aggregate root entity
+ * and the version produced by the event are held by the repository alongside the encoded form, so a codec need not
+ * encode them itself.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the events relate to
+ */
+public interface EventCodec<T extends AggregateRoot> {
+
+    /**
+     * Encode an event
+     * @param event the event to encode
+     * @return the encoded form of the event
+     */
+    public byte[] encode(Event<T> event);
+
+    /**
+     * Decode an event
+     * @param aggregateId the id of the aggregate root entity that the event applies to
+     * @param version the version of the aggregate root entity that results from applying the event
+     * @param body the encoded form of the event, positioned at its first byte and limited to its last.  This may be
+     *             a view of storage owned by the repository, so it must not be retained after this method returns
+     * @return the decoded event
+     */
+    public Event<T> decode(EntityId aggregateId, int version, ByteBuffer body);
+
+    /**
+     * Get the size of the encoded form of an event.  By default this encodes the event.
+     * @param event the event
+     * @return the size in bytes
+     */
+    @SuppressWarnings("unchecked")
+    public default int sizeOf(Event<?> event) {
+        return this.encode((Event<T>) event).length;
+    }
+}
@@ -0,0 +1,581 @@
+package uk.co.codeloft.ripl.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * A repository that persists events in an append-only journal on disk, so that aggregate root entities survive a
+ * restart.  The journal is a sequence of {@link JournalSegment} files, each mapped into memory; when the active
+ * segment is full a new one is started.  Events are read back as slices of the mapped segments and handed to an
+ * {@link EventCodec} without first being copied onto the heap.
+ * <p>
+ * Events are written using group commit: a single writer thread gathers the events stored by concurrent callers
+ * into a batch, appends the batch and forces it to storage once.  Each caller blocks only until the batch holding its
+ * event is durable.  The size of a batch is bounded, and the writer may linger for a bounded time after the first
+ * event of a batch arrives in order to gather more; the default is not to linger, so that a batch holds whatever
+ * arrived while the previous batch was being forced.
+ * <p>
+ * Only events are journalled.  Commands carry functions and references to live entities, so they are not retained,
+ * and snapshots are held in memory only; after a restart each aggregate root entity is hydrated from its events.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the repository handles
+ */
+public class FileJournalAggregateRootRepository<T extends AggregateRoot> implements AggregateRootRepository<T>, Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    public static final int DEFAULT_INDEX_INTERVAL = 64;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+    public static final Duration DEFAULT_MAX_LINGER = Duration.ZERO;
+
+    /**
+     * An event waiting to be appended by the writer thread, together with the means of notifying the caller
+     */
+    private static class PendingAppend {
+        private final Event<?> event;
+        private final byte[] aggregateId;
+        private final byte[] body;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        private PendingAppend(Event<?> event, byte[] aggregateId, byte[] body) {
+            this.event = event;
+            this.aggregateId = aggregateId;
+            this.body = body;
+        }
+    }
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final Path directory;
+
+    private final EventCodec<T> codec;
+
+    private final int segmentSize;
+
+    private final int indexInterval;
+
+    private final int maxBatchSize;
+
+    private final long maxLingerNanos;
+
+    private final BlockingQueue<PendingAppend> pendingAppends = new LinkedBlockingQueue<>();
+
+    private final Thread writer;
+
+    private volatile boolean running;
+
+    /**
+     * Held shared while an event is handed to the writer thread, and exclusively while the journal is being closed or
+     * the events of a failed batch are being withdrawn, so that no event can be handed over in the meantime
+     */
+    private final ReadWriteLock handOver = new ReentrantReadWriteLock();
+
+    /**
+     * The segments of the journal, keyed by the global position of their first record
+     */
+    private final NavigableMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<>();
+
+    /**
+     * The global positions of the events relating to each aggregate root entity, keyed by the version they produce
+     */
+    private final Map<EntityId, NavigableMap<Integer, Long>> positionsKeyedByAggregateRootId = new ConcurrentHashMap<>();
+
+    /**
+     * The version of the most recent event accepted for each aggregate root entity.  Appends are conditional on this,
+     * which is advanced with a compare-and-set when an event is handed to the writer thread
+     */
+    private final Map<EntityId, AtomicInteger> headsKeyedByAggregateRootId = new ConcurrentHashMap<>();
+
+    /**
+     * The events that have been accepted for each aggregate root entity but not yet written and indexed, keyed by the
+     * version they produce.  These are part of the entity's stream as far as readers are concerned, so a command can
+     * build on an event that is still waiting to become durable.
+     */
+    private final Map<EntityId, NavigableMap<Integer, Event<T>>> acceptedEventsKeyedByAggregateRootId = new ConcurrentHashMap<>();
+
+    private final Map<EntityId, T> latestSnapshotsKeyedByAggregateRootId = new ConcurrentHashMap<>();
+
+    /**
+     * The segment to which events are appended.  After construction this is only used by the writer thread
+     */
+    private JournalSegment activeSegment;
+
+    /**
+     * The global position of the most recently appended event, which may not yet be durable.  After construction
+     * this is only used by the writer thread
+     */
+    private long appendedPosition;
+
+    /**
+     * The global position of the most recently stored event
+     */
+    private volatile long lastPosition;
+
+    /**
+     * Open a journal with the default segment size and index interval
+     * @param directory the directory holding the journal segments.  It is created if it does not exist
+     * @param codec the codec used to convert events to and from their binary form
+     * @throws IOException if the journal cannot be opened
+     */
+    public FileJournalAggregateRootRepository(Path directory, EventCodec<T> codec) throws IOException {
+        this(directory, codec, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_INTERVAL);
+    }
+
+    /**
+     * Open a journal with the default group commit settings
+     * @param directory the directory holding the journal segments.  It is created if it does not exist
+     * @param codec the codec used to convert events to and from their binary form
+     * @param segmentSize the size in bytes at which a new segment is started
+     * @param indexInterval the number of records between entries in each segment's sparse index
+     * @throws IOException if the journal cannot be opened
+     */
+    public FileJournalAggregateRootRepository(Path directory, EventCodec<T> codec, int segmentSize, int indexInterval) throws IOException {
+        this(directory, codec, segmentSize, indexInterval, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LINGER);
+    }
+
+    /**
+     * Open a journal, recovering any events that it already holds
+     * @param directory the directory holding the journal segments.  It is created if it does not exist
+     * @param codec the codec used to convert events to and from their binary form
+     * @param segmentSize the size in bytes at which a new segment is started
+     * @param indexInterval the number of records between entries in each segment's sparse index
+     * @param maxBatchSize the maximum number of events appended and forced to storage together
+     * @param maxLinger the maximum time that the writer waits for further events once a batch has been started
+     * @throws IOException if the journal cannot be opened
+     */
+    public FileJournalAggregateRootRepository(
+            Path directory,
+            EventCodec<T> codec,
+            int segmentSize,
+            int indexInterval,
+            int maxBatchSize,
+            Duration maxLinger) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxLingerNanos = maxLinger.toNanos();
+
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(this.directory)) {
+            paths = files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long basePosition = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+
+            // Each segment carries on from the last position recovered from the one before.  If it does not, the one
+            // before lost its tail to an interrupted write, and this segment (like any after it) holds only the rest
+            // of that write, which was never durable as a whole, so it is discarded
+            if (basePosition != this.lastPosition + 1) {
+                Files.delete(path);
+                continue;
+            }
+
+            this.activeSegment = this.openSegment(basePosition);
+        }
+
+        if (this.activeSegment == null) this.activeSegment = this.openSegment(1L);
+        this.appendedPosition = this.lastPosition;
+        this.positionsKeyedByAggregateRootId.forEach(
+                (id, positions) -> this.headsKeyedByAggregateRootId.put(id, new AtomicInteger(positions.lastKey())));
+
+        this.running = true;
+        this.writer = new Thread(this::write, "ripl-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private JournalSegment openSegment(long basePosition) throws IOException {
+        Path path = this.directory.resolve(String.format("%020d%s", basePosition, SEGMENT_SUFFIX));
+        JournalSegment segment = new JournalSegment(path, basePosition, this.segmentSize, this.indexInterval, this::index);
+        this.segments.put(basePosition, segment);
+        return segment;
+    }
+
+    private void index(long position, EntityId aggregateId, int version) {
+        this.positionsKeyedByAggregateRootId
+                .computeIfAbsent(aggregateId, k -> new ConcurrentSkipListMap<>())
+                .put(version, position);
+        this.lastPosition = Math.max(this.lastPosition, position);
+    }
+
+    /**
+     * Get the latest version of a specific aggregate root entity, from the most recent snapshot held in memory and
+     * the events that follow it
+     * @param id the identity of the aggregate root entity required
+     * @return an {@link Optional} containting the sub-type instance of {@link AggregateRoot} if it exists
+     */
+    @Override
+    public Optional<T> getLatest(EntityId id) {
+        T root = this.latestSnapshotsKeyedByAggregateRootId.get(id);
+
+        return Optional.ofNullable(AggregateRootRepository.replay(root, this.getEvents(id, root == null ? 1 : root.getVersion() + 1)));
+    }
+
+    @Override
+    public List<Event<T>> getEvents(EntityId aggregateId, int fromVersion) {
+        // Take the accepted events before reading the journal, so that an event indexed in between is seen at least once
+        NavigableMap<Integer, Event<T>> accepted = this.acceptedEventsKeyedByAggregateRootId.get(aggregateId);
+        List<Event<T>> pending = accepted == null ? List.of() : new ArrayList<>(accepted.tailMap(fromVersion, true).values());
+
+        List<Event<T>> result = new ArrayList<>();
+        NavigableMap<Integer, Long> positions = this.positionsKeyedByAggregateRootId.get(aggregateId);
+        if (positions != null) {
+            for (long position : positions.tailMap(fromVersion, true).values()) {
+                JournalSegment segment = this.segments.floorEntry(position).getValue();
+                result.add(this.decode(segment.entryAt(segment.offsetOf(position))));
+            }
+        }
+
+        int lastVersion = result.isEmpty() ? fromVersion - 1 : result.get(result.size() - 1).getVersion();
+        for (Event<T> event : pending) {
+            if (event.getVersion() > lastVersion) result.add(event);
+        }
+
+        return result;
+    }
+
+    @Override
+    public List<Event<T>> getEventsFrom(long fromPosition, int maxEvents) {
+        List<Event<T>> result = new ArrayList<>();
+        long first = Math.max(fromPosition, 1L);
+        long last = this.lastPosition;
+
+        Long firstBase = this.segments.floorKey(first);
+        if (firstBase == null || first > last) return result;
+
+        for (JournalSegment segment : this.segments.tailMap(firstBase, true).values()) {
+            int offset = segment.getBasePosition() == firstBase ? segment.offsetOf(first) : 0;
+            if (offset < 0) continue;
+
+            while (offset < segment.getWriteOffset() && result.size() < maxEvents) {
+                JournalSegment.Entry entry = segment.entryAt(offset);
+                if (entry.getPosition() > last) return result;
+                result.add(this.decode(entry));
+                offset = entry.getNextOffset();
+            }
+
+            if (result.size() == maxEvents) break;
+        }
+
+        return result;
+    }
+
+    private Event<T> decode(JournalSegment.Entry entry) {
+        Event<T> event = this.codec.decode(entry.getAggregateId(), entry.getVersion(), entry.getBody());
+        event.assignPosition(entry.getPosition());
+        return event;
+    }
+
+    /**
+     * Commands are not journalled, so this does nothing
+     * @param command the command to store
+     */
+    @Override
+    public void storeCommand(Command<T> command) {
+        // Commands hold functions and references to live entities, so there is nothing durable to store
+    }
+
+    /**
+     * Append an event to the journal, blocking until the batch that holds it has been forced to storage
+     * @param event the event to store
+     */
+    @Override
+    public void storeEvent(Event<T> event) {
+        try {
+            this.append(event).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Append several events to the journal, blocking until they are all durable.  The events are handed to the writer
+     * thread together, so they are forced to storage in as few batches as the maximum batch size allows, rather than
+     * one batch per event.
+     * @param events the events to store
+     */
+    @Override
+    public void storeEvents(List<Event<T>> events) {
+        List<CompletableFuture<Void>> appended = new ArrayList<>(events.size());
+        RuntimeException rejected = null;
+        for (Event<T> event : events) {
+            try {
+                appended.add(this.append(event));
+            } catch (RuntimeException e) {
+                rejected = e;
+                break;
+            }
+        }
+
+        // Wait for the accepted events even if a later one was rejected, as they will be written regardless
+        try {
+            CompletableFuture.allOf(appended.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (rejected == null && e.getCause() instanceof RuntimeException cause) rejected = cause;
+            if (rejected == null) throw e;
+        }
+
+        if (rejected != null) throw rejected;
+    }
+
+    /**
+     * Hand an event to the writer thread without waiting for it to become durable
+     * @param event the event to store
+     * @return a future that completes once the batch that holds the event is durable
+     */
+    @Override
+    public CompletableFuture<Void> storeEventAsync(Event<T> event) {
+        try {
+            return this.append(event);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Hand an event to the writer thread
+     * @param event the event to append
+     * @return a future that completes when the event is durable
+     */
+    private CompletableFuture<Void> append(Event<T> event) {
+        byte[] aggregateId = JournalSegment.encodeId(event.getAggregateId());
+        byte[] body = this.codec.encode(event);
+        event.recordEncodedSize(body.length);
+
+        if (JournalSegment.recordLength(aggregateId, body) + Integer.BYTES > this.segmentSize)
+            throw new IllegalArgumentException(String.format("Event %s is too large for a journal segment", event.getId()));
+
+        this.handOver.readLock().lock();
+        try {
+            if (!this.running)
+                throw new IllegalStateException("The journal has been closed");
+
+            AtomicInteger head = this.headsKeyedByAggregateRootId.computeIfAbsent(event.getAggregateId(), k -> new AtomicInteger());
+            if (!head.compareAndSet(event.getVersion() - 1, event.getVersion()))
+                throw new ConcurrencyException(event.getAggregateId(), event.getVersion() - 1, head.get());
+
+            this.acceptedEventsKeyedByAggregateRootId
+                    .computeIfAbsent(event.getAggregateId(), k -> new ConcurrentSkipListMap<>())
+                    .put(event.getVersion(), event);
+
+            PendingAppend pending = new PendingAppend(event, aggregateId, body);
+            this.pendingAppends.add(pending);
+            return pending.durable;
+        } finally {
+            this.handOver.readLock().unlock();
+        }
+    }
+
+    /**
+     * The body of the writer thread: gather batches of pending appends and commit each one
+     */
+    private void write() {
+        List<PendingAppend> batch = new ArrayList<>(this.maxBatchSize);
+
+        try {
+            while (this.running || !this.pendingAppends.isEmpty()) {
+                PendingAppend first = this.pendingAppends.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + this.maxLingerNanos;
+                while (batch.size() < this.maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingAppend next = remaining > 0
+                            ? this.pendingAppends.poll(remaining, TimeUnit.NANOSECONDS)
+                            : this.pendingAppends.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+
+                this.commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Append a batch of events, force every range written to storage, then index the events and notify the callers.
+     * If the batch cannot be made durable, whatever part of it was written is discarded, so that the journal holds
+     * none of it, its events are withdrawn, and every caller is notified of the failure.  Events that were accepted
+     * after a withdrawn event of the same aggregate root entity were built on it, so they are rejected when they reach
+     * a batch.
+     * @param batch the pending appends
+     */
+    private void commit(List<PendingAppend> batch) {
+        batch.removeIf(pending -> {
+            if (!this.isWithdrawn(pending)) return false;
+            pending.durable.completeExceptionally(new ConcurrencyException(
+                    pending.event.getAggregateId(),
+                    pending.event.getVersion() - 1,
+                    this.headsKeyedByAggregateRootId.get(pending.event.getAggregateId()).get()));
+            return true;
+        });
+        if (batch.isEmpty()) return;
+
+        // Where the batch starts, so that it can be rolled back
+        JournalSegment firstSegment = this.activeSegment;
+        int firstOffset = firstSegment.getWriteOffset();
+        long firstPosition = this.appendedPosition;
+
+        try {
+            // The range written in each segment touched by the batch - usually just one - in the order in which the
+            // segments were started
+            Map<JournalSegment, int[]> written = new LinkedHashMap<>();
+
+            for (PendingAppend pending : batch) {
+                int length = JournalSegment.recordLength(pending.aggregateId, pending.body);
+                long position = this.appendedPosition + 1;
+                if (!this.activeSegment.hasRoomFor(length)) this.activeSegment = this.openSegment(position);
+
+                int offset = this.activeSegment.append(position, pending.aggregateId, pending.event.getVersion(), pending.body);
+                written.computeIfAbsent(this.activeSegment, s -> new int[] { offset, offset })[1] = offset + length;
+
+                pending.event.assignPosition(position);
+                this.appendedPosition = position;
+            }
+
+            // Force the earlier segments first, so that a later segment is never durable while an earlier one is torn
+            written.forEach((segment, range) -> segment.force(range[0], range[1] - range[0]));
+        } catch (IOException | RuntimeException e) {
+            RuntimeException failure = e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e;
+            this.rollBack(firstSegment, firstOffset, firstPosition, failure);
+            this.withdraw(batch);
+            batch.forEach(pending -> pending.durable.completeExceptionally(failure));
+            return;
+        }
+
+        for (PendingAppend pending : batch) {
+            this.index(pending.event.getPosition(), pending.event.getAggregateId(), pending.event.getVersion());
+            this.acceptedEventsKeyedByAggregateRootId.get(pending.event.getAggregateId()).remove(pending.event.getVersion());
+            pending.durable.complete(null);
+        }
+    }
+
+    /**
+     * Withdraw the events of a failed batch, and those accepted after them, from the streams of their aggregate root
+     * entities: each stream is put back to the version before its first failed event, so that the next command builds
+     * on the last version that can still become durable.
+     * @param batch the failed batch
+     */
+    private void withdraw(List<PendingAppend> batch) {
+        Map<EntityId, Integer> firstFailedVersions = new HashMap<>();
+        for (PendingAppend pending : batch) {
+            firstFailedVersions.merge(pending.event.getAggregateId(), pending.event.getVersion(), Math::min);
+        }
+
+        this.handOver.writeLock().lock();
+        try {
+            firstFailedVersions.forEach((aggregateId, version) -> {
+                this.acceptedEventsKeyedByAggregateRootId.get(aggregateId).tailMap(version, true).clear();
+                this.headsKeyedByAggregateRootId.get(aggregateId).set(version - 1);
+            });
+        } finally {
+            this.handOver.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Determine whether a pending append has been withdrawn since it was accepted, because an earlier batch failed
+     * @param pending the pending append
+     * @return {@code true} or {@code false}
+     */
+    private boolean isWithdrawn(PendingAppend pending) {
+        NavigableMap<Integer, Event<T>> accepted = this.acceptedEventsKeyedByAggregateRootId.get(pending.event.getAggregateId());
+        return accepted.get(pending.event.getVersion()) != pending.event;
+    }
+
+    /**
+     * Discard the part of a failed batch that was written: truncate the segment in which it started, and remove any
+     * segment that was started for it
+     * @param firstSegment the active segment when the batch started
+     * @param firstOffset the offset in that segment of the first record of the batch
+     * @param firstPosition the global position of the last event appended before the batch
+     * @param failure the reason the batch failed, to which any failure to roll it back is added
+     */
+    private void rollBack(JournalSegment firstSegment, int firstOffset, long firstPosition, RuntimeException failure) {
+        try {
+            for (JournalSegment segment : new ArrayList<>(this.segments.tailMap(firstPosition + 1, true).values())) {
+                if (segment == firstSegment) continue;
+                this.segments.remove(segment.getBasePosition());
+                segment.close();
+                Files.deleteIfExists(segment.getPath());
+            }
+            firstSegment.truncate(firstOffset);
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        } finally {
+            this.activeSegment = firstSegment;
+            this.appendedPosition = firstPosition;
+        }
+    }
+
+    /**
+     * Hold a snapshot in memory.  Snapshots are not journalled, as they can always be rebuilt from events
+     * @param snapshot the snapshot to store
+     */
+    @Override
+    public void storeSnapshot(T snapshot) {
+        this.latestSnapshotsKeyedByAggregateRootId.merge(snapshot.getId(), snapshot,
+                (current, candidate) -> candidate.getVersion() >= current.getVersion() ? candidate : current);
+    }
+
+    /**
+     * Stop accepting events, wait for those already accepted to become durable, then close every segment.  Should
+     * the writer thread stop before it has written them all, the callers of those that remain are notified that the
+     * journal has been closed.
+     * @throws IOException if a segment cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        this.handOver.writeLock().lock();
+        try {
+            this.running = false;
+        } finally {
+            this.handOver.writeLock().unlock();
+        }
+
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        IllegalStateException closed = new IllegalStateException("The journal has been closed");
+        for (PendingAppend pending = this.pendingAppends.poll(); pending != null; pending = this.pendingAppends.poll()) {
+            pending.durable.completeExceptionally(closed);
+        }
+
+        for (JournalSegment segment : this.segments.values()) segment.close();
+    }
+}
@@ -0,0 +1,78 @@
+package uk.co.codeloft.ripl.core;
+
+import java.time.Clock;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the ids of commands, events, entities and snapshots.  Each {@link AggregateRootFactory} has a generator,
+ * which is {@link #timeOrdered(Clock)} by default.
+ */
+@FunctionalInterface
+public interface IdGenerator {
+
+    /**
+     * Generate an id that is unique (for all practical purposes) across every process
+     * @return the id
+     */
+    EntityId nextId();
+
+    /**
+     * Generate random (version 4) UUIDs, as {@link UUID#randomUUID()} does.  These draw on a shared
+     * {@link java.security.SecureRandom}, which is contended when many threads generate ids at once.
+     */
+    IdGenerator RANDOM = () -> EntityId.of(UUID.randomUUID());
+
+    /**
+     * Generate time-ordered (version 7) UUIDs
+     * @param clock the clock from which the time is taken
+     * @return the generator
+     */
+    static IdGenerator timeOrdered(Clock clock) {
+        return new TimeOrdered(clock);
+    }
+
+    /**
+     * Generates version 7 UUIDs: 48 bits of Unix time in milliseconds, a 12-bit sequence number and 62 random bits.
+     * The time and sequence number together are advanced with a compare-and-set, so the ids generated by one
+     * generator are strictly increasing even when several are generated in the same millisecond, on several threads,
+     * or after the clock has stepped back.  The random bits come from {@link ThreadLocalRandom}, so threads do not
+     * contend for them.
+     * <p>
+     * Because the ids sort (as {@link EntityId}s, strings or UUIDs) in the order they were generated, keys built from
+     * them are appended to the end of an ordered index rather than scattered across it.
+     */
+    final class TimeOrdered implements IdGenerator {
+
+        private static final int SEQUENCE_BITS = 12;
+
+        private final Clock clock;
+
+        /**
+         * The time and sequence number of the last id generated, as {@code millis << 12 | sequence}
+         */
+        private final AtomicLong last = new AtomicLong();
+
+        private TimeOrdered(Clock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public EntityId nextId() {
+            long now = this.clock.millis() << SEQUENCE_BITS;
+
+            // Take the current time, or the next sequence number if the time has not moved on (when the sequence
+            // number overflows, this borrows from the next millisecond)
+            long prev, next;
+            do {
+                prev = this.last.get();
+                next = Math.max(now, prev + 1);
+            } while (!this.last.compareAndSet(prev, next));
+
+            long mostSigBits = (next >>> SEQUENCE_BITS) << 16 | 0x7000L | (next & 0xFFFL);
+            long leastSigBits = ThreadLocalRandom.current().nextLong() >>> 2 | 0x8000000000000000L;
+            return new EntityId(mostSigBits, leastSigBits);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package uk.co.codeloft.ripl.core;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshots aggregate root entities once they have gone quiet.  The scheduler tracks the latest version of each entity
+ * that has had events since its last snapshot, and periodically snapshots those that have had no events for a quiet
+ * period.  This leaves hot entities alone while they are busy (so, with a write-path {@link SnapshotPolicy} that
+ * snapshots rarely, a burst of commands is not interrupted by snapshots) while making sure that cold entities do not
+ * leave a long tail of events for the next reader to replay.
+ * <p>
+ * Snapshots are stored on the scheduler's own thread.  Each sweep stores at most a given number of them, starting with
+ * the entities that have the most events since their last snapshot, so that the load on the repository is bounded.
+ * <p>
+ * A version that is itself a snapshot does not stop an entity being tracked until the snapshot is known to have been
+ * stored (see {@link #snapshotStored}), because a snapshot stored in the background may yet be dropped.  If it is, the
+ * entity goes quiet with the snapshot still tracked, and the scheduler stores it.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the snapshots relate to
+ */
+public class IdleSnapshotScheduler<T extends AggregateRoot> implements AutoCloseable {
+
+    public static final Duration DEFAULT_QUIET_PERIOD = Duration.ofSeconds(30);
+
+    public static final int DEFAULT_MAX_SNAPSHOTS_PER_SWEEP = 100;
+
+    /**
+     * The latest version of an entity that has had events since its last stored snapshot, when it was produced, and
+     * the version of that snapshot
+     */
+    private class Tracked {
+        private final T latest;
+        private final long lastActive;
+        private final int storedVersion;
+
+        private Tracked(T latest, long lastActive, int storedVersion) {
+            this.latest = latest;
+            this.lastActive = lastActive;
+            this.storedVersion = storedVersion;
+        }
+
+        private int getEventsSinceSnapshot() {
+            return this.latest.getVersion() - this.storedVersion;
+        }
+    }
+
+    private final AggregateRootRepository<T> repository;
+
+    private final long quietPeriodNanos;
+
+    private final int maxSnapshotsPerSweep;
+
+    private final Map<EntityId, Tracked> trackedKeyedByAggregateRootId = new ConcurrentHashMap<>();
+
+    private final ScheduledThreadPoolExecutor sweeper;
+
+    /**
+     * Start a scheduler with the default quiet period and number of snapshots per sweep
+     * @param repository the repository in which to store snapshots
+     */
+    public IdleSnapshotScheduler(AggregateRootRepository<T> repository) {
+        this(repository, DEFAULT_QUIET_PERIOD, DEFAULT_MAX_SNAPSHOTS_PER_SWEEP);
+    }
+
+    /**
+     * Start a scheduler.  Sweeps are made twice per quiet period.
+     * @param repository the repository in which to store snapshots
+     * @param quietPeriod the time without events after which an entity is snapshotted
+     * @param maxSnapshotsPerSweep the maximum number of snapshots stored by each sweep
+     */
+    public IdleSnapshotScheduler(AggregateRootRepository<T> repository, Duration quietPeriod, int maxSnapshotsPerSweep) {
+        this.repository = repository;
+        this.quietPeriodNanos = quietPeriod.toNanos();
+        this.maxSnapshotsPerSweep = maxSnapshotsPerSweep;
+
+        this.sweeper = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "ripl-idle-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1L, quietPeriod.toMillis() / 2);
+        this.sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record a new (durable) version of an aggregate root entity.  A version that is itself a snapshot is tracked
+     * like any other until it has been stored.
+     * @param version the new version
+     */
+    public void track(T version) {
+        long now = System.nanoTime();
+
+        this.trackedKeyedByAggregateRootId.compute(version.getId(), (id, tracked) -> {
+            if (tracked != null && tracked.latest.getVersion() > version.getVersion()) return tracked;
+
+            // Until told otherwise, assume the last snapshot of an entity that was not already tracked was stored
+            int storedVersion = tracked != null
+                    ? tracked.storedVersion
+                    : version.isSnapshot() ? version.getVersion() - 1 : version.getLsVersion();
+            return new Tracked(version, now, storedVersion);
+        });
+    }
+
+    /**
+     * Record that a snapshot of an aggregate root entity has been stored.  The entity stops being tracked unless it
+     * has moved on since the snapshot.
+     * @param snapshot the snapshot
+     */
+    public void snapshotStored(T snapshot) {
+        this.trackedKeyedByAggregateRootId.computeIfPresent(snapshot.getId(), (id, tracked) -> {
+            if (tracked.latest.getVersion() <= snapshot.getVersion()) return null;
+            if (tracked.storedVersion >= snapshot.getVersion()) return tracked;
+            return new Tracked(tracked.latest, tracked.lastActive, snapshot.getVersion());
+        });
+    }
+
+    /**
+     * Get the number of events that an aggregate root entity has had since its last stored snapshot
+     * @param aggregateId the id of the entity
+     * @return the number of events, or zero if the entity is not being tracked
+     */
+    public int getEventsSinceSnapshot(EntityId aggregateId) {
+        Tracked tracked = this.trackedKeyedByAggregateRootId.get(aggregateId);
+        return tracked == null ? 0 : tracked.getEventsSinceSnapshot();
+    }
+
+    /**
+     * Get the number of aggregate root entities that have had events since their last stored snapshot
+     * @return the number of entities being tracked
+     */
+    public int getTrackedCount() {
+        return this.trackedKeyedByAggregateRootId.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void sweep() {
+        long cutoff = System.nanoTime() - this.quietPeriodNanos;
+
+        List<Tracked> idle = new ArrayList<>();
+        for (Tracked tracked : this.trackedKeyedByAggregateRootId.values()) {
+            if (tracked.lastActive - cutoff < 0) idle.add(tracked);
+        }
+        idle.sort(Comparator.comparingInt(Tracked::getEventsSinceSnapshot).reversed());
+
+        for (Tracked tracked : idle.subList(0, Math.min(idle.size(), this.maxSnapshotsPerSweep))) {
+            // Only snapshot the entity if it has not moved on since it was found to be idle
+            if (this.trackedKeyedByAggregateRootId.get(tracked.latest.getId()) != tracked) continue;
+
+            T snapshot = tracked.latest.isSnapshot() ? tracked.latest : (T) tracked.latest.asSnapshot();
+            try {
+                this.repository.storeSnapshot(snapshot);
+            } catch (RuntimeException e) {
+                // The snapshot is only an optimisation, so the entity is left tracked to be tried again
+                continue;
+            }
+            this.snapshotStored(snapshot);
+        }
+    }
+
+    /**
+     * Stop snapshotting idle entities
+     */
+    @Override
+    public void close() {
+        this.sweeper.shutdownNow();
+    }
+}
@@ -1,63 +1,142 @@
 package uk.co.codeloft.ripl.core;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class InMemoryAggregateRootRepository<T extends AggregateRoot> implements AggregateRootRepository<T> {
 
     /**
      * Somewhere to store the commands
      */
-    private Map<String, Command<T>> commands;
+    private Map<EntityId, Command<T>> commands;
 
     /**
-     * Somewhere to store the events
+     * Everything held for one aggregate root entity
      */
-    private Map<String, Event<T>> events;
+    private static class AggregateStream<T extends AggregateRoot> {
+
+        /**
+         * The events, keyed and ordered by the version that each event produces
+         */
+        private final NavigableMap<Integer, Event<T>> events = new ConcurrentSkipListMap<>();
+
+        /**
+         * The version of the most recent event.  Appends are conditional on this, which is advanced with a
+         * compare-and-set before the event is published, so readers never trust it; they read the events up to the
+         * first missing version instead (see {@link #contiguous(int)})
+         */
+        private final AtomicInteger head = new AtomicInteger();
+
+        /**
+         * The most recent snapshot.  It is only ever replaced by a snapshot of a later version, and only once that
+         * snapshot has been stored
+         */
+        private final AtomicReference<T> latestSnapshot = new AtomicReference<>();
+
+        /**
+         * Get the events from a given version up to, but not including, the first version whose event is yet to be
+         * published.  A writer that has claimed a version may still be publishing its event when the writer of the
+         * next version has published its own, so the events that follow a missing version are left for a later read.
+         * @param fromVersion the version of the first event required
+         * @return the events, in version order, with no gaps
+         */
+        private List<Event<T>> contiguous(int fromVersion) {
+            List<Event<T>> result = new ArrayList<>();
+            int expected = Math.max(fromVersion, 1);
+            for (Map.Entry<Integer, Event<T>> entry : this.events.tailMap(expected, true).entrySet()) {
+                if (entry.getKey() != expected) break;
+                result.add(entry.getValue());
+                expected++;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The stream of each aggregate root entity.  Writers to different entities touch different streams, so they only
+     * meet here when a stream is first created
+     */
+    private Map<EntityId, AggregateStream<T>> streamsKeyedByAggregateRootId;
+
+    /**
+     * All events, keyed and ordered by their global position
+     */
+    private NavigableMap<Long, Event<T>> eventsKeyedByPosition;
+
+    /**
+     * The global position allocated to the most recently stored event
+     */
+    private AtomicLong lastPosition;
+
+    /**
+     * The global position up to which every event has been published.  Positions are allocated before their events
+     * are published, so a later position may be published first; readers of the global order stop here, so that they
+     * never pass over an event that is yet to appear
+     */
+    private AtomicLong committedPosition;
 
     /**
      * Somewhere to store snapshots.  A snapshot is a fully-hydrated version of an aggregate to which
      * later events can be applied to obtain later versions of the same entity
      */
-    private Map<String, T> snapshots;
-
-    private Map<String, String> latestSnapshotsKeyedByAggregateRootId;
+    private Map<EntityId, T> snapshots;
 
     public InMemoryAggregateRootRepository() {
-        this.commands = new HashMap<>();
-        this.events = new HashMap<>();
-        this.snapshots = new HashMap<>();
-        this.latestSnapshotsKeyedByAggregateRootId = new HashMap<>();
+        this.commands = new ConcurrentHashMap<>();
+        this.streamsKeyedByAggregateRootId = new ConcurrentHashMap<>();
+        this.eventsKeyedByPosition = new ConcurrentSkipListMap<>();
+        this.lastPosition = new AtomicLong();
+        this.committedPosition = new AtomicLong();
+        this.snapshots = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get the latest version of a specific aggregate root entity.  This is the most recent snapshot if no events
+     * follow it; otherwise the events that follow it are folded onto it in version order.
+     * @param id the identity of the aggregate root entity required
+     * @return an {@link Optional} containting the sub-type instance of {@link AggregateRoot} if it exists
+     */
+    @Override
+    public Optional<T> getLatest(EntityId id) {
+        AggregateStream<T> stream = this.streamsKeyedByAggregateRootId.get(id);
+        if (stream == null) return Optional.empty();
+
+        T root = stream.latestSnapshot.get();
+
+        // Versions are immutable, so the events that follow the snapshot are folded into new versions and the snapshot
+        // itself is left as it is
+        root = AggregateRootRepository.replay(root, stream.contiguous(root == null ? 1 : root.getVersion() + 1));
+
+        return Optional.ofNullable(root);
+    }
+
+    @Override
+    public List<Event<T>> getEvents(EntityId aggregateId, int fromVersion) {
+        AggregateStream<T> stream = this.streamsKeyedByAggregateRootId.get(aggregateId);
+
+        return stream == null ? List.of() : stream.contiguous(fromVersion);
     }
 
     @Override
-    public Optional<T> getLatest(String id) {
-        String snapshotId = this.latestSnapshotsKeyedByAggregateRootId.get(id);
-
-        if (this.snapshots.containsKey(snapshotId)) {
-            T root = this.snapshots.get(snapshotId);
-
-            // TODO: INFLATE THE SNAPSHOT TO THE LATEST VERSION
-
-            // We have a little problem.  Commands and Events have been coded such that they have a reference to the
-            // AR that they relate to.  This is not nice ... it means that whenever we retrieve either commands or
-            // events, we need to retrieve or de-serialze the AR targeted or emerging.  This kind of defeats the point.
-            // I think we should store the ID of the AR, but not a reference to it.  The implications of this need to be elaborated.
-            //
-            // - What happens when we 'perform' a command ?
-            //  - we need to retrieve and inflate the AR, and check the pre-conditions
-            // - What happens when we apply an event
-            //  - we apply it to an AR - we need to pass the AR to apply!
-
-            // This seems to be a case of calling a reduce() function ... in each iteration we want to pass the result
-            // of applying the previous event until there are no more events left to apply
-
-            //this.getEventsAfterVersion(root.getVersion()).map(e -> e.apply())
-            return Optional.of(root);
-        } else {
-            return Optional.empty();
+    public List<Event<T>> getEventsFrom(long fromPosition, int maxEvents) {
+        List<Event<T>> result = new ArrayList<>();
+        long committed = this.committedPosition.get();
+        if (fromPosition > committed) return result;
+
+        for (Event<T> event : this.eventsKeyedByPosition.subMap(fromPosition, true, committed, true).values()) {
+            if (result.size() == maxEvents) break;
+            result.add(event);
         }
+
+        return result;
     }
 
     @Override
@@ -67,13 +146,37 @@ public class InMemoryAggregateRootRepository<T extends AggregateRoot> implements
 
     @Override
     public void storeEvent(Event<T> event) {
-        events.put(event.getId(), event);
+        AggregateStream<T> stream = this.streamsKeyedByAggregateRootId.computeIfAbsent(
+                event.getAggregateId(), k -> new AggregateStream<>());
+        if (!stream.head.compareAndSet(event.getVersion() - 1, event.getVersion()))
+            throw new ConcurrencyException(event.getAggregateId(), event.getVersion() - 1, stream.head.get());
+
+        event.assignPosition(this.lastPosition.incrementAndGet());
+        this.eventsKeyedByPosition.put(event.getPosition(), event);
+        stream.events.put(event.getVersion(), event);
+
+        // Advance the committed position over every event published in order so far, which may include events
+        // published by other writers while this one was waiting to publish its own
+        long committed = this.committedPosition.get();
+        while (this.eventsKeyedByPosition.containsKey(committed + 1)) {
+            this.committedPosition.compareAndSet(committed, committed + 1);
+            committed = this.committedPosition.get();
+        }
     }
 
+    /**
+     * Store a snapshot and then publish it as the latest, so that a reader never finds a latest snapshot that has not
+     * been stored.  A snapshot that is older than the one already published (because two writers raced to store
+     * theirs) is stored but not published.
+     * @param snapshot the snapshot to store
+     */
     @Override
     public void storeSnapshot(T snapshot) {
-        snapshot.resetLsVersion();
         this.snapshots.put(snapshot.getSnapshotId(), snapshot);
-        this.latestSnapshotsKeyedByAggregateRootId.put(snapshot.getId(), snapshot.getSnapshotId());
+
+        AggregateStream<T> stream = this.streamsKeyedByAggregateRootId.computeIfAbsent(
+                snapshot.getId(), k -> new AggregateStream<>());
+        stream.latestSnapshot.accumulateAndGet(snapshot,
+                (current, candidate) -> current == null || candidate.getVersion() >= current.getVersion() ? candidate : current);
     }
 }
@@ -0,0 +1,162 @@
+package uk.co.codeloft.ripl.core;
+
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable, balanced (AVL) tree of index entries, each of which maps a key to the slot of a child in a
+ * {@link ChildCollection}.  Entries are ordered by key (with {@code null} first) and then by slot, so several children
+ * may share a key.  Inserting or removing an entry copies only the nodes on the path to it, so every version of a
+ * collection can keep its own index without copying it.
+ */
+final class IndexTree {
+
+    static final IndexTree EMPTY = new IndexTree(null);
+
+    /**
+     * Stands for a missing bound of a range of keys (as {@code null} is a valid key)
+     */
+    static final Object UNBOUNDED = new Object();
+
+    private static final class Node {
+        private final Comparable<Object> key;
+        private final int slot;
+        private final Node left;
+        private final Node right;
+        private final int height;
+
+        private Node(Comparable<Object> key, int slot, Node left, Node right) {
+            this.key = key;
+            this.slot = slot;
+            this.left = left;
+            this.right = right;
+            this.height = 1 + Math.max(height(left), height(right));
+        }
+    }
+
+    private final Node root;
+
+    private IndexTree(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Get a tree with an entry added
+     * @param key the key, which may be {@code null}
+     * @param slot the slot of the child
+     * @return a new tree
+     */
+    @SuppressWarnings("unchecked")
+    IndexTree insert(Object key, int slot) {
+        return new IndexTree(insert(this.root, (Comparable<Object>) key, slot));
+    }
+
+    /**
+     * Get a tree with an entry removed
+     * @param key the key of the entry
+     * @param slot the slot of the child
+     * @return a new tree
+     */
+    @SuppressWarnings("unchecked")
+    IndexTree remove(Object key, int slot) {
+        return new IndexTree(remove(this.root, (Comparable<Object>) key, slot));
+    }
+
+    /**
+     * Visit, in order, the slots of the entries whose keys lie in a range
+     * @param from the lowest key, or {@link #UNBOUNDED} for no lower bound
+     * @param to the highest key, or {@link #UNBOUNDED} for no upper bound
+     * @param toInclusive whether the highest key is itself included
+     * @param visitor receives the slots
+     */
+    void visit(Object from, Object to, boolean toInclusive, IntConsumer visitor) {
+        visit(this.root, from, to, toInclusive, visitor);
+    }
+
+    /**
+     * Get the height of the tree, which is logarithmic in the number of entries while it stays balanced
+     * @return the height, or zero if the tree is empty
+     */
+    int height() {
+        return height(this.root);
+    }
+
+    static int compareKeys(Comparable<Object> a, Comparable<Object> b) {
+        if (a == null) return b == null ? 0 : -1;
+        if (b == null) return 1;
+        return a.compareTo(b);
+    }
+
+    private static int compare(Comparable<Object> key, int slot, Node node) {
+        int c = compareKeys(key, node.key);
+        return c != 0 ? c : Integer.compare(slot, node.slot);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void visit(Node node, Object from, Object to, boolean toInclusive, IntConsumer visitor) {
+        if (node == null) return;
+
+        boolean aboveFrom = from == UNBOUNDED || compareKeys(node.key, (Comparable<Object>) from) >= 0;
+        int c = to == UNBOUNDED ? -1 : compareKeys(node.key, (Comparable<Object>) to);
+        boolean belowTo = c < 0 || (c == 0 && toInclusive);
+
+        if (aboveFrom) visit(node.left, from, to, toInclusive, visitor);
+        if (aboveFrom && belowTo) visitor.accept(node.slot);
+        if (belowTo) visit(node.right, from, to, toInclusive, visitor);
+    }
+
+    private static Node insert(Node node, Comparable<Object> key, int slot) {
+        if (node == null) return new Node(key, slot, null, null);
+
+        int c = compare(key, slot, node);
+        if (c == 0) return node;
+
+        return c < 0
+                ? balance(node.key, node.slot, insert(node.left, key, slot), node.right)
+                : balance(node.key, node.slot, node.left, insert(node.right, key, slot));
+    }
+
+    private static Node remove(Node node, Comparable<Object> key, int slot) {
+        if (node == null) return null;
+
+        int c = compare(key, slot, node);
+        if (c < 0) return balance(node.key, node.slot, remove(node.left, key, slot), node.right);
+        if (c > 0) return balance(node.key, node.slot, node.left, remove(node.right, key, slot));
+
+        if (node.left == null) return node.right;
+        if (node.right == null) return node.left;
+
+        // Replace the node with its successor
+        Node successor = node.right;
+        while (successor.left != null) successor = successor.left;
+        return balance(successor.key, successor.slot, node.left, remove(node.right, successor.key, successor.slot));
+    }
+
+    private static Node balance(Comparable<Object> key, int slot, Node left, Node right) {
+        int difference = height(left) - height(right);
+
+        if (difference > 1) {
+            if (height(left.left) < height(left.right)) left = rotateLeft(left);
+            return rotateRight(new Node(key, slot, left, right));
+        }
+        if (difference < -1) {
+            if (height(right.right) < height(right.left)) right = rotateRight(right);
+            return rotateLeft(new Node(key, slot, left, right));
+        }
+
+        return new Node(key, slot, left, right);
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        return new Node(right.key, right.slot, new Node(node.key, node.slot, node.left, right.left), right.right);
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        return new Node(left.key, left.slot, left.left, new Node(node.key, node.slot, left.right, node.right));
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+}
@@ -0,0 +1,304 @@
+package uk.co.codeloft.ripl.core;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * A segment of an append-only event journal.  A segment is a file of fixed capacity that is mapped into memory in
+ * its entirety and holds the events for a contiguous range of global positions, starting at its base position.
+ * <p>
+ * Each record is laid out as follows, with the checksum covering everything after it:
+ * <pre>
+ *     int   length of the record, excluding this field and the checksum
+ *     int   CRC32 checksum
+ *     long  global position
+ *     int   version of the aggregate root entity
+ *     short length of the aggregate root id
+ *     byte[] aggregate root id (two longs, or in a record written before ids were binary, its string form in UTF-8)
+ *     byte[] encoded event
+ * </pre>
+ * A zero length marks the end of the records in a segment.  Every {@code indexInterval}-th record is entered in a
+ * sparse index so that a record can be located from its position by a short forward scan.
+ */
+class JournalSegment implements Closeable {
+
+    /**
+     * The number of bytes that precede the part of the record covered by the checksum
+     */
+    private static final int PREFIX_LENGTH = Integer.BYTES + Integer.BYTES;
+
+    /**
+     * The number of fixed-length bytes in the part of the record covered by the checksum
+     */
+    private static final int FIXED_LENGTH = Long.BYTES + Integer.BYTES + Short.BYTES;
+
+    /**
+     * The length of an aggregate root id in binary form
+     */
+    private static final int ID_LENGTH = 2 * Long.BYTES;
+
+    /**
+     * Notified of each record found when an existing segment is opened
+     */
+    interface RecordVisitor {
+        void visit(long position, EntityId aggregateId, int version);
+    }
+
+    /**
+     * A view of a single record.  The body is a slice of the mapped segment, not a copy of it.
+     */
+    @Getter
+    static class Entry {
+        private final long position;
+        private final EntityId aggregateId;
+        private final int version;
+        private final ByteBuffer body;
+        private final int nextOffset;
+
+        private Entry(long position, EntityId aggregateId, int version, ByteBuffer body, int nextOffset) {
+            this.position = position;
+            this.aggregateId = aggregateId;
+            this.version = version;
+            this.body = body;
+            this.nextOffset = nextOffset;
+        }
+    }
+
+    @Getter
+    private final Path path;
+
+    @Getter
+    private final long basePosition;
+
+    private final int indexInterval;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Offsets of every {@code indexInterval}-th record, keyed by global position
+     */
+    private final NavigableMap<Long, Integer> sparseIndex = new ConcurrentSkipListMap<>();
+
+    /**
+     * The offset at which the next record will be written
+     */
+    @Getter
+    private volatile int writeOffset;
+
+    private int recordCount;
+
+    /**
+     * Open (creating if necessary) a segment, and recover any records that it already holds
+     * @param path the file that holds the segment
+     * @param basePosition the global position of the first record in the segment
+     * @param capacity the size of the segment in bytes
+     * @param indexInterval the number of records between entries in the sparse index
+     * @param visitor notified of each record recovered from an existing segment
+     * @throws IOException if the segment cannot be opened or mapped
+     */
+    JournalSegment(Path path, long basePosition, int capacity, int indexInterval, RecordVisitor visitor) throws IOException {
+        this.path = path;
+        this.basePosition = basePosition;
+        this.indexInterval = indexInterval;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.recover(visitor);
+    }
+
+    /**
+     * Scan the segment from the start, indexing each intact record, and stop at the first one that is absent or
+     * fails its checksum.  Anything beyond that point is the remains of an interrupted write, so it is cleared.
+     */
+    private void recover(RecordVisitor visitor) {
+        int offset = 0;
+
+        while (true) {
+            int length = this.readLength(offset);
+            if (length <= 0 || !this.isIntact(offset, length)) break;
+
+            Entry entry = this.entryAt(offset);
+            this.indexRecord(entry.getPosition(), offset);
+            visitor.visit(entry.getPosition(), entry.getAggregateId(), entry.getVersion());
+            offset = entry.getNextOffset();
+        }
+
+        if (this.readLength(offset) != 0) {
+            for (int i = offset; i < this.buffer.capacity(); i++) this.buffer.put(i, (byte) 0);
+        }
+
+        this.writeOffset = offset;
+    }
+
+    private int readLength(int offset) {
+        if (offset + PREFIX_LENGTH > this.buffer.capacity()) return 0;
+        int length = this.buffer.getInt(offset);
+        return offset + PREFIX_LENGTH + length > this.buffer.capacity() ? -1 : length;
+    }
+
+    private boolean isIntact(int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(this.buffer.slice(offset + PREFIX_LENGTH, length));
+        return (int) crc.getValue() == this.buffer.getInt(offset + Integer.BYTES);
+    }
+
+    private void indexRecord(long position, int offset) {
+        if (this.recordCount++ % this.indexInterval == 0) this.sparseIndex.put(position, offset);
+    }
+
+    /**
+     * Encode an aggregate root id for a record
+     * @param aggregateId the id
+     * @return the encoded id
+     */
+    static byte[] encodeId(EntityId aggregateId) {
+        return ByteBuffer.allocate(ID_LENGTH)
+                .putLong(aggregateId.getMostSignificantBits())
+                .putLong(aggregateId.getLeastSignificantBits())
+                .array();
+    }
+
+    /**
+     * Get the number of bytes that a record will occupy
+     * @param aggregateId the encoded aggregate root id
+     * @param body the encoded event
+     * @return the number of bytes
+     */
+    static int recordLength(byte[] aggregateId, byte[] body) {
+        return PREFIX_LENGTH + FIXED_LENGTH + aggregateId.length + body.length;
+    }
+
+    /**
+     * Determine whether there is room for a record of a given length.  A trailing zero length must always fit.
+     * @param recordLength the length of the record
+     * @return {@code true} or {@code false}
+     */
+    boolean hasRoomFor(int recordLength) {
+        return this.writeOffset + recordLength + Integer.BYTES <= this.buffer.capacity();
+    }
+
+    /**
+     * Append a record to the segment.  The record is not durable until {@link #force(int, int)} is called
+     * @return the offset of the record
+     */
+    int append(long position, byte[] aggregateId, int version, byte[] body) {
+        int offset = this.writeOffset;
+        int length = FIXED_LENGTH + aggregateId.length + body.length;
+
+        int cursor = offset + PREFIX_LENGTH;
+        this.buffer.putLong(cursor, position);
+        this.buffer.putInt(cursor + Long.BYTES, version);
+        this.buffer.putShort(cursor + Long.BYTES + Integer.BYTES, (short) aggregateId.length);
+        this.buffer.put(cursor + FIXED_LENGTH, aggregateId);
+        this.buffer.put(cursor + FIXED_LENGTH + aggregateId.length, body);
+
+        CRC32 crc = new CRC32();
+        crc.update(this.buffer.slice(cursor, length));
+        this.buffer.putInt(offset + Integer.BYTES, (int) crc.getValue());
+
+        // Write the length last so that a record is never visible before it is complete
+        this.buffer.putInt(offset, length);
+
+        this.indexRecord(position, offset);
+        this.writeOffset = offset + PREFIX_LENGTH + length;
+        return offset;
+    }
+
+    /**
+     * Discard the records from a given offset onwards, which must be that of a record appended since the segment was
+     * last forced.  Its length is cleared, which marks the end of the records in the segment, and is forced to
+     * storage in case any part of the discarded records reached it.
+     * @param offset the offset of the first record to discard
+     */
+    void truncate(int offset) {
+        for (int discarded = offset; discarded < this.writeOffset; discarded += PREFIX_LENGTH + this.buffer.getInt(discarded)) {
+            this.recordCount--;
+        }
+        this.sparseIndex.values().removeIf(indexed -> indexed >= offset);
+
+        this.buffer.putInt(offset, 0);
+        this.writeOffset = offset;
+        this.buffer.force(offset, Integer.BYTES);
+    }
+
+    /**
+     * Force a range of the segment to storage
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     */
+    void force(int offset, int length) {
+        this.buffer.force(offset, length);
+    }
+
+    /**
+     * Get the offset of the record at a given position by a forward scan from the nearest sparse index entry
+     * @param position the global position of the record
+     * @return the offset of the record, or {@code -1} if the segment does not hold it
+     */
+    int offsetOf(long position) {
+        Long floor = this.sparseIndex.floorKey(position);
+        if (floor == null) return -1;
+
+        int offset = this.sparseIndex.get(floor);
+        int end = this.writeOffset;
+        while (offset < end) {
+            long found = this.buffer.getLong(offset + PREFIX_LENGTH);
+            if (found == position) return offset;
+            if (found > position) break;
+            offset += PREFIX_LENGTH + this.buffer.getInt(offset);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get a view of the record at a given offset
+     * @param offset the offset of the record
+     * @return the record
+     */
+    Entry entryAt(int offset) {
+        int length = this.buffer.getInt(offset);
+        int cursor = offset + PREFIX_LENGTH;
+
+        long position = this.buffer.getLong(cursor);
+        int version = this.buffer.getInt(cursor + Long.BYTES);
+        short idLength = this.buffer.getShort(cursor + Long.BYTES + Integer.BYTES);
+
+        EntityId id;
+        if (idLength == ID_LENGTH) {
+            id = new EntityId(this.buffer.getLong(cursor + FIXED_LENGTH), this.buffer.getLong(cursor + FIXED_LENGTH + Long.BYTES));
+        } else {
+            byte[] encoded = new byte[idLength];
+            this.buffer.get(cursor + FIXED_LENGTH, encoded);
+            id = EntityId.parse(new String(encoded, StandardCharsets.UTF_8));
+        }
+
+        int bodyOffset = cursor + FIXED_LENGTH + idLength;
+        int bodyLength = length - FIXED_LENGTH - idLength;
+
+        return new Entry(
+                position,
+                id,
+                version,
+                this.buffer.slice(bodyOffset, bodyLength),
+                cursor + length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.buffer.force();
+        this.channel.close();
+    }
+}
@@ -0,0 +1,442 @@
+package uk.co.codeloft.ripl.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A repository that holds the latest snapshot of each aggregate root entity in encoded form, outside the heap, in front
+ * of another repository that holds the commands and events.  However many entities there are, the heap only holds a
+ * small location for each one, so cold snapshots put no weight on the old generation and no work on the collector.
+ * Retrieving an entity decodes its snapshot (see {@link SnapshotCodec}) and applies the events that follow it, so
+ * recently used entities are best cached in front of this repository (see {@link CachingAggregateRootRepository}).
+ * <p>
+ * Each snapshot after the first is written as a delta (see {@link SnapshotCodec#encodeDelta}) holding only the
+ * entities changed since the one before, so the bytes written for a snapshot grow with the changes rather than the
+ * size of the entity.  An entity's snapshot is therefore held as a chain of records: a base and the deltas that follow
+ * it.  Once a chain reaches a maximum number of deltas, or its deltas together outgrow its base, the next snapshot is
+ * written in full as a new base and the old chain is superseded, which bounds the work of decoding a chain.
+ * <p>
+ * Records are written into slabs, each a direct {@link ByteBuffer} of a fixed size, by bumping the top of the current
+ * slab; a record larger than a slab is given a slab of its own.  A record that is superseded is left in place as
+ * garbage.  When the live records in a full slab fall below a
+ * threshold the slab is compacted: its live records are copied to the current slab and it is discarded, so that its
+ * memory is released once the buffer is collected.  A slab is never written again once it is full, so readers can
+ * decode a record without locking even while it is being moved.
+ * <p>
+ * Snapshots are not passed on to the underlying repository, which would otherwise hold them on the heap.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the repository handles
+ */
+public class OffHeapSnapshotRepository<T extends AggregateRoot> implements AggregateRootRepository<T> {
+
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    public static final int DEFAULT_MAX_DELTAS = 8;
+
+    /**
+     * The size of the header of each record: the id of the entity and the length of the encoded snapshot
+     */
+    private static final int HEADER = 2 * Long.BYTES + Integer.BYTES;
+
+    /**
+     * A region of memory outside the heap into which records are appended
+     */
+    private static class Slab {
+        private final ByteBuffer buffer;
+
+        /**
+         * The offset at which the next record is written.  Only changed while holding the repository's lock
+         */
+        private int top;
+
+        /**
+         * The number of bytes occupied by live records.  Only changed while holding the repository's lock
+         */
+        private int live;
+
+        private Slab(int capacity) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        private boolean hasRoomFor(int length) {
+            return this.buffer.capacity() - this.top >= length;
+        }
+    }
+
+    /**
+     * Where a record is held, and the record it is a delta of (if any).  The location of the latest record of an
+     * entity is the head of its chain
+     */
+    private static class Location {
+        private final Slab slab;
+        private final int offset;
+        private final int length;
+        private final int version;
+        private final Location previous;
+
+        /**
+         * The number of deltas in the chain up to and including this record
+         */
+        private final int deltas;
+
+        /**
+         * The lengths of the base of the chain and of the deltas up to and including this record
+         */
+        private final int baseLength;
+        private final long deltaLength;
+
+        private Location(Slab slab, int offset, int length, int version, Location previous) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+            this.previous = previous;
+            this.deltas = previous == null ? 0 : previous.deltas + 1;
+            this.baseLength = previous == null ? length : previous.baseLength;
+            this.deltaLength = previous == null ? 0 : previous.deltaLength + length;
+        }
+
+        private ByteBuffer body() {
+            return this.slab.buffer.slice(this.offset + HEADER, this.length);
+        }
+
+        private boolean isAt(Slab slab, int offset) {
+            return this.slab == slab && this.offset == offset;
+        }
+
+        /**
+         * Get the bodies of the records in this chain, from the base to this record
+         */
+        private List<ByteBuffer> bodies() {
+            ByteBuffer[] bodies = new ByteBuffer[this.deltas + 1];
+            for (Location location = this; location != null; location = location.previous) {
+                bodies[location.deltas] = location.body();
+            }
+            return Arrays.asList(bodies);
+        }
+
+        /**
+         * Get a copy of this chain in which one record has been moved.  Each record in a chain is of a different
+         * version, so the record is identified by its version
+         */
+        private Location relocate(Location moved) {
+            if (this.version == moved.version) return moved;
+
+            return new Location(this.slab, this.offset, this.length, this.version, this.previous.relocate(moved));
+        }
+    }
+
+    private final AggregateRootRepository<T> delegate;
+
+    private final SnapshotCodec<T> codec;
+
+    private final int slabSize;
+
+    private final double compactionThreshold;
+
+    private final int maxDeltas;
+
+    private final Map<EntityId, Location> locationsKeyedByAggregateRootId = new ConcurrentHashMap<>();
+
+    /**
+     * Every slab that holds live records, including the current one.  Only used while holding this repository's lock
+     */
+    private final List<Slab> slabs = new ArrayList<>();
+
+    /**
+     * The slab to which records are appended.  Only used while holding this repository's lock
+     */
+    private Slab currentSlab;
+
+    /**
+     * The slabs that have been filled since they were last checked for compaction.  They are checked once the
+     * locations being written have been published, so that a record is never moved from under a write in progress.
+     * Only used while holding this repository's lock
+     */
+    private final List<Slab> filledSlabs = new ArrayList<>();
+
+    /**
+     * The number of bytes written to store snapshots, excluding those copied by compaction.  Only used while holding
+     * this repository's lock
+     */
+    private long writtenBytes;
+
+    /**
+     * Hold snapshots in slabs of the default size, compacting a slab when less than half of it is live, and writing up
+     * to the default number of deltas between bases
+     * @param delegate the repository that holds the commands and events
+     * @param codec the codec used to convert snapshots to and from their binary form
+     */
+    public OffHeapSnapshotRepository(AggregateRootRepository<T> delegate, SnapshotCodec<T> codec) {
+        this(delegate, codec, DEFAULT_SLAB_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Hold snapshots outside the heap
+     * @param delegate the repository that holds the commands and events
+     * @param codec the codec used to convert snapshots to and from their binary form
+     * @param slabSize the size in bytes of each slab
+     * @param compactionThreshold the fraction of a full slab below which its live records are moved out of it
+     */
+    public OffHeapSnapshotRepository(AggregateRootRepository<T> delegate, SnapshotCodec<T> codec, int slabSize, double compactionThreshold) {
+        this(delegate, codec, slabSize, compactionThreshold, DEFAULT_MAX_DELTAS);
+    }
+
+    /**
+     * Hold snapshots outside the heap
+     * @param delegate the repository that holds the commands and events
+     * @param codec the codec used to convert snapshots to and from their binary form
+     * @param slabSize the size in bytes of each slab
+     * @param compactionThreshold the fraction of a full slab below which its live records are moved out of it
+     * @param maxDeltas the maximum number of deltas written after a base before the next base.  If this is zero, every
+     *                  snapshot is written in full
+     */
+    public OffHeapSnapshotRepository(
+            AggregateRootRepository<T> delegate,
+            SnapshotCodec<T> codec,
+            int slabSize,
+            double compactionThreshold,
+            int maxDeltas) {
+        if (slabSize <= HEADER) throw new IllegalArgumentException("The slab size is too small");
+
+        this.delegate = delegate;
+        this.codec = codec;
+        this.slabSize = slabSize;
+        this.compactionThreshold = compactionThreshold;
+        this.maxDeltas = Math.max(0, maxDeltas);
+        this.currentSlab = this.newSlab(slabSize);
+    }
+
+    /**
+     * Get the latest version of a specific aggregate root entity, by decoding its latest snapshot (from the chain of
+     * records that hold it) and applying the events that follow it.  If no snapshot is held, the entity is retrieved from the underlying repository.
+     * @param id the identity of the aggregate root entity required
+     * @return an {@link Optional} containting the sub-type instance of {@link AggregateRoot} if it exists
+     */
+    @Override
+    public Optional<T> getLatest(EntityId id) {
+        Location location = this.locationsKeyedByAggregateRootId.get(id);
+        if (location == null) return this.delegate.getLatest(id);
+
+        T root = this.codec.decode(location.bodies());
+
+        return Optional.of(AggregateRootRepository.replay(root, this.delegate.getEvents(id, root.getVersion() + 1)));
+    }
+
+    @Override
+    public List<Event<T>> getEvents(EntityId aggregateId, int fromVersion) {
+        return this.delegate.getEvents(aggregateId, fromVersion);
+    }
+
+    @Override
+    public List<Event<T>> getEventsFrom(long fromPosition, int maxEvents) {
+        return this.delegate.getEventsFrom(fromPosition, maxEvents);
+    }
+
+    @Override
+    public void storeCommand(Command<T> command) {
+        this.delegate.storeCommand(command);
+    }
+
+    @Override
+    public void storeCommands(List<Command<T>> commands) {
+        this.delegate.storeCommands(commands);
+    }
+
+    @Override
+    public void storeEvent(Event<T> event) {
+        this.delegate.storeEvent(event);
+    }
+
+    @Override
+    public void storeEvents(List<Event<T>> events) {
+        this.delegate.storeEvents(events);
+    }
+
+    @Override
+    public CompletableFuture<Void> storeEventAsync(Event<T> event) {
+        return this.delegate.storeEventAsync(event);
+    }
+
+    /**
+     * Encode a snapshot and write it to the current slab, unless a later snapshot of the same entity is already held.
+     * The snapshot is written as a delta of the latest one held, unless that would make its chain too long, in which
+     * case it is written in full and the old chain is released.  The snapshot is encoded before the lock is taken, so
+     * concurrent writers only serialize on the copy; if another snapshot of the same entity is stored in the meantime,
+     * it is encoded again.
+     * @param snapshot the snapshot to store
+     */
+    @Override
+    public void storeSnapshot(T snapshot) {
+        while (true) {
+            Location head = this.locationsKeyedByAggregateRootId.get(snapshot.getId());
+            if (head != null && head.version > snapshot.getVersion()) return;
+
+            boolean delta = head != null && head.version < snapshot.getVersion() && head.deltas < this.maxDeltas
+                    && head.deltaLength < head.baseLength;
+            byte[] body = delta ? this.codec.encodeDelta(snapshot, head.version) : this.codec.encode(snapshot);
+
+            synchronized (this) {
+                // The head may have been moved by compaction, which leaves its version as it was
+                Location current = this.locationsKeyedByAggregateRootId.get(snapshot.getId());
+                if (current != null && current.version > snapshot.getVersion()) return;
+                if (current != head && (current == null || head == null || current.version != head.version)) continue;
+
+                this.locationsKeyedByAggregateRootId.put(snapshot.getId(),
+                        this.write(snapshot.getId(), snapshot.getVersion(), body, delta ? current : null));
+                if (!delta && current != null) this.release(current);
+                this.writtenBytes += HEADER + body.length;
+
+                this.compactFilledSlabs();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compact every full slab in which the live records have fallen below the threshold
+     */
+    public synchronized void compact() {
+        for (Slab slab : new ArrayList<>(this.slabs)) {
+            if (this.isSparse(slab)) this.evacuate(slab);
+        }
+        this.compactFilledSlabs();
+    }
+
+    /**
+     * Get the number of slabs that hold live records
+     * @return the number of slabs
+     */
+    public synchronized int getSlabCount() {
+        return this.slabs.size();
+    }
+
+    /**
+     * Get the memory reserved outside the heap by the slabs that hold live records
+     * @return the number of bytes
+     */
+    public synchronized long getReservedBytes() {
+        long reserved = 0;
+        for (Slab slab : this.slabs) reserved += slab.buffer.capacity();
+        return reserved;
+    }
+
+    /**
+     * Get the memory occupied by live records, which are the bases and deltas that hold the latest snapshot of each
+     * entity
+     * @return the number of bytes
+     */
+    public synchronized long getLiveBytes() {
+        long live = 0;
+        for (Slab slab : this.slabs) live += slab.live;
+        return live;
+    }
+
+    /**
+     * Get the number of bytes written to store snapshots, excluding those copied when slabs are compacted
+     * @return the number of bytes
+     */
+    public synchronized long getWrittenBytes() {
+        return this.writtenBytes;
+    }
+
+    /**
+     * Append a record, starting a new slab if the current one is full
+     * @param previous the location of the record that this one is a delta of, or {@code null} if it is a base
+     * @return the location of the record
+     */
+    private Location write(EntityId id, int version, byte[] body, Location previous) {
+        int length = HEADER + body.length;
+
+        Slab slab = this.currentSlab;
+        if (length > this.slabSize) {
+            // A record too large for a slab is given one of its own, which is full from the start
+            slab = this.newSlab(length);
+        } else if (!slab.hasRoomFor(length)) {
+            this.filledSlabs.add(slab);
+            slab = this.currentSlab = this.newSlab(this.slabSize);
+        }
+
+        int offset = slab.top;
+        slab.buffer.putLong(offset, id.getMostSignificantBits());
+        slab.buffer.putLong(offset + Long.BYTES, id.getLeastSignificantBits());
+        slab.buffer.putInt(offset + 2 * Long.BYTES, body.length);
+        slab.buffer.put(offset + HEADER, body);
+        slab.top += length;
+        slab.live += length;
+
+        return new Location(slab, offset, body.length, version, previous);
+    }
+
+    /**
+     * Account for the records of a chain that has been superseded, compacting any slab that has become sparse
+     */
+    private void release(Location chain) {
+        for (Location location = chain; location != null; location = location.previous) {
+            Slab slab = location.slab;
+            slab.live -= HEADER + location.length;
+
+            if (this.slabs.contains(slab) && this.isSparse(slab)) this.evacuate(slab);
+        }
+    }
+
+    /**
+     * Compact the slabs filled since they were last checked, if records superseded while they were current have
+     * already left them sparse
+     */
+    private void compactFilledSlabs() {
+        while (!this.filledSlabs.isEmpty()) {
+            Slab slab = this.filledSlabs.remove(this.filledSlabs.size() - 1);
+            if (this.slabs.contains(slab) && this.isSparse(slab)) this.evacuate(slab);
+        }
+    }
+
+    /**
+     * Whether a slab is full (so that it will not be written again) and its live records have fallen below the
+     * threshold
+     */
+    private boolean isSparse(Slab slab) {
+        return slab != this.currentSlab && slab.live < slab.buffer.capacity() * this.compactionThreshold;
+    }
+
+    /**
+     * Copy the live records out of a slab and discard it.  A record is live if it is in the chain of its entity.  The
+     * records are copied, not decoded, and readers that found a record in the old slab can still read it there, as it
+     * is never overwritten.
+     */
+    private void evacuate(Slab slab) {
+        this.slabs.remove(slab);
+
+        int offset = 0;
+        while (offset < slab.top) {
+            EntityId id = new EntityId(slab.buffer.getLong(offset), slab.buffer.getLong(offset + Long.BYTES));
+            int length = slab.buffer.getInt(offset + 2 * Long.BYTES);
+
+            Location head = this.locationsKeyedByAggregateRootId.get(id);
+            Location location = head;
+            while (location != null && !location.isAt(slab, offset)) location = location.previous;
+
+            if (location != null) {
+                byte[] body = new byte[length];
+                slab.buffer.get(offset + HEADER, body);
+                Location moved = this.write(id, location.version, body, location.previous);
+                this.locationsKeyedByAggregateRootId.put(id, head.relocate(moved));
+            }
+
+            offset += HEADER + length;
+        }
+    }
+
+    private Slab newSlab(int capacity) {
+        Slab slab = new Slab(capacity);
+        this.slabs.add(slab);
+        return slab;
+    }
+}
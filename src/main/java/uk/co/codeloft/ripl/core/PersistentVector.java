@@ -0,0 +1,174 @@
+package uk.co.codeloft.ripl.core;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable, indexed sequence.  Elements are held in a trie of 32-way nodes, so appending or replacing an element
+ * copies only the nodes on the path to it (at most a handful, even for millions of elements) and the new sequence
+ * shares every other node with the old one.
+ * @param <E> the type of the elements
+ */
+final class PersistentVector<E> {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, BITS, new Object[WIDTH]);
+
+    private final int size;
+
+    /**
+     * The number of bits of an index consumed below the root node
+     */
+    private final int shift;
+
+    private final Object[] root;
+
+    private PersistentVector(int size, int shift, Object[] root) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E> PersistentVector<E> empty() {
+        return (PersistentVector<E>) EMPTY;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    E get(int index) {
+        if (index < 0 || index >= this.size) throw new IndexOutOfBoundsException(index);
+
+        Object[] node = this.root;
+        for (int level = this.shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return (E) node[index & MASK];
+    }
+
+    /**
+     * Get a sequence with one element replaced
+     * @param index the index of the element to replace
+     * @param element the replacement
+     * @return a new sequence
+     */
+    PersistentVector<E> set(int index, E element) {
+        if (index < 0 || index >= this.size) throw new IndexOutOfBoundsException(index);
+
+        return new PersistentVector<>(this.size, this.shift, set(this.root, this.shift, index, element));
+    }
+
+    /**
+     * Get a sequence with several elements replaced at once.  Each node is copied at most once, however many of the
+     * elements lie beneath it, so this is cheaper than replacing the elements one at a time.
+     * @param indices the indices of the elements to replace
+     * @param elements the replacements, in the same order as the indices
+     * @return a new sequence
+     */
+    PersistentVector<E> setAll(int[] indices, List<? extends E> elements) {
+        if (indices.length == 0) return this;
+
+        // The nodes copied so far, which can therefore be changed in place.  A batch touches few nodes, so a list
+        // searched by identity is enough
+        List<Object[]> copied = new ArrayList<>();
+        Object[] root = this.root.clone();
+        copied.add(root);
+
+        for (int i = 0; i < indices.length; i++) {
+            int index = indices[i];
+            if (index < 0 || index >= this.size) throw new IndexOutOfBoundsException(index);
+
+            Object[] node = root;
+            for (int level = this.shift; level > 0; level -= BITS) {
+                int slot = (index >>> level) & MASK;
+                Object[] child = (Object[]) node[slot];
+                if (!containsNode(copied, child)) {
+                    child = child.clone();
+                    copied.add(child);
+                    node[slot] = child;
+                }
+                node = child;
+            }
+            node[index & MASK] = elements.get(i);
+        }
+
+        return new PersistentVector<>(this.size, this.shift, root);
+    }
+
+    private static boolean containsNode(List<Object[]> nodes, Object[] node) {
+        for (Object[] n : nodes) {
+            if (n == node) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get a sequence with an element added at the end
+     * @param element the element to add
+     * @return a new sequence
+     */
+    PersistentVector<E> append(E element) {
+        int index = this.size;
+
+        // Grow the trie by a level when the root is full
+        if (index == 1 << (this.shift + BITS)) {
+            Object[] root = new Object[WIDTH];
+            root[0] = this.root;
+            return new PersistentVector<>(index + 1, this.shift + BITS, set(root, this.shift + BITS, index, element));
+        }
+
+        return new PersistentVector<>(index + 1, this.shift, set(this.root, this.shift, index, element));
+    }
+
+    /**
+     * Estimate the heap occupied by this sequence, excluding the elements themselves, on a 64-bit JVM with compressed
+     * references
+     * @return the estimated number of bytes
+     */
+    long footprint() {
+        // The trie is filled from the left, so each level below the root has one node per WIDTH nodes (or elements)
+        // of the level beneath it, rounded up
+        long nodes = 1;
+        for (int level = 0; level < this.shift; level += BITS) {
+            nodes += ((long) this.size + (1L << (level + BITS)) - 1) >>> (level + BITS);
+        }
+        return 24 + nodes * (16L + 4L * WIDTH);
+    }
+
+    /**
+     * Get a read-only view of this sequence
+     * @return a {@link List} backed by this sequence
+     */
+    List<E> asList() {
+        return new AbstractList<>() {
+            @Override
+            public E get(int index) {
+                return PersistentVector.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return PersistentVector.this.size;
+            }
+        };
+    }
+
+    private static Object[] set(Object[] node, int level, int index, Object element) {
+        Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+        int slot = (index >>> level) & MASK;
+
+        copy[slot] = level == 0 ? element : set((Object[]) copy[slot], level - BITS, index, element);
+        return copy;
+    }
+}
@@ -0,0 +1,47 @@
+package uk.co.codeloft.ripl.core;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Converts snapshots of aggregate root entities, with all their descendents, to and from a binary form so that they
+ * can be held outside the heap or persisted.  A snapshot can be encoded in full, as a base, or as a delta that holds
+ * only the entities changed since an earlier snapshot; it is decoded from a base and the deltas that follow it.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the snapshots are of
+ */
+public interface SnapshotCodec<T extends AggregateRoot> {
+
+    /**
+     * Encode a snapshot in full
+     * @param snapshot the snapshot to encode
+     * @return the encoded form of the snapshot
+     */
+    public byte[] encode(T snapshot);
+
+    /**
+     * Encode a snapshot as a delta, holding the root entity and only those descendents created or changed since an
+     * earlier version
+     * @param snapshot the snapshot to encode
+     * @param sinceVersion the version of the earlier snapshot, which must be an ancestor of this one
+     * @return the encoded form of the delta
+     */
+    public byte[] encodeDelta(T snapshot, int sinceVersion);
+
+    /**
+     * Decode a snapshot, building a new version of the aggregate root entity and all its descendents
+     * @param bodies the encoded form of a base snapshot, followed by those of any deltas in the order they were
+     *               encoded, each positioned at its first byte and limited to its last.  These may be views of storage
+     *               owned by the caller, so they must not be retained after this method returns
+     * @return the snapshot
+     */
+    public T decode(List<ByteBuffer> bodies);
+
+    /**
+     * Decode a snapshot that was encoded in full
+     * @param body the encoded form of the snapshot
+     * @return the snapshot
+     */
+    public default T decode(ByteBuffer body) {
+        return this.decode(List.of(body));
+    }
+}
@@ -0,0 +1,225 @@
+package uk.co.codeloft.ripl.core;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * Decides which versions of aggregate root entities are stored as snapshots.  A policy is consulted by its
+ * {@link AggregateRootFactory} each time an event produces a new version (or, for a batch, once for the final version
+ * of each aggregate root entity in it), and is told how long it took whenever a repository replays the events that
+ * follow the last snapshot of an aggregate root entity (a version served from a cache involves no replay, so is not
+ * reported), so that a policy can weigh the cost of a snapshot against the cost of replaying the events that follow
+ * the last one.
+ * <p>
+ * The number of events since the last snapshot of a version is {@code getVersion() - getLsVersion()}.
+ */
+public interface SnapshotPolicy {
+
+    /**
+     * Decide whether a new version should be stored as a snapshot
+     * @param event the event that produced the version
+     * @param next the new version
+     * @return {@code true} if the version should be stored as a snapshot
+     */
+    boolean requiresSnapshot(Event<?> event, AggregateRoot next);
+
+    /**
+     * Decide whether a new version produced by several events, stored together as part of a batch, should be stored
+     * as a snapshot.  By default, only the last of the events is considered, which suits a policy that looks at the
+     * number of versions since the last snapshot; a policy that measures the events themselves should consider them
+     * all.
+     * @param events the events that produced the version, in order
+     * @param next the new version
+     * @return {@code true} if the version should be stored as a snapshot
+     */
+    default boolean requiresSnapshot(List<? extends Event<?>> events, AggregateRoot next) {
+        return this.requiresSnapshot(events.get(events.size() - 1), next);
+    }
+
+    /**
+     * Record the time taken to retrieve the latest version of an aggregate root entity by replaying the events that
+     * follow its last snapshot
+     * @param latest the latest version
+     * @param events the number of events replayed
+     * @param nanos the time taken, in nanoseconds
+     */
+    default void replayed(AggregateRoot latest, int events, long nanos) {}
+
+    /**
+     * Store a snapshot every {@link AggregateRoot#getSnapshotInterval()} versions, as specified by each aggregate root
+     * entity, or after every event if the interval is zero.  This is the default policy.
+     */
+    SnapshotPolicy ROOT_INTERVAL = (event, next) ->
+            next.getSnapshotInterval() == 0 || next.getVersion() % next.getSnapshotInterval() == 0;
+
+    /**
+     * Never store a snapshot of a version produced by an update.  The first version of each aggregate root entity is
+     * still stored.  This suits an application that leaves snapshots to an {@link IdleSnapshotScheduler}.
+     */
+    SnapshotPolicy NEVER = (event, next) -> false;
+
+    /**
+     * Store a snapshot once a number of events have followed the last one
+     * @param events the number of events between snapshots
+     * @return the policy
+     */
+    static SnapshotPolicy everyEvents(int events) {
+        if (events < 1) throw new IllegalArgumentException("The number of events between snapshots must be positive");
+
+        return (event, next) -> next.getVersion() - next.getLsVersion() >= events;
+    }
+
+    /**
+     * Store a snapshot once the events that have followed the last one are estimated to take a given time to replay.
+     * The estimate uses the average time taken to replay one event, measured across all aggregate root entities.
+     * @param target the replay time at which to store a snapshot
+     * @return the policy
+     */
+    static SnapshotPolicy afterReplayTime(Duration target) {
+        return new ReplayTime(target.toNanos(), false);
+    }
+
+    /**
+     * Store a snapshot once the events that have followed the last one amount to a given number of bytes.  The size
+     * of an event is the one recorded by the repository that encoded it (see {@link Event#getEncodedSize()}), so it is
+     * not encoded again; the given function is only used for an event that the repository did not encode.
+     * @param bytes the number of bytes at which to store a snapshot
+     * @param sizeOf gives the size of an event that has not been encoded, for example {@link EventCodec#sizeOf(Event)}
+     * @return the policy
+     */
+    static SnapshotPolicy afterBytes(long bytes, ToIntFunction<Event<?>> sizeOf) {
+        return new Bytes(bytes, sizeOf);
+    }
+
+    /**
+     * Store a snapshot once the events that have followed the last one are estimated to take a given time to replay,
+     * using the time measured for each aggregate root entity separately.  An entity with many children, which is slow
+     * to replay, is therefore snapshotted more often than one with a small kernel and no children.  Until an entity
+     * has been replayed, the average across all entities is used.
+     * @param target the replay time at which to store a snapshot
+     * @return the policy
+     */
+    static SnapshotPolicy adaptive(Duration target) {
+        return new ReplayTime(target.toNanos(), true);
+    }
+
+    /**
+     * Estimates replay time from measured replays, either across all aggregate root entities or for each one
+     */
+    final class ReplayTime implements SnapshotPolicy {
+
+        /**
+         * The weight given to each new measurement in the moving averages
+         */
+        private static final double WEIGHT = 0.2;
+
+        private final long targetNanos;
+
+        private final boolean perAggregate;
+
+        /**
+         * The moving average time taken to replay one event, across all aggregate root entities, or zero until one has
+         * been measured
+         */
+        private volatile double nanosPerEvent;
+
+        private final Map<EntityId, Double> nanosPerEventKeyedByAggregateRootId = new ConcurrentHashMap<>();
+
+        private ReplayTime(long targetNanos, boolean perAggregate) {
+            this.targetNanos = targetNanos;
+            this.perAggregate = perAggregate;
+        }
+
+        @Override
+        public boolean requiresSnapshot(Event<?> event, AggregateRoot next) {
+            double nanosPerEvent = this.nanosPerEvent;
+            if (this.perAggregate) nanosPerEvent = this.nanosPerEventKeyedByAggregateRootId.getOrDefault(next.getId(), nanosPerEvent);
+
+            // Nothing has been measured yet, so there is nothing to go on
+            if (nanosPerEvent == 0) return false;
+
+            return (next.getVersion() - next.getLsVersion()) * nanosPerEvent >= this.targetNanos;
+        }
+
+        @Override
+        public void replayed(AggregateRoot latest, int events, long nanos) {
+            if (events == 0) return;
+
+            double measured = (double) nanos / events;
+            this.nanosPerEvent = average(this.nanosPerEvent, measured);
+            if (this.perAggregate) this.nanosPerEventKeyedByAggregateRootId.merge(latest.getId(), measured, ReplayTime::average);
+        }
+
+        private static double average(double current, double measured) {
+            return current == 0 ? measured : current + WEIGHT * (measured - current);
+        }
+    }
+
+    /**
+     * Accumulates the size of the events that follow the last snapshot of each aggregate root entity.  Each total is
+     * kept against the version of the snapshot it follows, and starts again from zero once a later snapshot has been
+     * taken, whether or not it was this policy that called for it.
+     */
+    final class Bytes implements SnapshotPolicy {
+
+        /**
+         * The size of the events that have followed a snapshot
+         */
+        private static final class Accumulated {
+            private final int lsVersion;
+            private final long bytes;
+
+            private Accumulated(int lsVersion, long bytes) {
+                this.lsVersion = lsVersion;
+                this.bytes = bytes;
+            }
+        }
+
+        private final long bytes;
+
+        private final ToIntFunction<Event<?>> sizeOf;
+
+        private final Map<EntityId, Accumulated> accumulatedKeyedByAggregateRootId = new ConcurrentHashMap<>();
+
+        private Bytes(long bytes, ToIntFunction<Event<?>> sizeOf) {
+            this.bytes = bytes;
+            this.sizeOf = sizeOf;
+        }
+
+        @Override
+        public boolean requiresSnapshot(Event<?> event, AggregateRoot next) {
+            return this.accumulate(this.sizeOf(event), next);
+        }
+
+        @Override
+        public boolean requiresSnapshot(List<? extends Event<?>> events, AggregateRoot next) {
+            long size = 0;
+            for (Event<?> event : events) size += this.sizeOf(event);
+            return this.accumulate(size, next);
+        }
+
+        private long sizeOf(Event<?> event) {
+            return event.getEncodedSize() > 0 ? event.getEncodedSize() : this.sizeOf.applyAsInt(event);
+        }
+
+        /**
+         * Add to the size of the events that have followed the last snapshot of a version
+         * @param size the size of the events that produced the version
+         * @param next the version
+         * @return {@code true} if the events now amount to enough bytes to call for a snapshot
+         */
+        private boolean accumulate(long size, AggregateRoot next) {
+            Accumulated accumulated = this.accumulatedKeyedByAggregateRootId.compute(next.getId(), (id, current) ->
+                    current == null || current.lsVersion != next.getLsVersion()
+                            ? new Accumulated(next.getLsVersion(), size)
+                            : new Accumulated(current.lsVersion, current.bytes + size));
+            if (accumulated.bytes < this.bytes) return false;
+
+            this.accumulatedKeyedByAggregateRootId.remove(next.getId());
+            return true;
+        }
+    }
+}
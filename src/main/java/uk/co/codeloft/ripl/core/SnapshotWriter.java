@@ -0,0 +1,188 @@
+package uk.co.codeloft.ripl.core;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Stores snapshots in the background, so that the command that produces a snapshot does not wait for it to be stored.
+ * <p>
+ * Snapshots are coalesced per aggregate root entity: if a newer snapshot of an entity is submitted while an older one
+ * is still waiting, only the newer one is stored.  The queue of entities waiting to be stored is bounded, and when it
+ * is full a snapshot is dropped rather than holding up the command.  This is always safe, as is a snapshot that has
+ * been submitted but not yet stored, because a repository replays whatever events follow the latest snapshot that it
+ * holds.
+ * <p>
+ * The writer is stopped by queueing a sentinel behind the snapshots already waiting, rather than by interrupting it,
+ * so that a snapshot is never interrupted part way through being stored.
+ * @param <T> the sub-type of the {@link AggregateRoot} class that the snapshots relate to
+ */
+public class SnapshotWriter<T extends AggregateRoot> implements AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Queued, and recognised by identity, to tell the writer to stop
+     */
+    private static final EntityId CLOSED = new EntityId(0L, 0L);
+
+    private final AggregateRootRepository<T> repository;
+
+    /**
+     * Told about each snapshot once it has been stored
+     */
+    private final Consumer<T> onStored;
+
+    /**
+     * The newest snapshot waiting to be stored for each aggregate root entity
+     */
+    private final Map<EntityId, T> pendingSnapshotsKeyedByAggregateRootId = new ConcurrentHashMap<>();
+
+    /**
+     * The ids of the aggregate root entities that have a snapshot waiting, in the order they were submitted
+     */
+    private final BlockingQueue<EntityId> queue;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Held for reading while a snapshot is submitted, and for writing while the writer is closed, so that nothing is
+     * submitted once closing has begun
+     */
+    private final ReadWriteLock handOver = new ReentrantReadWriteLock();
+
+    private final Thread writer;
+
+    private volatile boolean running;
+
+    /**
+     * Start a writer with the default capacity
+     * @param repository the repository in which to store snapshots
+     */
+    public SnapshotWriter(AggregateRootRepository<T> repository) {
+        this(repository, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Start a writer
+     * @param repository the repository in which to store snapshots
+     * @param capacity the maximum number of aggregate root entities that may have a snapshot waiting to be stored
+     */
+    public SnapshotWriter(AggregateRootRepository<T> repository, int capacity) {
+        this(repository, capacity, snapshot -> {});
+    }
+
+    /**
+     * Start a writer that reports the snapshots it stores
+     * @param repository the repository in which to store snapshots
+     * @param capacity the maximum number of aggregate root entities that may have a snapshot waiting to be stored
+     * @param onStored told about each snapshot once it has been stored, on the writer's thread
+     */
+    public SnapshotWriter(AggregateRootRepository<T> repository, int capacity, Consumer<T> onStored) {
+        this.repository = repository;
+        this.onStored = onStored;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        this.running = true;
+        this.writer = new Thread(this::write, "ripl-snapshot-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Submit a snapshot to be stored, replacing any older snapshot of the same entity that is still waiting
+     * @param snapshot the snapshot
+     */
+    public void submit(T snapshot) {
+        boolean[] queued = new boolean[1];
+
+        this.handOver.readLock().lock();
+        try {
+            if (this.running) {
+                this.pendingSnapshotsKeyedByAggregateRootId.compute(snapshot.getId(), (id, waiting) -> {
+                    if (waiting == null) {
+                        // The entity has nothing waiting, so it needs a place in the queue
+                        queued[0] = this.queue.offer(id);
+                        return queued[0] ? snapshot : null;
+                    }
+                    queued[0] = true;
+                    return snapshot.getVersion() >= waiting.getVersion() ? snapshot : waiting;
+                });
+            }
+        } finally {
+            this.handOver.readLock().unlock();
+        }
+
+        if (!queued[0]) this.dropped.incrementAndGet();
+    }
+
+    /**
+     * Get the number of snapshots that were dropped because the queue was full, the writer had been closed, or the
+     * repository failed to store them
+     * @return the number of snapshots dropped
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    private void write() {
+        try {
+            EntityId id;
+            while ((id = this.queue.take()) != CLOSED) {
+                this.store(id);
+            }
+        } catch (InterruptedException e) {
+            // Interrupted by something other than close - whatever is left is stored when the writer is closed
+        }
+    }
+
+    private void store(EntityId aggregateId) {
+        T snapshot = this.pendingSnapshotsKeyedByAggregateRootId.remove(aggregateId);
+        if (snapshot == null) return;
+
+        try {
+            this.repository.storeSnapshot(snapshot);
+        } catch (RuntimeException e) {
+            this.dropped.incrementAndGet();
+            return;
+        }
+        this.onStored.accept(snapshot);
+    }
+
+    /**
+     * Stop accepting snapshots, and wait for those already submitted to be stored
+     */
+    @Override
+    public void close() {
+        this.handOver.writeLock().lock();
+        try {
+            if (!this.running) return;
+            this.running = false;
+        } finally {
+            this.handOver.writeLock().unlock();
+        }
+
+        try {
+            // The writer keeps taking from the queue until it reaches the sentinel, so room is bound to appear unless
+            // the writer has already stopped
+            while (this.writer.isAlive() && !this.queue.offer(CLOSED, 10, TimeUnit.MILLISECONDS)) {
+                // Wait for the writer to make room
+            }
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // Store anything the writer left behind, for example if it stopped early
+        for (EntityId id : this.pendingSnapshotsKeyedByAggregateRootId.keySet()) {
+            this.store(id);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package uk.co.codeloft.ripl.core;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed table of locks, each guarding every key that hashes to it.  This serializes work on the same key without a
+ * lock per key, and without a global lock: work on keys that hash to different stripes proceeds in parallel.
+ */
+public class StripedLocks {
+
+    /**
+     * A lock that has been acquired, for use in a try-with-resources statement
+     */
+    public interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final ReentrantLock[] locks;
+
+    private final int mask;
+
+    /**
+     * Create a table of locks
+     * @param stripes the minimum number of stripes.  This is rounded up to a power of two
+     */
+    public StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.locks = new ReentrantLock[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) this.locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Acquire the lock that guards a key, blocking until it is available.  The lock is re-entrant.
+     * @param key the key
+     * @return the held lock, to be closed when the work on the key is complete
+     */
+    public Held acquire(Object key) {
+        int hash = key.hashCode();
+        ReentrantLock lock = this.locks[(hash ^ (hash >>> 16)) & this.mask];
+        lock.lock();
+        return lock::unlock;
+    }
+}
@@ -38,6 +38,11 @@ public class UpdateChildCommand<R extends AggregateRoot, C extends ChildEntity,
     }
 
 
+    @Override
+    public EntityId getAggregateId() {
+        return this.targetRoot.getId();
+    }
+
     @Override
     public ChildUpdatedEvent<R, C, O> getEvent() {
         return new ChildUpdatedEvent<R, C, O>( this.getOrigin(), this);
@@ -1,10 +1,12 @@
 package uk.co.codeloft.ripl.core;
 
+import lombok.Getter;
 import uk.co.codeloft.ripl.example.holidayhome.InspectionReport;
 
 import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
 
+@Getter
 public class UpdateChildCommandTemplate<R extends AggregateRoot, C extends ChildEntity, O> {
 
     private final BiPredicate<C, O> preCondition;
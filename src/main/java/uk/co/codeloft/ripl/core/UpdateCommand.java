@@ -32,6 +32,11 @@ public class UpdateCommand<T extends AggregateRoot, O> extends Command<T> {
             throw new PreConditionException("Parameterised pre-condition was not met");
     }
 
+    @Override
+    public EntityId getAggregateId() {
+        return this.target.getId();
+    }
+
     @Override
     public UpdatedEvent<T, O> getEvent() {
         return new UpdatedEvent<>(this.getOrigin(), this);
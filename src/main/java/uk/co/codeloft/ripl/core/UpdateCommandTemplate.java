@@ -1,8 +1,11 @@
 package uk.co.codeloft.ripl.core;
 
+import lombok.Getter;
+
 import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
 
+@Getter
 public class UpdateCommandTemplate<T extends AggregateRoot, O> {
     private final BiPredicate<T, O> preCondition;
     private final BiConsumer<T, O> eventFunc;
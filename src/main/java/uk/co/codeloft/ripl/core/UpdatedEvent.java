@@ -1,5 +1,11 @@
 package uk.co.codeloft.ripl.core;
 
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.function.BiConsumer;
+
+@Getter
 public class UpdatedEvent<T extends AggregateRoot, O extends Object> extends Event<T>{
 
     /**
@@ -7,26 +13,48 @@ public class UpdatedEvent<T extends AggregateRoot, O extends Object> extends Eve
      */
     private final T aggregateRoot;
 
+    /**
+     * The function that applies the update to a version of the aggregate root
+     */
+    private final BiConsumer<T, O> applyFunc;
+
+    /**
+     * The parameter passed to the apply function
+     */
+    private final O param;
+
     public UpdatedEvent(AggregateRootFactory<T> factory, UpdateCommand<T, O> command) {
-        super(factory, command);
+        super(factory, command, command.getTarget().getId(), command.getTarget().getVersion() + 1);
         this.aggregateRoot = command.getTarget();
+        this.applyFunc = command.getApplyFunc();
+        this.param = command.getParam();
+    }
+
+    /**
+     * Re-create an instance that was previously stored
+     */
+    protected UpdatedEvent(
+            AggregateRootFactory<T> factory,
+            EntityId id,
+            Instant timestamp,
+            EntityId aggregateId,
+            int version,
+            BiConsumer<T, O> applyFunc,
+            O param) {
+        super(factory, id, timestamp, aggregateId, version);
+        this.aggregateRoot = null;
+        this.applyFunc = applyFunc;
+        this.param = param;
     }
 
     @Override
     public T apply() {
-        aggregateRoot.mutate();
-
-        UpdateCommand<T, O> cmd = (UpdateCommand<T, O>) this.getCommand();
-        cmd.getApplyFunc().accept(aggregateRoot, cmd.getParam());
-        //return cmd.getTarget();
-        return aggregateRoot;
+        return this.applyTo(this.aggregateRoot);
     }
 
     @Override
-    public boolean requiresSnapshot() {
-        return
-                this.aggregateRoot.getSnapshotInterval() == 0 ||
-                this.aggregateRoot.getVersion() % this.aggregateRoot.getSnapshotInterval() == 0;
+    @SuppressWarnings("unchecked")
+    public T applyTo(T root) {
+        return (T) root.update(root.getId(), next -> this.applyFunc.accept((T) next, this.param));
     }
 }
-
@@ -0,0 +1,78 @@
+package uk.co.codeloft.ripl.core;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * Writes and reads values of a given type (such as kernels and update parameters) in a compact binary form
+ * @param <V> the type of value
+ */
+public interface ValueCodec<V> {
+
+    public void write(V value, BinaryOutput out);
+
+    public V read(BinaryInput in);
+
+    ValueCodec<String> STRING = new ValueCodec<>() {
+        public void write(String value, BinaryOutput out) { out.writeString(value); }
+        public String read(BinaryInput in) { return in.readString(); }
+    };
+
+    ValueCodec<Integer> INTEGER = new ValueCodec<>() {
+        public void write(Integer value, BinaryOutput out) { out.writeSignedVarint(value); }
+        public Integer read(BinaryInput in) { return in.readSignedVarint(); }
+    };
+
+    ValueCodec<Long> LONG = new ValueCodec<>() {
+        public void write(Long value, BinaryOutput out) { out.writeSignedVarlong(value); }
+        public Long read(BinaryInput in) { return in.readSignedVarlong(); }
+    };
+
+    ValueCodec<Boolean> BOOLEAN = new ValueCodec<>() {
+        public void write(Boolean value, BinaryOutput out) { out.writeBoolean(value); }
+        public Boolean read(BinaryInput in) { return in.readBoolean(); }
+    };
+
+    ValueCodec<LocalDate> LOCAL_DATE = new ValueCodec<>() {
+        public void write(LocalDate value, BinaryOutput out) { out.writeSignedVarlong(value.toEpochDay()); }
+        public LocalDate read(BinaryInput in) { return LocalDate.ofEpochDay(in.readSignedVarlong()); }
+    };
+
+    ValueCodec<Instant> INSTANT = new ValueCodec<>() {
+        public void write(Instant value, BinaryOutput out) {
+            out.writeSignedVarlong(value.getEpochSecond());
+            out.writeVarint(value.getNano());
+        }
+        public Instant read(BinaryInput in) { return Instant.ofEpochSecond(in.readSignedVarlong(), in.readVarint()); }
+    };
+
+    /**
+     * Get a codec for an enumeration, which writes the ordinal of each constant
+     * @param type the class of the enumeration
+     * @return the codec
+     * @param <E> the type of the enumeration
+     */
+    static <E extends Enum<E>> ValueCodec<E> ofEnum(Class<E> type) {
+        E[] constants = type.getEnumConstants();
+        return new ValueCodec<>() {
+            public void write(E value, BinaryOutput out) { out.writeVarint(value.ordinal()); }
+            public E read(BinaryInput in) { return constants[in.readVarint()]; }
+        };
+    }
+
+    /**
+     * Get a codec that permits {@code null} values, by prefixing each value with a presence flag
+     * @param codec the codec for non-null values
+     * @return the codec
+     * @param <V> the type of value
+     */
+    static <V> ValueCodec<V> nullable(ValueCodec<V> codec) {
+        return new ValueCodec<>() {
+            public void write(V value, BinaryOutput out) {
+                out.writeBoolean(value != null);
+                if (value != null) codec.write(value, out);
+            }
+            public V read(BinaryInput in) { return in.readBoolean() ? codec.read(in) : null; }
+        };
+    }
+}
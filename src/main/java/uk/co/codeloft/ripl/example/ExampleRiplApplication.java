@@ -3,9 +3,9 @@ package uk.co.codeloft.ripl.example;
 import uk.co.codeloft.ripl.core.*;
 import uk.co.codeloft.ripl.example.holidayhome.*;
 
+import java.nio.file.Path;
 import java.time.LocalDate;
 import java.util.List;
-import java.util.function.Predicate;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Logger;
 
@@ -17,11 +17,25 @@ public class ExampleRiplApplication {
         LOGGER = Logger.getLogger(ExampleRiplApplication.class.getName());
         LOGGER.addHandler(new ConsoleHandler());
     }
-    public static void main(String[] args) {
-
-        AggregateRootRepository<HolidayHome> repo = new InMemoryAggregateRootRepository<>();
+    public static void main(String[] args) throws Exception {
+
+        // Keep everything in memory, unless we are given a directory in which to journal events (in which case recently
+        // used holiday homes are cached, so that they are not replayed from the journal for every command, and the
+        // snapshots of the rest are held in encoded form outside the heap)
+        BinaryEventCodec<HolidayHome> codec = new BinaryEventCodec<>();
+        BinarySnapshotCodec<HolidayHome> snapshotCodec = new BinarySnapshotCodec<>();
+        AggregateRootRepository<HolidayHome> repo = args.length > 0
+                ? new CachingAggregateRootRepository<>(
+                        new OffHeapSnapshotRepository<>(
+                                new FileJournalAggregateRootRepository<>(Path.of(args[0]), codec),
+                                snapshotCodec),
+                        64L * 1024 * 1024,
+                        CachingAggregateRootRepository.ESTIMATED_BYTES)
+                : new InMemoryAggregateRootRepository<>();
 
         HolidayHomeFactory factory = new HolidayHomeFactory(repo);
+        codec.bind(factory);
+        snapshotCodec.bind(factory);
 
         // Declare parent-child relationships - allow inspection reports as children of the aggregate root,
         // and allow inspection issues as children of inspection reports.
@@ -30,6 +44,13 @@ public class ExampleRiplApplication {
         factory.allowRelationship(HolidayHome.class, Booking.class, "is booked by");
         factory.allowRelationship(InspectionReport.class, InspectionIssue.class, "contains");
 
+        // Index inspection reports by inspector, so that they can be found without scanning them all
+        ChildIndex<InspectionReport, String> byInspector =
+                factory.indexChildren("inspection subject", rpt -> rpt.getKernel().getInspectorName());
+
+        // No more relationships or indexes will be declared
+        factory.freeze();
+
         // Build a HolidayHome kernel
         HolidayHome.Kernel kernel = HolidayHome.Kernel.builder()
                 .houseNumberOrName("Rosebud Cottage")
@@ -77,8 +98,7 @@ public class ExampleRiplApplication {
 
 
             // Now let's get the report we just added
-            Predicate<InspectionReport> findPredicate = rpt -> rpt.getKernel().getInspectorName().equals("Ivor Beadyeye");
-            List<InspectionReport> matchingReports = rosebudCottage.findChildren("inspection subject", findPredicate);
+            List<InspectionReport> matchingReports = byInspector.find(rosebudCottage, "Ivor Beadyeye");
 
             for (InspectionReport rpt : matchingReports) {
                 rosebudCottage = factory.changeInspectorName(rosebudCottage.getId(), rpt.getId(), "Ivor Massive Beadyeye");
@@ -86,6 +106,12 @@ public class ExampleRiplApplication {
                 print(rosebudCottage);
             }
 
+            // Import another holiday home together with its inspection reports, in one batch
+            HolidayHome.Kernel imported = kernel.toBuilder()
+                    .houseNumberOrName("Bramble Lodge")
+                    .build();
+            print(factory.importHolidayHome(imported, List.of(firstReport, secondReport)));
+
             // This should throw an exception
             rosebudCottage = factory.setNumberOfBeds(rosebudCottage.getId(), 11);
             print(rosebudCottage);
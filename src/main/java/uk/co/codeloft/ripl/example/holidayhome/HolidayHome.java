@@ -4,8 +4,11 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
 import uk.co.codeloft.ripl.core.AggregateRoot;
+import uk.co.codeloft.ripl.core.BinaryInput;
+import uk.co.codeloft.ripl.core.BinaryOutput;
 import uk.co.codeloft.ripl.core.CreatedEvent;
 import uk.co.codeloft.ripl.core.UpdateCommandTemplate;
+import uk.co.codeloft.ripl.core.ValueCodec;
 
 @Getter
 public class HolidayHome extends AggregateRoot {
@@ -17,7 +20,7 @@ public class HolidayHome extends AggregateRoot {
      * Note that there should be no complex construction logic - this class is deliberately anaemic.  Any business
      * logic associated with construction should be contained in the create command.
      */
-    @Builder
+    @Builder(toBuilder = true)
     @Getter
     @Setter
     public static class Kernel {
@@ -39,6 +42,33 @@ public class HolidayHome extends AggregateRoot {
          */
         private int numberOfBedrooms;
 
+        /**
+         * The codec used to write and read kernels in binary form
+         */
+        public static final ValueCodec<Kernel> CODEC = new ValueCodec<>() {
+            @Override
+            public void write(Kernel kernel, BinaryOutput out) {
+                out.writeString(kernel.houseNumberOrName);
+                out.writeString(kernel.street);
+                out.writeString(kernel.postalTownOrCity);
+                out.writeString(kernel.postCode);
+                out.writeString(kernel.ownerName);
+                out.writeVarint(kernel.numberOfBedrooms);
+            }
+
+            @Override
+            public Kernel read(BinaryInput in) {
+                return Kernel.builder()
+                        .houseNumberOrName(in.readString())
+                        .street(in.readString())
+                        .postalTownOrCity(in.readString())
+                        .postCode(in.readString())
+                        .ownerName(in.readString())
+                        .numberOfBedrooms(in.readVarint())
+                        .build();
+            }
+        };
+
         /**
          * Returns a String representation of this object
          * @return a representation of the object as a String
@@ -62,7 +92,7 @@ public class HolidayHome extends AggregateRoot {
     /**
      * The kernel of an instance, i.e. a bunch of attributes needed as a pre-requisite for construction
      */
-    private final Kernel kernel;
+    private Kernel kernel;
 
     /**
      * Construct a HolidayHome
@@ -78,6 +108,14 @@ public class HolidayHome extends AggregateRoot {
         this.kernel = kernel;
     }
 
+    /**
+     * Copy the kernel, so that an update applied to this (new) version does not reach earlier versions
+     */
+    @Override
+    protected void copyState() {
+        this.kernel = this.kernel.toBuilder().build();
+    }
+
     private String asString() {
         return this.getKernel().toString();
     }
@@ -3,6 +3,10 @@ package uk.co.codeloft.ripl.example.holidayhome;
 import uk.co.codeloft.ripl.core.*;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
 
@@ -59,47 +63,147 @@ public class HolidayHomeFactory extends AggregateRootFactory<HolidayHome> {
 
     public HolidayHomeFactory(AggregateRootRepository<HolidayHome> repo) {
         super(repo);
+
+        // Register the kinds of event produced by each template, so that they can be persisted in binary form.
+        // These tags are part of the stored form of events, so they must never be changed or re-used.
+        this.registerEventType(1, createHolidayHome, HolidayHome.Kernel.CODEC);
+        this.registerEventType(2, setNumberOfBeds, ValueCodec.INTEGER);
+        this.registerEventType(3, setOwner, ValueCodec.STRING);
+        this.registerEventType(4, createRpt, InspectionReport.Kernel.CODEC);
+        this.registerEventType(5, changeInspectorName, ValueCodec.STRING);
+        this.registerEventType(6, createIssue, ValueCodec.STRING);
+
+        // Register how each kind of entity is written in a snapshot held in encoded form, as the kernel that would
+        // create it in its current state
+        this.registerSnapshotType(HolidayHome.class, createHolidayHome, HolidayHome::getKernel);
+        this.registerSnapshotType(InspectionReport.class, createRpt, InspectionReport::getKernel);
+        this.registerSnapshotType(InspectionIssue.class, createIssue, InspectionIssue::getIssueDescription);
     }
 
     public HolidayHome create(HolidayHome.Kernel kernel) throws Command.PreConditionException {
         return super.perform(createHolidayHome.using(kernel));
     }
 
-    public HolidayHome setNumberOfBeds(String targetId, int noOfBeds) throws Command.PreConditionException, InvalidCommandTargetException {
-        return super.perform(setNumberOfBeds.using(this.getLatest(targetId), noOfBeds));
+    // An imported holiday home is created together with its inspection reports as one batch, so that their events are
+    // written to the repository together and the holiday home is snapshotted once, at the end, rather than after each
+    // report is added.
+
+    public HolidayHome importHolidayHome(HolidayHome.Kernel kernel, List<InspectionReport.Kernel> reports) throws Command.PreConditionException {
+        Batch batch = this.newBatch();
+
+        HolidayHome home = batch.perform(createHolidayHome.using(kernel));
+        for (InspectionReport.Kernel report : reports) {
+            home = batch.perform(createRpt.using(home, home, report, "inspection subject"));
+        }
+
+        return batch.commit().get(0);
+    }
+
+    // A holiday home migrated from another system is built from its kernel and those of its inspection reports (each
+    // paired with the issues it raised, in the order the reports were made), and handed to a bulk loader, which writes
+    // it to the repository along with many others.  Each issue is added to the report created just before it.
+
+    public EntityId load(BulkLoader<HolidayHome> loader, HolidayHome.Kernel kernel, List<Map.Entry<InspectionReport.Kernel, List<String>>> reports) throws Exception {
+        List<CommandFunction<HolidayHome>> steps = new ArrayList<>();
+
+        for (Map.Entry<InspectionReport.Kernel, List<String>> entry : reports) {
+            InspectionReport.Kernel report = entry.getKey();
+            steps.add(home -> createRpt.using(home, home, report, "inspection subject"));
+            for (String issue : entry.getValue()) {
+                steps.add(home -> {
+                    List<ChildEntity> added = home.getChildren("inspection subject");
+                    return createIssue.using(home, (InspectionReport) added.get(added.size() - 1), issue, "contains");
+                });
+            }
+        }
+
+        return loader.load(createHolidayHome.using(kernel), steps);
+    }
+
+    // Each method that updates an existing holiday home holds its lock while it retrieves the latest version and
+    // performs the command, so that concurrent updates to the same holiday home are applied one after another.
+
+    @SuppressWarnings("try")
+    public HolidayHome setNumberOfBeds(EntityId targetId, int noOfBeds) throws Command.PreConditionException, InvalidCommandTargetException {
+        try (StripedLocks.Held held = this.lock(targetId)) {
+            return super.perform(setNumberOfBeds.using(this.getLatest(targetId), noOfBeds));
+        }
+    }
+
+    @SuppressWarnings("try")
+    public HolidayHome setOwner(EntityId targetId, String newOwner) throws Command.PreConditionException, InvalidCommandTargetException {
+        try (StripedLocks.Held held = this.lock(targetId)) {
+            return super.perform(setOwner.using(this.getLatest(targetId), newOwner));
+        }
     }
 
-    public HolidayHome setOwner(String targetId, String newOwner) throws Command.PreConditionException, InvalidCommandTargetException {
-        return super.perform(setOwner.using(this.getLatest(targetId), newOwner));
+    // The asynchronous variants return as soon as the event has been accepted, so that a caller can issue several
+    // updates without waiting for each one to be written; each future completes once its event is durable.
+
+    public CompletableFuture<HolidayHome> setNumberOfBedsAsync(EntityId targetId, int noOfBeds) {
+        return super.performAsync(targetId, latest -> setNumberOfBeds.using(latest, noOfBeds));
     }
 
-    public HolidayHome createInspectionReport(String rootId, InspectionReport.Kernel kernel, String role)
+    public CompletableFuture<HolidayHome> setOwnerAsync(EntityId targetId, String newOwner) {
+        return super.performAsync(targetId, latest -> setOwner.using(latest, newOwner));
+    }
+
+    @SuppressWarnings("try")
+    public HolidayHome createInspectionReport(EntityId rootId, InspectionReport.Kernel kernel, String role)
             throws Command.PreConditionException, InvalidCommandTargetException {
-        HolidayHome root = this.getLatest(rootId);
+        try (StripedLocks.Held held = this.lock(rootId)) {
+            HolidayHome root = this.getLatest(rootId);
 
-        return super.perform(createRpt.using(root, root, kernel, role));
+            return super.perform(createRpt.using(root, root, kernel, role));
+        }
     }
 
-    public HolidayHome createInspectionIssue(String rootId, String parentReportId, String issue) throws
+    @SuppressWarnings("try")
+    public HolidayHome createInspectionIssue(EntityId rootId, EntityId parentReportId, String issue) throws
             Command.PreConditionException,
             InvalidCommandTargetException,
             InvalidObjectTypeException,
             InvalidEntityIdException {
-        HolidayHome root = this.getLatest(rootId);
-        InspectionReport parent = (InspectionReport) root.getDescendent(parentReportId, InspectionReport.class)
-                .orElseThrow(() -> new InvalidEntityIdException(parentReportId));
-        return super.perform(createIssue.using(root, parent, issue, "contains" ));
+        try (StripedLocks.Held held = this.lock(rootId)) {
+            HolidayHome root = this.getLatest(rootId);
+            InspectionReport parent = (InspectionReport) root.getDescendent(parentReportId, InspectionReport.class)
+                    .orElseThrow(() -> new InvalidEntityIdException(parentReportId));
+            return super.perform(createIssue.using(root, parent, issue, "contains" ));
+        }
     }
 
-    public HolidayHome changeInspectorName(String rootId, String reportId, String newName) throws
+    @SuppressWarnings("try")
+    public HolidayHome changeInspectorName(EntityId rootId, EntityId reportId, String newName) throws
             Command.PreConditionException,
             InvalidCommandTargetException,
             InvalidEntityIdException,
             InvalidObjectTypeException {
-        HolidayHome root = this.getLatest(rootId);
-        InspectionReport parent = (InspectionReport) root.getDescendent(reportId, InspectionReport.class)
-                .orElseThrow(() -> new InvalidEntityIdException(reportId));
+        try (StripedLocks.Held held = this.lock(rootId)) {
+            HolidayHome root = this.getLatest(rootId);
+            InspectionReport parent = (InspectionReport) root.getDescendent(reportId, InspectionReport.class)
+                    .orElseThrow(() -> new InvalidEntityIdException(reportId));
+
+            return super.perform(changeInspectorName.using(root, parent, newName));
+        }
+    }
+
+    public CompletableFuture<HolidayHome> createInspectionReportAsync(EntityId rootId, InspectionReport.Kernel kernel, String role) {
+        return super.performAsync(rootId, root -> createRpt.using(root, root, kernel, role));
+    }
+
+    public CompletableFuture<HolidayHome> createInspectionIssueAsync(EntityId rootId, EntityId parentReportId, String issue) {
+        return super.performAsync(rootId, root -> {
+            InspectionReport parent = (InspectionReport) root.getDescendent(parentReportId, InspectionReport.class)
+                    .orElseThrow(() -> new InvalidEntityIdException(parentReportId));
+            return createIssue.using(root, parent, issue, "contains");
+        });
+    }
 
-        return super.perform(changeInspectorName.using(this.getLatest(rootId), parent, newName));
+    public CompletableFuture<HolidayHome> changeInspectorNameAsync(EntityId rootId, EntityId reportId, String newName) {
+        return super.performAsync(rootId, root -> {
+            InspectionReport report = (InspectionReport) root.getDescendent(reportId, InspectionReport.class)
+                    .orElseThrow(() -> new InvalidEntityIdException(reportId));
+            return changeInspectorName.using(root, report, newName);
+        });
     }
 }
@@ -3,8 +3,11 @@ package uk.co.codeloft.ripl.example.holidayhome;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
+import uk.co.codeloft.ripl.core.BinaryInput;
+import uk.co.codeloft.ripl.core.BinaryOutput;
 import uk.co.codeloft.ripl.core.ChildCreatedEvent;
 import uk.co.codeloft.ripl.core.ChildEntity;
+import uk.co.codeloft.ripl.core.ValueCodec;
 
 import java.time.LocalDate;
 
@@ -19,7 +22,7 @@ public class InspectionReport extends ChildEntity {
         INADEQUATE,
     }
 
-    @Builder
+    @Builder(toBuilder = true)
     @Getter
     @Setter
     public static class Kernel {
@@ -27,6 +30,30 @@ public class InspectionReport extends ChildEntity {
         private LocalDate reportDate;
         private String inspectorName;
 
+        /**
+         * The codec used to write and read kernels in binary form
+         */
+        public static final ValueCodec<Kernel> CODEC = new ValueCodec<>() {
+            private final ValueCodec<InspectionGrade> gradeCodec = ValueCodec.nullable(ValueCodec.ofEnum(InspectionGrade.class));
+            private final ValueCodec<LocalDate> dateCodec = ValueCodec.nullable(ValueCodec.LOCAL_DATE);
+
+            @Override
+            public void write(Kernel kernel, BinaryOutput out) {
+                gradeCodec.write(kernel.grade, out);
+                dateCodec.write(kernel.reportDate, out);
+                out.writeString(kernel.inspectorName);
+            }
+
+            @Override
+            public Kernel read(BinaryInput in) {
+                return Kernel.builder()
+                        .grade(gradeCodec.read(in))
+                        .reportDate(dateCodec.read(in))
+                        .inspectorName(in.readString())
+                        .build();
+            }
+        };
+
         /**
          * Returns a String representation of this object
          * @return a representation of the object as a String
@@ -45,7 +72,7 @@ public class InspectionReport extends ChildEntity {
     /**
      * The kernel of an instance, i.e. a bunch of attributes needed as a pre-requisite for construction
      */
-    private final InspectionReport.Kernel kernel;
+    private InspectionReport.Kernel kernel;
 
     /**
      * The expiry date of the report - a derived field
@@ -61,6 +88,14 @@ public class InspectionReport extends ChildEntity {
         this.expiry = LocalDate.now().plusDays(120);
     }
 
+    /**
+     * Copy the kernel, so that an update applied to this (new) version does not reach earlier versions
+     */
+    @Override
+    protected void copyState() {
+        this.kernel = this.kernel.toBuilder().build();
+    }
+
     private String asString() {
         return String.format("Expiry: %s%n", this.expiry == null ? "null" : this.expiry.toString());
     }
@@ -0,0 +1,162 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionIssue;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionReport;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class AggregateRootFactoryTest {
+
+    private final InMemoryAggregateRootRepository<HolidayHome> repo = new InMemoryAggregateRootRepository<>();
+
+    private final HolidayHomeFactory factory = factory(this.repo);
+
+    @Test
+    void childCommandsCanBePerformedAsynchronously() throws Exception {
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+
+        HolidayHome home = this.factory.createInspectionReportAsync(id, report("Bob"), "inspection subject").get();
+        EntityId reportId = home.getChildren("inspection subject").get(0).getId();
+        this.factory.createInspectionIssueAsync(id, reportId, "Loose tile").get();
+        home = this.factory.changeInspectorNameAsync(id, reportId, "Cat").get();
+
+        assertEquals(4, home.getVersion());
+        InspectionReport report = (InspectionReport) home.getDescendent(reportId, InspectionReport.class).orElseThrow();
+        assertEquals("Cat", report.getKernel().getInspectorName());
+        assertEquals("Loose tile", ((InspectionIssue) report.getChildren("contains").get(0)).getIssueDescription());
+        assertEquals(4, this.repo.getLatest(id).orElseThrow().getVersion());
+    }
+
+    @Test
+    void anAsynchronousCommandOnAMissingChildFails() throws Exception {
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+        EntityId missing = new EntityId(1L, 2L);
+
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> this.factory.changeInspectorNameAsync(id, missing, "Cat").get());
+        assertInstanceOf(InvalidEntityIdException.class, failure.getCause());
+        assertEquals(1, this.repo.getLatest(id).orElseThrow().getVersion());
+    }
+
+    @Test
+    void aFailedBatchSaysWhichEntitiesWereStored() throws Exception {
+        HolidayHome ann = this.factory.create(kernel("Ann"));
+        HolidayHome bob = this.factory.create(kernel("Bob"));
+
+        AggregateRootFactory<HolidayHome>.Batch batch = this.factory.newBatch();
+        batch.perform(this.factory.setOwner.using(ann, "Ann Two"));
+        batch.perform(this.factory.setOwner.using(bob, "Bob Two"));
+
+        // Bob moves on before the batch is committed, so only Ann's event can be stored
+        this.factory.setOwner(bob.getId(), "Bob Three");
+
+        BatchCommitException failure = assertThrows(BatchCommitException.class, batch::commit);
+        assertEquals(List.of(ann.getId()), failure.getStoredIds());
+        assertEquals(List.of(bob.getId()), failure.getFailedIds());
+        assertInstanceOf(ConcurrencyException.class, failure.getCause());
+
+        assertEquals("Ann Two", this.repo.getLatest(ann.getId()).orElseThrow().getKernel().getOwnerName());
+        assertEquals("Bob Three", this.repo.getLatest(bob.getId()).orElseThrow().getKernel().getOwnerName());
+    }
+
+    @Test
+    void concurrentUpdatesToOneEntityAreAppliedOneAfterAnother() throws Exception {
+        int threads = 8;
+        int perThread = 200;
+        this.factory.enableConcurrentExecution();
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<CompletableFuture<HolidayHome>>>> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            boolean async = t % 2 == 0;
+            writers.add(executor.submit(() -> {
+                List<CompletableFuture<HolidayHome>> results = new ArrayList<>();
+                for (int i = 0; i < perThread; i++) {
+                    if (async) results.add(this.factory.setOwnerAsync(id, "Owner " + i));
+                    else results.add(CompletableFuture.completedFuture(this.factory.setOwner(id, "Owner " + i)));
+                }
+                return results;
+            }));
+        }
+
+        // Every command succeeded, none was lost, and each produced a version of its own
+        List<Integer> versions = new ArrayList<>();
+        for (Future<List<CompletableFuture<HolidayHome>>> writer : writers) {
+            for (CompletableFuture<HolidayHome> result : writer.get()) versions.add(result.get().getVersion());
+        }
+        executor.shutdown();
+
+        versions.sort(null);
+        for (int i = 0; i < versions.size(); i++) assertEquals(i + 2, versions.get(i));
+        assertEquals(1 + threads * perThread, this.repo.getLatest(id).orElseThrow().getVersion());
+        assertEquals(1 + threads * perThread, this.repo.getEvents(id, 1).size());
+    }
+
+    @Test
+    void onlyOneOfTwoCommandsBuiltFromTheSameVersionIsPerformed() throws Exception {
+        this.factory.enableConcurrentExecution();
+        HolidayHome home = this.factory.create(kernel("Ann"));
+        CyclicBarrier ready = new CyclicBarrier(2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<HolidayHome>> results = new ArrayList<>();
+        for (String owner : List.of("Bob", "Cat")) {
+            Command<HolidayHome> command = this.factory.setOwner.using(home, owner);
+            results.add(executor.submit(() -> {
+                ready.await();
+                return this.factory.perform(command);
+            }));
+        }
+
+        List<HolidayHome> performed = new ArrayList<>();
+        int conflicts = 0;
+        for (Future<HolidayHome> result : results) {
+            try {
+                performed.add(result.get());
+            } catch (ExecutionException e) {
+                assertInstanceOf(ConcurrencyException.class, e.getCause());
+                conflicts++;
+            }
+        }
+        executor.shutdown();
+
+        assertEquals(1, performed.size());
+        assertEquals(1, conflicts);
+        HolidayHome latest = this.repo.getLatest(home.getId()).orElseThrow();
+        assertEquals(2, latest.getVersion());
+        assertEquals(performed.get(0).getKernel().getOwnerName(), latest.getKernel().getOwnerName());
+    }
+
+    @Test
+    void theDefaultIdGeneratorFollowsTheClock() throws Exception {
+        Instant then = Instant.parse("2001-02-03T04:05:06Z");
+        this.factory.setClock(Clock.fixed(then, ZoneOffset.UTC));
+
+        HolidayHome home = this.factory.create(kernel("Ann"));
+        assertEquals(then, home.getCreatedAt());
+        assertEquals(then.toEpochMilli(), home.getId().getMostSignificantBits() >>> 16);
+
+        // A generator that was set explicitly is kept
+        EntityId fixed = new EntityId(1L, 2L);
+        this.factory.setIdGenerator(() -> fixed);
+        this.factory.setClock(Clock.systemUTC());
+        assertSame(fixed, this.factory.getIdGenerator().nextId());
+    }
+}
@@ -1,7 +1,165 @@
 package uk.co.codeloft.ripl.core;
 
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionReport;
+
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
 
 class AggregateRootTest {
 
-}
\ No newline at end of file
+    private final InMemoryAggregateRootRepository<HolidayHome> repo = new InMemoryAggregateRootRepository<>();
+
+    private final HolidayHomeFactory factory = factory(this.repo);
+
+    @Test
+    void earlierVersionsAreUnchangedByLaterCommands() throws Exception {
+        HolidayHome first = homeWithReports(this.factory, 3);
+        EntityId reportId = first.getChildren("inspection subject").get(1).getId();
+
+        HolidayHome second = this.factory.setNumberOfBeds(first.getId(), 5);
+        HolidayHome third = this.factory.createInspectionIssue(first.getId(), reportId, "Loose tile");
+        HolidayHome fourth = this.factory.changeInspectorName(first.getId(), reportId, "Bob");
+
+        assertEquals(2, first.getKernel().getNumberOfBedrooms());
+        assertEquals(5, fourth.getKernel().getNumberOfBedrooms());
+        assertEquals(3, first.getDescendentCount());
+        assertEquals(3, second.getDescendentCount());
+        assertEquals(4, third.getDescendentCount());
+
+        InspectionReport before = (InspectionReport) second.getDescendent(reportId, InspectionReport.class).orElseThrow();
+        InspectionReport after = (InspectionReport) fourth.getDescendent(reportId, InspectionReport.class).orElseThrow();
+        assertEquals("Inspector 1", before.getKernel().getInspectorName());
+        assertTrue(before.getChildren("contains").isEmpty());
+        assertEquals("Bob", after.getKernel().getInspectorName());
+        assertEquals(1, after.getChildren("contains").size());
+        assertEquals(after, fourth.getChildren("inspection subject").get(1));
+    }
+
+    @Test
+    void unchangedDescendentsAreSharedBetweenVersions() throws Exception {
+        HolidayHome before = homeWithReports(this.factory, 3);
+        EntityId reportId = before.getChildren("inspection subject").get(1).getId();
+        HolidayHome after = this.factory.changeInspectorName(before.getId(), reportId, "Bob");
+
+        List<ChildEntity> reportsBefore = before.getChildren("inspection subject");
+        List<ChildEntity> reportsAfter = after.getChildren("inspection subject");
+        assertSame(reportsBefore.get(0), reportsAfter.get(0));
+        assertNotSame(reportsBefore.get(1), reportsAfter.get(1));
+        assertSame(reportsBefore.get(2), reportsAfter.get(2));
+    }
+
+    @Test
+    void replayingAChildOntoTheSameVersionGivesItTheSameOrdinal() throws Exception {
+        HolidayHome base = homeWithReports(this.factory, 2);
+        HolidayHome withThird = this.factory.createInspectionReport(base.getId(), report("Cat"), "inspection subject");
+        Event<HolidayHome> created = this.repo.getEvents(base.getId(), withThird.getVersion()).get(0);
+
+        // The same event folded onto the same version again, as happens whenever the latest version is rebuilt
+        HolidayHome replayed = created.applyTo(base);
+        EntityId thirdId = withThird.getChildren("inspection subject").get(2).getId();
+        assertEquals(2, replayed.getDescendentOrdinal(thirdId));
+        assertEquals(2, withThird.getDescendentOrdinal(thirdId));
+        assertEquals(-1, base.getDescendentOrdinal(thirdId));
+
+        // A different descendent added to the same version takes the ordinal in a line of its own
+        HolidayHome other = this.factory.createRpt.using(base, base, report("Dan"), "inspection subject").getEvent().apply();
+        EntityId otherId = other.getChildren("inspection subject").get(2).getId();
+        assertEquals(2, other.getDescendentOrdinal(otherId));
+        assertEquals(-1, other.getDescendentOrdinal(thirdId));
+        assertEquals(-1, replayed.getDescendentOrdinal(otherId));
+        assertSame(other.getDescendentAt(2), other.getDescendent(otherId, InspectionReport.class).orElseThrow());
+    }
+
+    @Test
+    void descendentsAreFoundByIdAndOrdinalAsTheTableGrows() throws Exception {
+        HolidayHome early = homeWithReports(this.factory, 5);
+        HolidayHome home = early;
+        for (int i = 5; i < 300; i++) {
+            home = this.factory.createInspectionReport(home.getId(), report("Inspector " + i), "inspection subject");
+        }
+
+        List<ChildEntity> reports = home.getChildren("inspection subject");
+        assertEquals(300, home.getDescendentCount());
+        for (int ordinal = 0; ordinal < reports.size(); ordinal++) {
+            EntityId id = reports.get(ordinal).getId();
+            assertEquals(ordinal, home.getDescendentOrdinal(id));
+            assertSame(reports.get(ordinal), home.getDescendentAt(ordinal));
+        }
+        assertEquals(-1, home.getDescendentOrdinal(new EntityId(1L, 2L)));
+
+        // An earlier version shares the table but ignores the ordinals allocated after it
+        assertEquals(4, early.getDescendentOrdinal(reports.get(4).getId()));
+        assertEquals(-1, early.getDescendentOrdinal(reports.get(5).getId()));
+        assertThrows(IndexOutOfBoundsException.class, () -> early.getDescendentAt(5));
+    }
+
+    @Test
+    void aLineOfItsOwnGrowsIndependently() throws Exception {
+        HolidayHome base = homeWithReports(this.factory, 3);
+        HolidayHome main = this.factory.createInspectionReport(base.getId(), report("Main"), "inspection subject");
+
+        HolidayHome other = base;
+        for (int i = 0; i < 50; i++) {
+            other = this.factory.createRpt.using(other, other, report("Other " + i), "inspection subject").getEvent().apply();
+        }
+
+        List<ChildEntity> reports = other.getChildren("inspection subject");
+        for (int ordinal = 0; ordinal < reports.size(); ordinal++) {
+            assertEquals(ordinal, other.getDescendentOrdinal(reports.get(ordinal).getId()));
+        }
+
+        EntityId mainId = main.getChildren("inspection subject").get(3).getId();
+        assertEquals(3, main.getDescendentOrdinal(mainId));
+        assertEquals(-1, other.getDescendentOrdinal(mainId));
+        assertEquals(-1, main.getDescendentOrdinal(reports.get(3).getId()));
+    }
+
+    @Test
+    void childrenAreFoundByRoleAndByIndex() throws Exception {
+        ChildIndex<InspectionReport, String> byInspector =
+                this.factory.indexChildren("inspection subject", report -> report.getKernel().getInspectorName());
+        HolidayHome home = homeWithReports(this.factory, 3);
+
+        assertEquals(List.of("Inspector 1"), byInspector.find(home, "Inspector 1").stream()
+                .map(report -> report.getKernel().getInspectorName()).toList());
+        List<InspectionReport> found = home.findChildren("inspection subject",
+                (InspectionReport report) -> !report.getKernel().getInspectorName().endsWith("1"));
+        assertEquals(2, found.size());
+        assertThrows(IllegalArgumentException.class, () -> home.findChildren("owner", child -> true));
+    }
+
+    @Test
+    void aChildCannotBeAddedThroughARoleItsParentDoesNotHave() throws Exception {
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+
+        assertThrows(AggregateRootFactory.InvalidRelationshipInstanceException.class,
+                () -> this.factory.createInspectionReport(id, report("Zed"), "contains"));
+        assertThrows(AggregateRootFactory.InvalidRelationshipInstanceException.class,
+                () -> this.factory.createInspectionReport(id, report("Zed"), "owner"));
+        assertEquals(1, this.repo.getEvents(id, 1).size());
+    }
+
+    @Test
+    void theEstimatedFootprintCoversTheDescendentsAndDoesNotChange() throws Exception {
+        HolidayHome home = homeWithReports(this.factory, 40);
+        long footprint = home.getEstimatedFootprint();
+        assertEquals(41 * Entity.DEFAULT_FOOTPRINT + home.getDescendentIndexFootprint(), footprint);
+        assertEquals(footprint, CachingAggregateRootRepository.ESTIMATED_BYTES.applyAsLong(home));
+
+        // Later versions grow the table of ordinals that this version shares, but its estimate stays the same
+        HolidayHome later = this.factory.createInspectionReport(home.getId(), report("Zed"), "inspection subject");
+        for (int i = 0; i < 100; i++) later = this.factory.createInspectionReport(home.getId(), report("Zed " + i), "inspection subject");
+        assertEquals(footprint, home.getEstimatedFootprint());
+        assertEquals(142 * Entity.DEFAULT_FOOTPRINT + later.getDescendentIndexFootprint(), later.getEstimatedFootprint());
+
+        // Changing a descendent replaces its estimate rather than adding to it
+        EntityId reportId = later.getChildren("inspection subject").get(3).getId();
+        HolidayHome changed = this.factory.changeInspectorName(home.getId(), reportId, "Bob");
+        assertEquals(later.getEstimatedFootprint(), changed.getEstimatedFootprint());
+    }
+}
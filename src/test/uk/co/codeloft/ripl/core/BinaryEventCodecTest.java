@@ -0,0 +1,116 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionIssue;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionReport;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class BinaryEventCodecTest {
+
+    private final InMemoryAggregateRootRepository<HolidayHome> repo = new InMemoryAggregateRootRepository<>();
+
+    private final HolidayHomeFactory factory = factory(this.repo);
+
+    private final BinaryEventCodec<HolidayHome> codec = new BinaryEventCodec<>();
+
+    @BeforeEach
+    void setUp() {
+        this.codec.bind(this.factory);
+    }
+
+    @Test
+    void everyKindOfEventSurvivesARoundTrip() throws Exception {
+        EntityId id = this.factory.create(HolidayHome.Kernel.builder()
+                .houseNumberOrName("Rosebud Cottage")
+                .postCode("GC11 2AB")
+                .numberOfBedrooms(3)
+                .ownerName("Catherine Sage")
+                .build()).getId();
+        this.factory.setNumberOfBeds(id, 6);
+        HolidayHome home = this.factory.createInspectionReport(id, InspectionReport.Kernel.builder()
+                .inspectorName("Ann")
+                .reportDate(LocalDate.of(2020, 2, 29))
+                .grade(InspectionReport.InspectionGrade.PERFECT)
+                .build(), "inspection subject");
+        EntityId reportId = home.getChildren("inspection subject").get(0).getId();
+        this.factory.changeInspectorName(id, reportId, "Bob");
+        this.factory.createInspectionIssue(id, reportId, "Dripping tap — kitchen");
+
+        List<Event<HolidayHome>> events = this.repo.getEvents(id, 1);
+        assertEquals(5, events.size());
+
+        HolidayHome replayed = null;
+        for (Event<HolidayHome> event : events) {
+            Event<HolidayHome> decoded = this.codec.decode(id, event.getVersion(), ByteBuffer.wrap(this.codec.encode(event)));
+
+            assertSame(event.getClass(), decoded.getClass());
+            assertEquals(event.getId(), decoded.getId());
+            assertEquals(event.getTimestamp(), decoded.getTimestamp());
+            assertEquals(event.getVersion(), decoded.getVersion());
+            replayed = decoded.applyTo(replayed);
+        }
+
+        HolidayHome latest = this.repo.getLatest(id).orElseThrow();
+        assertEquals(latest.getVersion(), replayed.getVersion());
+        assertEquals(latest.getKernel().toString(), replayed.getKernel().toString());
+
+        InspectionReport report = (InspectionReport) replayed.getDescendent(reportId, InspectionReport.class).orElseThrow();
+        assertEquals("Bob", report.getKernel().getInspectorName());
+        assertEquals(LocalDate.of(2020, 2, 29), report.getKernel().getReportDate());
+        InspectionIssue issue = (InspectionIssue) report.getChildren("contains").get(0);
+        assertEquals("Dripping tap — kitchen", issue.getIssueDescription());
+    }
+
+    @Test
+    void anUnregisteredTagIsRejected() {
+        BinaryOutput out = new BinaryOutput();
+        out.writeVarint(99);
+        out.writeId(new EntityId(1L, 2L));
+        ValueCodec.INSTANT.write(Instant.EPOCH, out);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> this.codec.decode(new EntityId(3L, 4L), 1, ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    @Test
+    void primitivesSurviveARoundTrip() {
+        int[] ints = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE };
+        int[] signedInts = { 0, -1, 1, -64, 64, Integer.MIN_VALUE, Integer.MAX_VALUE };
+        long[] signedLongs = { 0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE };
+        Instant instant = Instant.ofEpochSecond(-12345L, 999_999_999);
+        EntityId id = new EntityId(Long.MIN_VALUE, -1L);
+
+        BinaryOutput out = new BinaryOutput(1);
+        for (int value : ints) out.writeVarint(value);
+        for (int value : signedInts) out.writeSignedVarint(value);
+        for (long value : signedLongs) out.writeSignedVarlong(value);
+        out.writeString("");
+        out.writeString("café 🏠");
+        out.writeBoolean(true);
+        ValueCodec.INSTANT.write(instant, out);
+        ValueCodec.nullable(ValueCodec.STRING).write(null, out);
+        out.writeId(id);
+
+        BinaryInput in = new BinaryInput(ByteBuffer.wrap(out.toByteArray()));
+        for (int value : ints) assertEquals(value, in.readVarint());
+        for (int value : signedInts) assertEquals(value, in.readSignedVarint());
+        for (long value : signedLongs) assertEquals(value, in.readSignedVarlong());
+        assertEquals("", in.readString());
+        assertEquals("café 🏠", in.readString());
+        assertTrue(in.readBoolean());
+        assertEquals(instant, ValueCodec.INSTANT.read(in));
+        assertNull(ValueCodec.nullable(ValueCodec.STRING).read(in));
+        assertEquals(id, in.readId());
+        assertFalse(in.hasRemaining());
+    }
+}
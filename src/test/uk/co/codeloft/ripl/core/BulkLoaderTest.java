@@ -0,0 +1,70 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionReport;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class BulkLoaderTest {
+
+    /**
+     * Rejects the events of chosen aggregate root entities
+     */
+    private static class RejectingRepository extends InMemoryAggregateRootRepository<HolidayHome> {
+
+        private final Set<EntityId> rejected = new HashSet<>();
+
+        @Override
+        public void storeEvent(Event<HolidayHome> event) {
+            if (this.rejected.contains(event.getAggregateId())) throw new IllegalStateException("Rejected");
+            super.storeEvent(event);
+        }
+    }
+
+    private final RejectingRepository repo = new RejectingRepository();
+
+    private final HolidayHomeFactory factory = factory(this.repo);
+
+    @Test
+    void issuesAreAddedToTheReportsInTheOrderGiven() throws Exception {
+        EntityId id;
+        try (BulkLoader<HolidayHome> loader = new BulkLoader<>(this.factory)) {
+            id = this.factory.load(loader, kernel("Ann"), List.of(
+                    Map.entry(report("Zed"), List.of("Loose tile", "Damp")),
+                    Map.entry(report("Amy"), List.of("Broken window"))));
+        }
+
+        HolidayHome home = this.repo.getLatest(id).orElseThrow();
+        List<ChildEntity> reports = home.getChildren("inspection subject");
+        assertEquals("Zed", ((InspectionReport) reports.get(0)).getKernel().getInspectorName());
+        assertEquals(2, reports.get(0).getChildren("contains").size());
+        assertEquals("Amy", ((InspectionReport) reports.get(1)).getKernel().getInspectorName());
+        assertEquals(1, reports.get(1).getChildren("contains").size());
+    }
+
+    @Test
+    void aFailedBatchListsTheEntitiesToLoadAgain() throws Exception {
+        BulkLoader<HolidayHome> loader = new BulkLoader<>(this.factory);
+        EntityId ann = this.factory.load(loader, kernel("Ann"), List.of());
+        EntityId bob = this.factory.load(loader, kernel("Bob"), List.of());
+        this.repo.rejected.add(bob);
+
+        BatchCommitException failure = assertThrows(BatchCommitException.class, loader::flush);
+        assertEquals(List.of(ann), failure.getStoredIds());
+        assertEquals(List.of(bob), failure.getFailedIds());
+        assertTrue(this.repo.getLatest(ann).isPresent());
+
+        // The loader carries on, so the failed entity can be loaded again
+        EntityId again = this.factory.load(loader, kernel("Bob"), List.of());
+        loader.close();
+        assertEquals("Bob", this.repo.getLatest(again).orElseThrow().getKernel().getOwnerName());
+    }
+}
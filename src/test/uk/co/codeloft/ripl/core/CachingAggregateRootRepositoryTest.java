@@ -0,0 +1,94 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class CachingAggregateRootRepositoryTest {
+
+    /**
+     * Runs a task, once, while an entity is being loaded
+     */
+    private static class InterruptedLoadRepository extends InMemoryAggregateRootRepository<HolidayHome> {
+
+        private Runnable duringLoad;
+
+        @Override
+        public Optional<HolidayHome> getLatest(EntityId id) {
+            Optional<HolidayHome> latest = super.getLatest(id);
+
+            Runnable task = this.duringLoad;
+            this.duringLoad = null;
+            if (task != null) task.run();
+
+            return latest;
+        }
+    }
+
+    private final InMemoryAggregateRootRepository<HolidayHome> scratch = new InMemoryAggregateRootRepository<>();
+
+    private final HolidayHomeFactory factory = factory(this.scratch);
+
+    @Test
+    void aVersionLoadedWhileAnEventIsStoredIsNotCached() throws Exception {
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+        this.factory.setOwner(id, "Bob");
+        List<Event<HolidayHome>> events = this.scratch.getEvents(id, 1);
+
+        InterruptedLoadRepository delegate = new InterruptedLoadRepository();
+        delegate.storeEvent(events.get(0));
+        CachingAggregateRootRepository<HolidayHome> cache = new CachingAggregateRootRepository<>(delegate, 100);
+        delegate.duringLoad = () -> cache.storeEvent(events.get(1));
+
+        assertEquals(1, cache.getLatest(id).orElseThrow().getVersion());
+
+        assertEquals(2, cache.getLatest(id).orElseThrow().getVersion());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.getLatest(id).orElseThrow().getVersion());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    void theLeastRecentlyUsedEntitiesAreEvicted() throws Exception {
+        CachingAggregateRootRepository<HolidayHome> cache = new CachingAggregateRootRepository<>(this.scratch, CachingAggregateRootRepository.SEGMENTS);
+        List<EntityId> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(this.factory.create(kernel("Owner " + i)).getId());
+        }
+
+        ids.forEach(cache::getLatest);
+        ids.forEach(cache::getLatest);
+
+        // Each segment holds a single entity, so most of the second pass has to be reloaded
+        assertTrue(cache.getMissCount() > 100 + 100 - CachingAggregateRootRepository.SEGMENTS - 1);
+
+        // Whatever was retrieved last is still cached
+        long misses = cache.getMissCount();
+        cache.getLatest(ids.get(ids.size() - 1));
+        assertEquals(misses, cache.getMissCount());
+    }
+
+    @Test
+    void aStoredSnapshotReplacesTheCachedVersion() throws Exception {
+        this.factory.setSnapshotPolicy(SnapshotPolicy.everyEvents(100));
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+        HolidayHome latest = this.factory.setOwner(id, "Bob");
+
+        CachingAggregateRootRepository<HolidayHome> cache = new CachingAggregateRootRepository<>(this.scratch, 100);
+        assertFalse(cache.getLatest(id).orElseThrow().isSnapshot());
+
+        cache.storeSnapshot((HolidayHome) ((AggregateRoot) latest).asSnapshot());
+
+        HolidayHome cached = cache.getLatest(id).orElseThrow();
+        assertTrue(cached.isSnapshot());
+        assertEquals(2, cached.getVersion());
+        assertEquals(1, cache.getMissCount());
+    }
+}
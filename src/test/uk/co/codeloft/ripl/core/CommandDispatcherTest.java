@@ -0,0 +1,140 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class CommandDispatcherTest {
+
+    /**
+     * Rejects the next event it is asked to store, once told to
+     */
+    private static class RejectingRepository extends InMemoryAggregateRootRepository<HolidayHome> {
+
+        private final AtomicBoolean rejectNext = new AtomicBoolean();
+
+        @Override
+        public void storeEvent(Event<HolidayHome> event) {
+            if (this.rejectNext.compareAndSet(true, false)) throw new IllegalStateException("Rejected");
+            super.storeEvent(event);
+        }
+    }
+
+    private final RejectingRepository repo = new RejectingRepository();
+
+    private final HolidayHomeFactory factory = factory(this.repo);
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private CommandDispatcher<HolidayHome> dispatcher = new CommandDispatcher<>(this.factory, this.executor, Duration.ofMinutes(1));
+
+    @AfterEach
+    void tearDown() {
+        this.dispatcher.close();
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    void theCommandsOnAnEntityArePerformedOneAtATimeInTheOrderDispatched() throws Exception {
+        int threads = 4;
+        int perThread = 250;
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+
+        AtomicInteger building = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        List<List<Integer>> builtByThread = new ArrayList<>();
+        for (int t = 0; t < threads; t++) builtByThread.add(Collections.synchronizedList(new ArrayList<>()));
+
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        List<Future<List<CompletableFuture<HolidayHome>>>> dispatched = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<Integer> built = builtByThread.get(t);
+            dispatched.add(callers.submit(() -> {
+                List<CompletableFuture<HolidayHome>> results = new ArrayList<>();
+                for (int i = 0; i < perThread; i++) {
+                    int sequence = i;
+                    results.add(this.dispatcher.dispatch(id, latest -> {
+                        if (building.incrementAndGet() > 1) overlapped.set(true);
+                        built.add(sequence);
+                        building.decrementAndGet();
+                        return this.factory.setOwner.using(latest, "Owner " + sequence);
+                    }));
+                }
+                return results;
+            }));
+        }
+
+        for (Future<List<CompletableFuture<HolidayHome>>> caller : dispatched) {
+            for (CompletableFuture<HolidayHome> result : caller.get()) result.get();
+        }
+        callers.shutdown();
+
+        // No command was lost or rejected as a conflict, and each caller's commands kept their order
+        assertFalse(overlapped.get());
+        assertEquals(1 + threads * perThread, this.repo.getLatest(id).orElseThrow().getVersion());
+        for (List<Integer> built : builtByThread) {
+            assertEquals(perThread, built.size());
+            for (int i = 0; i < perThread; i++) assertEquals(i, built.get(i));
+        }
+    }
+
+    @Test
+    void anIdleMailboxIsReleased() throws Exception {
+        this.dispatcher.close();
+        this.dispatcher = new CommandDispatcher<>(this.factory, this.executor, Duration.ofMillis(20));
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+
+        this.dispatcher.dispatch(id, latest -> this.factory.setOwner.using(latest, "Bob")).get();
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (this.dispatcher.getMailboxCount() > 0 && System.nanoTime() < deadline) Thread.sleep(10);
+        assertEquals(0, this.dispatcher.getMailboxCount());
+
+        // A command dispatched after the release is given a new mailbox, which picks up the latest version
+        assertEquals(3, this.dispatcher.dispatch(id, latest -> this.factory.setOwner.using(latest, "Cat")).get().getVersion());
+    }
+
+    @Test
+    void theResidentVersionIsDiscardedWhenAnEventFailsToBecomeDurable() throws Exception {
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+        assertEquals(2, this.dispatcher.dispatch(id, latest -> this.factory.setOwner.using(latest, "Bob")).get().getVersion());
+
+        this.repo.rejectNext.set(true);
+        CompletableFuture<HolidayHome> rejected = this.dispatcher.dispatch(id, latest -> this.factory.setOwner.using(latest, "Cat"));
+        assertThrows(ExecutionException.class, rejected::get);
+
+        // The next command is built on the stored version, not the one produced by the rejected event
+        HolidayHome latest = this.dispatcher.dispatch(id, home -> this.factory.setOwner.using(home, "Dan")).get();
+        assertEquals(3, latest.getVersion());
+        assertEquals("Dan", this.repo.getLatest(id).orElseThrow().getKernel().getOwnerName());
+    }
+
+    @Test
+    void aCreateCommandIsPerformedOnTheExecutor() throws Exception {
+        CreateCommandTemplate<HolidayHome, HolidayHome.Kernel> create = new CreateCommandTemplate<>(this.factory, k -> !k.getOwnerName().isBlank(), HolidayHome::new);
+
+        HolidayHome home = this.dispatcher.dispatchCreate(create.using(kernel("Ann"))).get();
+        assertEquals(1, home.getVersion());
+        assertEquals("Ann", this.repo.getLatest(home.getId()).orElseThrow().getKernel().getOwnerName());
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> this.dispatcher.dispatchCreate(create.using(kernel(" "))).get());
+        assertInstanceOf(Command.PreConditionException.class, failure.getCause());
+        assertEquals(0, this.dispatcher.getMailboxCount());
+    }
+}
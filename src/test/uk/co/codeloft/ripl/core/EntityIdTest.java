@@ -0,0 +1,55 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityIdTest {
+
+    @Test
+    void idsSortInTheOrderOfTheirStringForms() {
+        Random random = new Random(7);
+        List<EntityId> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) ids.add(new EntityId(random.nextLong(), random.nextLong()));
+        ids.add(new EntityId(Long.MIN_VALUE, 0L));
+        ids.add(new EntityId(Long.MAX_VALUE, -1L));
+        ids.add(new EntityId(0L, Long.MIN_VALUE));
+
+        List<EntityId> byId = new ArrayList<>(ids);
+        byId.sort(Comparator.naturalOrder());
+        List<EntityId> byString = new ArrayList<>(ids);
+        byString.sort(Comparator.comparing(EntityId::toString));
+
+        assertEquals(byString, byId);
+    }
+
+    @Test
+    void theStringFormIsParsedBackToTheSameId() {
+        EntityId id = new EntityId(0x0190a6b23c4d7e5fL, 0x8a9b0c1d2e3f4a5bL);
+
+        assertEquals("0190a6b2-3c4d-7e5f-8a9b-0c1d2e3f4a5b", id.toString());
+        assertEquals(id, EntityId.parse(id.toString()));
+        assertEquals(id.hashCode(), EntityId.parse(id.toString()).hashCode());
+        assertThrows(IllegalArgumentException.class, () -> EntityId.parse("not an id"));
+    }
+
+    @Test
+    void timeOrderedIdsIncreaseEvenWithinAMillisecond() {
+        IdGenerator generator = IdGenerator.timeOrdered(Clock.fixed(Instant.EPOCH, ZoneOffset.UTC));
+
+        EntityId previous = generator.nextId();
+        for (int i = 0; i < 10000; i++) {
+            EntityId next = generator.nextId();
+            assertTrue(next.compareTo(previous) > 0);
+            previous = next;
+        }
+    }
+}
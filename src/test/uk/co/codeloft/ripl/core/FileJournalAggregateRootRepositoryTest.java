@@ -0,0 +1,246 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionReport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class FileJournalAggregateRootRepositoryTest {
+
+    @TempDir
+    Path directory;
+
+    private HolidayHomeFactory factory;
+
+    private FileJournalAggregateRootRepository<HolidayHome> open(int segmentSize) throws IOException {
+        return this.open(segmentSize, FileJournalAggregateRootRepository.DEFAULT_MAX_BATCH_SIZE, FileJournalAggregateRootRepository.DEFAULT_MAX_LINGER);
+    }
+
+    private FileJournalAggregateRootRepository<HolidayHome> open(int segmentSize, int maxBatchSize, Duration maxLinger) throws IOException {
+        BinaryEventCodec<HolidayHome> codec = new BinaryEventCodec<>();
+        FileJournalAggregateRootRepository<HolidayHome> repo =
+                new FileJournalAggregateRootRepository<>(this.directory, codec, segmentSize, 4, maxBatchSize, maxLinger);
+        this.factory = factory(repo);
+        codec.bind(this.factory);
+        return repo;
+    }
+
+    @Test
+    void eventsSurviveARestart() throws Exception {
+        EntityId id;
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(FileJournalAggregateRootRepository.DEFAULT_SEGMENT_SIZE)) {
+            id = this.factory.create(kernel("Ann")).getId();
+            this.factory.setOwner(id, "Bob");
+            this.factory.createInspectionReport(id, InspectionReport.Kernel.builder()
+                    .inspectorName("Cat")
+                    .reportDate(LocalDate.now().minusDays(1))
+                    .grade(InspectionReport.InspectionGrade.PERFECT)
+                    .build(), "inspection subject");
+        }
+
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(FileJournalAggregateRootRepository.DEFAULT_SEGMENT_SIZE)) {
+            HolidayHome home = repo.getLatest(id).orElseThrow();
+            assertEquals(3, home.getVersion());
+            assertEquals("Bob", home.getKernel().getOwnerName());
+            assertEquals(1, home.getChildren("inspection subject").size());
+
+            List<Event<HolidayHome>> events = repo.getEventsFrom(1, 10);
+            assertEquals(3, events.size());
+            for (int i = 0; i < events.size(); i++) assertEquals(i + 1, events.get(i).getPosition());
+        }
+    }
+
+    @Test
+    void appendsAfterARestartContinueTheStream() throws Exception {
+        EntityId id;
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(FileJournalAggregateRootRepository.DEFAULT_SEGMENT_SIZE)) {
+            id = this.factory.create(kernel("Ann")).getId();
+        }
+
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(FileJournalAggregateRootRepository.DEFAULT_SEGMENT_SIZE)) {
+            HolidayHome home = this.factory.setOwner(id, "Bob");
+            assertEquals(2, home.getVersion());
+            assertEquals(2, repo.getEventsFrom(1, 10).get(1).getPosition());
+        }
+    }
+
+    @Test
+    void eventsSpanSeveralSegments() throws Exception {
+        EntityId id;
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(1024)) {
+            id = this.factory.create(kernel("Ann")).getId();
+            for (int i = 0; i < 100; i++) this.factory.setOwner(id, "Owner " + i);
+        }
+
+        try (Stream<Path> files = Files.list(this.directory)) {
+            assertTrue(files.count() > 1);
+        }
+
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(1024)) {
+            assertEquals("Owner 99", repo.getLatest(id).orElseThrow().getKernel().getOwnerName());
+            assertEquals(101, repo.getEvents(id, 1).size());
+            assertEquals(50, repo.getEventsFrom(52, 1000).size());
+        }
+    }
+
+    @Test
+    void segmentsThatFollowATornSegmentAreDiscarded() throws Exception {
+        EntityId id;
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(1024)) {
+            id = this.factory.create(kernel("Ann")).getId();
+            for (int i = 0; i < 40; i++) this.factory.setOwner(id, "Owner " + i);
+        }
+
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(this.directory)) {
+            paths = files.sorted().toList();
+        }
+        assertTrue(paths.size() > 1);
+
+        // Corrupt the last byte of the last record of the first segment, as if a batch that went on into the second
+        // segment had been interrupted before the first was forced
+        String second = paths.get(1).getFileName().toString();
+        long torn = Long.parseLong(second.substring(0, second.indexOf('.'))) - 1;
+        int end;
+        try (JournalSegment segment = new JournalSegment(paths.get(0), 1, 1024, 4, (position, aggregateId, version) -> {})) {
+            end = segment.entryAt(segment.offsetOf(torn)).getNextOffset();
+        }
+        try (FileChannel channel = FileChannel.open(paths.get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { (byte) 0xFF }), end - 1);
+        }
+
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(1024)) {
+            try (Stream<Path> files = Files.list(this.directory)) {
+                assertEquals(1, files.count());
+            }
+            assertEquals(torn - 1, repo.getEvents(id, 1).size());
+            assertEquals(torn - 1, repo.getEventsFrom(1, 1000).size());
+            assertEquals(torn - 1, repo.getLatest(id).orElseThrow().getVersion());
+
+            // The stream carries on from the last intact event
+            HolidayHome home = this.factory.setOwner(id, "Bob");
+            assertEquals(torn, home.getVersion());
+            assertEquals(torn, repo.getEventsFrom(torn, 1).get(0).getPosition());
+        }
+    }
+
+    @Test
+    void concurrentCallersShareBatches() throws Exception {
+        int threads = 8;
+        int perThread = 50;
+        List<EntityId> ids = new ArrayList<>();
+
+        try (FileJournalAggregateRootRepository<HolidayHome> repo =
+                     this.open(FileJournalAggregateRootRepository.DEFAULT_SEGMENT_SIZE, 16, Duration.ofMillis(1))) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<List<EntityId>>> created = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                created.add(executor.submit(() -> {
+                    List<EntityId> mine = new ArrayList<>();
+                    for (int i = 0; i < perThread; i++) mine.add(this.factory.create(kernel("Ann")).getId());
+                    return mine;
+                }));
+            }
+            for (Future<List<EntityId>> future : created) ids.addAll(future.get());
+            executor.shutdown();
+
+            // Every event is durable, and the positions assigned across the batches are contiguous
+            List<Event<HolidayHome>> events = repo.getEventsFrom(1, Integer.MAX_VALUE);
+            assertEquals(threads * perThread, events.size());
+            for (int i = 0; i < events.size(); i++) assertEquals(i + 1, events.get(i).getPosition());
+        }
+
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(FileJournalAggregateRootRepository.DEFAULT_SEGMENT_SIZE)) {
+            Set<EntityId> recovered = new HashSet<>();
+            for (Event<HolidayHome> event : repo.getEventsFrom(1, Integer.MAX_VALUE)) recovered.add(event.getAggregateId());
+            assertEquals(new HashSet<>(ids), recovered);
+        }
+    }
+
+    @Test
+    void closingWritesTheEventsAlreadyAccepted() throws Exception {
+        List<CompletableFuture<HolidayHome>> updates = new ArrayList<>();
+        EntityId id;
+
+        FileJournalAggregateRootRepository<HolidayHome> repo =
+                this.open(FileJournalAggregateRootRepository.DEFAULT_SEGMENT_SIZE, 4, Duration.ofMillis(5));
+        id = this.factory.create(kernel("Ann")).getId();
+        for (int i = 0; i < 20; i++) updates.add(this.factory.setOwnerAsync(id, "Owner " + i));
+        repo.close();
+
+        for (CompletableFuture<HolidayHome> update : updates) assertTrue(update.isDone() && !update.isCompletedExceptionally());
+        assertTrue(this.factory.setOwnerAsync(id, "Too late").isCompletedExceptionally());
+
+        try (FileJournalAggregateRootRepository<HolidayHome> reopened = this.open(FileJournalAggregateRootRepository.DEFAULT_SEGMENT_SIZE)) {
+            assertEquals("Owner 19", reopened.getLatest(id).orElseThrow().getKernel().getOwnerName());
+        }
+    }
+
+    @Test
+    void conflictingAppendsAreRejected() throws Exception {
+        int threads = 8;
+        AtomicInteger applied = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+
+        try (FileJournalAggregateRootRepository<HolidayHome> repo = this.open(FileJournalAggregateRootRepository.DEFAULT_SEGMENT_SIZE)) {
+            // Without striped locks, commands against the same holiday home race to append at the same version
+            EntityId id = this.factory.create(kernel("Ann")).getId();
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        try {
+                            this.factory.setOwner(id, "Owner " + thread + "/" + i);
+                            applied.incrementAndGet();
+                        } catch (ConcurrencyException e) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) writer.get();
+            executor.shutdown();
+
+            // Each version was produced by exactly one event
+            List<Event<HolidayHome>> events = repo.getEvents(id, 1);
+            assertEquals(1 + applied.get(), events.size());
+            for (int i = 0; i < events.size(); i++) assertEquals(i + 1, events.get(i).getVersion());
+            assertEquals(threads * 100, applied.get() + rejected.get());
+
+            // An event built on a version that has been superseded is refused without being written
+            Event<HolidayHome> stale = events.get(1);
+            CompletableFuture<Void> refused = repo.storeEventAsync(stale);
+            ExecutionException failure = assertThrows(ExecutionException.class, refused::get);
+            assertInstanceOf(ConcurrencyException.class, failure.getCause());
+            assertEquals(events.size(), repo.getEventsFrom(1, Integer.MAX_VALUE).size());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package uk.co.codeloft.ripl.core;
+
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionIssue;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionReport;
+
+import java.time.LocalDate;
+
+/**
+ * The holiday home entities and factories that the tests are written against
+ */
+final class HolidayHomeFixtures {
+
+    private HolidayHomeFixtures() {}
+
+    /**
+     * Create a factory that stores its events in the given repository, with the relationships of the example domain
+     * allowed
+     */
+    static HolidayHomeFactory factory(AggregateRootRepository<HolidayHome> repo) {
+        HolidayHomeFactory factory = new HolidayHomeFactory(repo);
+        factory.allowRelationship(HolidayHome.class, InspectionReport.class, "inspection subject");
+        factory.allowRelationship(InspectionReport.class, InspectionIssue.class, "contains");
+        return factory;
+    }
+
+    /**
+     * Create a holiday home with the given number of inspection reports, each by a different inspector
+     */
+    static HolidayHome homeWithReports(HolidayHomeFactory factory, int reports) throws Exception {
+        HolidayHome home = factory.create(kernel("Ann"));
+        for (int i = 0; i < reports; i++) {
+            home = factory.createInspectionReport(home.getId(), report("Inspector " + i), "inspection subject");
+        }
+        return home;
+    }
+
+    static HolidayHome.Kernel kernel(String owner) {
+        return HolidayHome.Kernel.builder().ownerName(owner).numberOfBedrooms(2).build();
+    }
+
+    static InspectionReport.Kernel report(String inspector) {
+        return InspectionReport.Kernel.builder()
+                .inspectorName(inspector)
+                .reportDate(LocalDate.now().minusDays(1))
+                .grade(InspectionReport.InspectionGrade.PERFECT)
+                .build();
+    }
+}
@@ -0,0 +1,69 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class IdleSnapshotSchedulerTest {
+
+    /**
+     * Records the snapshots it stores
+     */
+    private static class RecordingRepository extends InMemoryAggregateRootRepository<HolidayHome> {
+
+        private final List<HolidayHome> stored = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void storeSnapshot(HolidayHome snapshot) {
+            super.storeSnapshot(snapshot);
+            this.stored.add(snapshot);
+        }
+    }
+
+    private final RecordingRepository repo = new RecordingRepository();
+
+    private final HolidayHomeFactory factory = factory(this.repo);
+
+    @Test
+    void aSnapshotIsTrackedUntilItIsStored() throws Exception {
+        HolidayHome snapshot = this.factory.create(kernel("Ann"));
+
+        try (IdleSnapshotScheduler<HolidayHome> scheduler = new IdleSnapshotScheduler<>(this.repo, Duration.ofHours(1), 10)) {
+            scheduler.track(snapshot);
+            assertEquals(1, scheduler.getTrackedCount());
+
+            scheduler.snapshotStored(snapshot);
+            assertEquals(0, scheduler.getTrackedCount());
+        }
+    }
+
+    @Test
+    void aSnapshotThatWasNeverStoredIsStoredOnceTheEntityIsIdle() throws Exception {
+        HolidayHome home = this.factory.create(kernel("Ann"));
+        this.factory.setSnapshotPolicy(SnapshotPolicy.everyEvents(100));
+        HolidayHome latest = this.factory.setOwner(home.getId(), "Bob");
+        HolidayHome dropped = (HolidayHome) ((AggregateRoot) latest).asSnapshot();
+        this.repo.stored.clear();
+
+        try (IdleSnapshotScheduler<HolidayHome> scheduler = new IdleSnapshotScheduler<>(this.repo, Duration.ofMillis(20), 10)) {
+            scheduler.track(latest);
+            scheduler.track(dropped);
+            assertEquals(1, scheduler.getEventsSinceSnapshot(home.getId()));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (scheduler.getTrackedCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(0, scheduler.getTrackedCount());
+            assertEquals(List.of(dropped), this.repo.stored);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class InMemoryAggregateRootRepositoryTest {
+
+    /**
+     * Sets the owner of a holiday home, and holds its writer after its version is claimed until told to publish it
+     */
+    private static class HeldEvent extends UpdatedEvent<HolidayHome, String> {
+
+        private final CountDownLatch claimed = new CountDownLatch(1);
+
+        private final CountDownLatch publish = new CountDownLatch(1);
+
+        HeldEvent(HolidayHomeFactory factory, EntityId aggregateId, int version, String owner) {
+            super(factory, factory.getIdGenerator().nextId(), factory.getClock().instant(), aggregateId, version,
+                    (home, name) -> home.getKernel().setOwnerName(name), owner);
+        }
+
+        @Override
+        void assignPosition(long position) {
+            this.claimed.countDown();
+            try {
+                this.publish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.assignPosition(position);
+        }
+    }
+
+    private final InMemoryAggregateRootRepository<HolidayHome> repo = new InMemoryAggregateRootRepository<>();
+
+    private final HolidayHomeFactory factory = factory(this.repo);
+
+    @Test
+    void aReaderOfTheGlobalOrderNeverSkipsAnEvent() throws Exception {
+        int threads = 8;
+        int perThread = 500;
+        this.factory.enableConcurrentExecution();
+
+        List<EntityId> ids = new ArrayList<>();
+        for (int t = 0; t < threads; t++) ids.add(this.factory.create(kernel("Ann")).getId());
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+
+        // Follow the global order as a projection would, asking each time for the events after the last one seen
+        Future<Long> reader = executor.submit(() -> {
+            long next = 1;
+            while (true) {
+                boolean done = !writing.get();
+                List<Event<HolidayHome>> events = this.repo.getEventsFrom(next, 64);
+                for (Event<HolidayHome> event : events) {
+                    assertEquals(next, event.getPosition());
+                    next++;
+                }
+                if (done && events.isEmpty()) return next - 1;
+            }
+        });
+
+        List<Future<?>> writers = new ArrayList<>();
+        for (EntityId id : ids) {
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) this.factory.setOwner(id, "Owner " + i);
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) writer.get();
+        writing.set(false);
+
+        assertEquals(threads + threads * perThread, reader.get());
+        executor.shutdown();
+    }
+
+    @Test
+    void eventsAreReadByVersionAndByPosition() throws Exception {
+        EntityId first = this.factory.create(kernel("Ann")).getId();
+        EntityId second = this.factory.create(kernel("Bob")).getId();
+        this.factory.setOwner(first, "Cat");
+        this.factory.setOwner(second, "Dan");
+
+        assertEquals(List.of(1, 2), this.repo.getEvents(first, 1).stream().map(Event::getVersion).toList());
+        assertEquals(List.of(2), this.repo.getEvents(second, 2).stream().map(Event::getVersion).toList());
+        assertEquals(List.of(second, first), this.repo.getEventsFrom(2, 2).stream().map(Event::getAggregateId).toList());
+        assertTrue(this.repo.getEventsFrom(5, 10).isEmpty());
+        assertEquals("Dan", this.repo.getLatest(second).orElseThrow().getKernel().getOwnerName());
+    }
+
+    @Test
+    void aReaderStopsAtAVersionThatIsYetToBePublished() throws Exception {
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+        HeldEvent second = new HeldEvent(this.factory, id, 2, "Bob");
+        HeldEvent third = new HeldEvent(this.factory, id, 3, "Cat");
+        third.publish.countDown();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> writer = executor.submit(() -> this.repo.storeEvent(second));
+        second.claimed.await();
+
+        // Version 2 is claimed but not published, so version 3 is stored behind it and is not yet seen
+        this.repo.storeEvent(third);
+        assertEquals(List.of(1), this.repo.getEvents(id, 1).stream().map(Event::getVersion).toList());
+        assertTrue(this.repo.getEvents(id, 2).isEmpty());
+        assertEquals(1, this.repo.getLatest(id).orElseThrow().getVersion());
+
+        second.publish.countDown();
+        writer.get();
+        executor.shutdown();
+
+        assertEquals(List.of(1, 2, 3), this.repo.getEvents(id, 1).stream().map(Event::getVersion).toList());
+        HolidayHome latest = this.repo.getLatest(id).orElseThrow();
+        assertEquals(3, latest.getVersion());
+        assertEquals("Cat", latest.getKernel().getOwnerName());
+    }
+}
@@ -0,0 +1,82 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexTreeTest {
+
+    /**
+     * An entry of the model that the tree is checked against, ordered as the tree orders its entries
+     */
+    private record Entry(Integer key, int slot) {}
+
+    private static final Comparator<Entry> ORDER = Comparator
+            .comparing(Entry::key, Comparator.nullsFirst(Comparator.<Integer>naturalOrder()))
+            .thenComparingInt(Entry::slot);
+
+    private static List<Integer> slots(IndexTree tree, Object from, Object to, boolean toInclusive) {
+        List<Integer> slots = new ArrayList<>();
+        tree.visit(from, to, toInclusive, slots::add);
+        return slots;
+    }
+
+    private static List<Integer> slots(Iterable<Entry> entries) {
+        List<Integer> slots = new ArrayList<>();
+        entries.forEach(entry -> slots.add(entry.slot()));
+        return slots;
+    }
+
+    @Test
+    void staysBalancedAndOrderedThroughRandomInsertsAndRemovals() {
+        Random random = new Random(42);
+        TreeSet<Entry> model = new TreeSet<>(ORDER);
+        IndexTree tree = IndexTree.EMPTY;
+
+        for (int i = 0; i < 5000; i++) {
+            Entry entry = new Entry(random.nextInt(10) == 0 ? null : random.nextInt(200), random.nextInt(50));
+            if (random.nextInt(3) == 0) {
+                tree = tree.remove(entry.key(), entry.slot());
+                model.remove(entry);
+            } else {
+                tree = tree.insert(entry.key(), entry.slot());
+                model.add(entry);
+            }
+
+            // An AVL tree is never more than about 1.44 times the height of a perfectly balanced one
+            assertTrue(tree.height() <= 1.45 * Math.log(model.size() + 2) / Math.log(2), "Unbalanced after " + i);
+        }
+
+        assertEquals(slots(model), slots(tree, IndexTree.UNBOUNDED, IndexTree.UNBOUNDED, true));
+        assertEquals(
+                slots(model.subSet(new Entry(50, Integer.MIN_VALUE), true, new Entry(100, Integer.MAX_VALUE), true)),
+                slots(tree, 50, 100, true));
+        assertEquals(
+                slots(model.subSet(new Entry(50, Integer.MIN_VALUE), true, new Entry(100, Integer.MIN_VALUE), true)),
+                slots(tree, 50, 100, false));
+        assertEquals(
+                slots(model.headSet(new Entry(0, Integer.MIN_VALUE))),
+                slots(tree, IndexTree.UNBOUNDED, 0, false));
+    }
+
+    @Test
+    void earlierVersionsAreUnchanged() {
+        IndexTree tree = IndexTree.EMPTY;
+        for (int slot = 0; slot < 100; slot++) {
+            tree = tree.insert(slot % 10, slot);
+        }
+
+        IndexTree removed = tree.remove(3, 13);
+        IndexTree inserted = tree.insert(3, 100);
+
+        assertEquals(List.of(3, 13, 23, 33, 43, 53, 63, 73, 83, 93), slots(tree, 3, 3, true));
+        assertEquals(List.of(3, 23, 33, 43, 53, 63, 73, 83, 93), slots(removed, 3, 3, true));
+        assertEquals(List.of(3, 13, 23, 33, 43, 53, 63, 73, 83, 93, 100), slots(inserted, 3, 3, true));
+    }
+}
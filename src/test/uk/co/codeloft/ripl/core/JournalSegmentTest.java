@@ -0,0 +1,148 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalSegmentTest {
+
+    private static final int CAPACITY = 4096;
+
+    @TempDir
+    Path directory;
+
+    private final EntityId aggregateId = new EntityId(1L, 2L);
+
+    private final List<Long> recovered = new ArrayList<>();
+
+    private JournalSegment open() throws Exception {
+        return new JournalSegment(this.directory.resolve("segment"), 1L, CAPACITY, 2,
+                (position, id, version) -> this.recovered.add(position));
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) body[i] = (byte) i;
+        return body;
+    }
+
+    @Test
+    void recordsAreReadBackAfterReopening() throws Exception {
+        byte[] id = JournalSegment.encodeId(this.aggregateId);
+        try (JournalSegment segment = this.open()) {
+            for (int i = 1; i <= 5; i++) segment.append(i, id, i, body(i * 3));
+        }
+
+        try (JournalSegment segment = this.open()) {
+            assertEquals(List.of(1L, 2L, 3L, 4L, 5L), this.recovered);
+
+            JournalSegment.Entry entry = segment.entryAt(segment.offsetOf(4));
+            assertEquals(4, entry.getPosition());
+            assertEquals(4, entry.getVersion());
+            assertEquals(this.aggregateId, entry.getAggregateId());
+            assertEquals(ByteBuffer.wrap(body(12)), entry.getBody());
+            assertEquals(-1, segment.offsetOf(6));
+        }
+    }
+
+    @Test
+    void recordsWrittenWithStringIdsAreStillRead() throws Exception {
+        EntityId legacy = EntityId.parse("0190a6b2-3c4d-7e5f-8a9b-0c1d2e3f4a5b");
+        List<EntityId> recoveredIds = new ArrayList<>();
+
+        try (JournalSegment segment = this.open()) {
+            segment.append(1, legacy.toString().getBytes(StandardCharsets.UTF_8), 1, body(4));
+            segment.append(2, JournalSegment.encodeId(this.aggregateId), 1, body(5));
+        }
+
+        try (JournalSegment segment = new JournalSegment(this.directory.resolve("segment"), 1L, CAPACITY, 2,
+                (position, id, version) -> recoveredIds.add(id))) {
+            assertEquals(List.of(legacy, this.aggregateId), recoveredIds);
+
+            JournalSegment.Entry entry = segment.entryAt(segment.offsetOf(1));
+            assertEquals(legacy, entry.getAggregateId());
+            assertEquals(ByteBuffer.wrap(body(4)), entry.getBody());
+            assertEquals(this.aggregateId, segment.entryAt(entry.getNextOffset()).getAggregateId());
+        }
+    }
+
+    @Test
+    void recoveryStopsAtARecordThatFailsItsChecksum() throws Exception {
+        byte[] id = JournalSegment.encodeId(this.aggregateId);
+        int torn;
+        try (JournalSegment segment = this.open()) {
+            segment.append(1, id, 1, body(10));
+            segment.append(2, id, 2, body(10));
+            torn = segment.append(3, id, 3, body(10));
+        }
+
+        // Corrupt the last byte of the third record, as if the write had been interrupted
+        try (FileChannel channel = FileChannel.open(this.directory.resolve("segment"), StandardOpenOption.WRITE)) {
+            int last = torn + JournalSegment.recordLength(id, body(10)) - 1;
+            channel.write(ByteBuffer.wrap(new byte[] { (byte) 0xFF }), last);
+        }
+
+        try (JournalSegment segment = this.open()) {
+            assertEquals(List.of(1L, 2L), this.recovered);
+            assertEquals(torn, segment.getWriteOffset());
+
+            // The remains of the torn record are cleared, so the next record takes its place
+            assertEquals(torn, segment.append(3, id, 3, body(4)));
+        }
+
+        this.recovered.clear();
+        try (JournalSegment segment = this.open()) {
+            assertEquals(List.of(1L, 2L, 3L), this.recovered);
+        }
+    }
+
+    @Test
+    void roomIsLeftForTheTrailingLength() throws Exception {
+        byte[] id = JournalSegment.encodeId(this.aggregateId);
+        try (JournalSegment segment = this.open()) {
+            int length = JournalSegment.recordLength(id, body(100));
+            int appended = 0;
+            while (segment.hasRoomFor(length)) {
+                appended++;
+                segment.append(appended, id, appended, body(100));
+            }
+
+            assertTrue(segment.getWriteOffset() + Integer.BYTES <= CAPACITY);
+            assertEquals(CAPACITY / length - (CAPACITY % length < Integer.BYTES ? 1 : 0), appended);
+        }
+    }
+
+    @Test
+    void truncatedRecordsAreDiscarded() throws Exception {
+        byte[] id = JournalSegment.encodeId(this.aggregateId);
+        int second;
+        try (JournalSegment segment = this.open()) {
+            segment.append(1, id, 1, body(10));
+            second = segment.append(2, id, 2, body(10));
+            segment.append(3, id, 3, body(10));
+
+            segment.truncate(second);
+            assertEquals(second, segment.getWriteOffset());
+            assertEquals(-1, segment.offsetOf(2));
+
+            // The records that replace the discarded ones are found from the sparse index as before
+            assertEquals(second, segment.append(2, id, 2, body(20)));
+            segment.append(3, id, 3, body(20));
+            assertEquals(20, segment.entryAt(segment.offsetOf(3)).getBody().remaining());
+        }
+
+        try (JournalSegment segment = this.open()) {
+            assertEquals(List.of(1L, 2L, 3L), this.recovered);
+            assertEquals(20, segment.entryAt(segment.offsetOf(2)).getBody().remaining());
+        }
+    }
+}
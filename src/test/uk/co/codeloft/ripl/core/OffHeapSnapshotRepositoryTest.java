@@ -0,0 +1,148 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+import uk.co.codeloft.ripl.example.holidayhome.InspectionReport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class OffHeapSnapshotRepositoryTest {
+
+    private final BinarySnapshotCodec<HolidayHome> codec = new BinarySnapshotCodec<>();
+
+    private OffHeapSnapshotRepository<HolidayHome> repo;
+
+    private HolidayHomeFactory factory;
+
+    /**
+     * The entities are built by a factory with a repository of its own, so that only the snapshots chosen by each test
+     * are stored in the repository under test.  That repository snapshots every version, so each command is performed
+     * on the version the one before produced, rather than on one rebuilt by replay.
+     */
+    private void open(int slabSize, int maxDeltas) {
+        this.repo = new OffHeapSnapshotRepository<>(new InMemoryAggregateRootRepository<>(), this.codec, slabSize, 0.5, maxDeltas);
+        this.factory = factory(new InMemoryAggregateRootRepository<>());
+        this.factory.setSnapshotPolicy(SnapshotPolicy.everyEvents(1));
+        this.codec.bind(this.factory);
+    }
+
+    private HolidayHome snapshot(HolidayHome version) {
+        HolidayHome snapshot = (HolidayHome) ((AggregateRoot) version).asSnapshot();
+        this.repo.storeSnapshot(snapshot);
+        return snapshot;
+    }
+
+    @Test
+    void compactionKeepsTheLatestSnapshotsAndReleasesSparseSlabs() throws Exception {
+        this.open(4096, 0);
+        List<EntityId> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) ids.add(this.factory.create(kernel("Owner " + i)).getId());
+
+        for (int round = 1; round <= 30; round++) {
+            for (EntityId id : ids) this.snapshot(this.factory.setOwner(id, "Round " + round));
+        }
+
+        for (EntityId id : ids) {
+            HolidayHome latest = this.repo.getLatest(id).orElseThrow();
+            assertEquals(31, latest.getVersion());
+            assertTrue(latest.isSnapshot());
+            assertEquals("Round 30", latest.getKernel().getOwnerName());
+        }
+
+        // Far more has been written than is held, and every full slab that is held is at least half live
+        assertTrue(this.repo.getWrittenBytes() > 10 * this.repo.getReservedBytes());
+        assertTrue(this.repo.getReservedBytes() <= 2 * this.repo.getLiveBytes() + 4096);
+    }
+
+    @Test
+    void aRecordLargerThanASlabIsGivenOneOfItsOwn() throws Exception {
+        this.open(256, 0);
+        HolidayHome home = homeWithReports(this.factory, 10);
+
+        this.snapshot(home);
+        assertEquals(2, this.repo.getSlabCount());
+
+        // A new base supersedes the large record, and its slab is released
+        HolidayHome latest = this.snapshot(this.factory.setOwner(home.getId(), "Bob"));
+        assertEquals(2, this.repo.getSlabCount());
+
+        HolidayHome found = this.repo.getLatest(home.getId()).orElseThrow();
+        assertEquals(latest.getVersion(), found.getVersion());
+        assertEquals("Bob", found.getKernel().getOwnerName());
+        assertEquals(10, found.getDescendentCount());
+    }
+
+    @Test
+    void aDeltaHoldsOnlyTheChangedEntities() throws Exception {
+        this.open(64 * 1024, 8);
+        HolidayHome home = homeWithReports(this.factory, 50);
+        EntityId reportId = home.getChildren("inspection subject").get(20).getId();
+
+        this.snapshot(home);
+        long base = this.repo.getWrittenBytes();
+
+        this.snapshot(this.factory.changeInspectorName(home.getId(), reportId, "Bob"));
+        long delta = this.repo.getWrittenBytes() - base;
+        assertTrue(delta * 10 < base, "A delta of " + delta + " bytes against a base of " + base);
+
+        HolidayHome found = this.repo.getLatest(home.getId()).orElseThrow();
+        assertEquals(50, found.getDescendentCount());
+        assertEquals(20, found.getDescendentOrdinal(reportId));
+        assertEquals("Bob", ((InspectionReport) found.getDescendentAt(20)).getKernel().getInspectorName());
+        assertEquals("Inspector 21", ((InspectionReport) found.getDescendentAt(21)).getKernel().getInspectorName());
+    }
+
+    @Test
+    void aChainIsWrittenAfreshOnceItHasTheMostDeltasAllowed() throws Exception {
+        this.open(64 * 1024, 2);
+        HolidayHome home = homeWithReports(this.factory, 20);
+        this.snapshot(home);
+        long base = this.repo.getWrittenBytes();
+
+        List<Long> written = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            long before = this.repo.getWrittenBytes();
+            home = this.snapshot(this.factory.setNumberOfBeds(home.getId(), 3 + i));
+            written.add(this.repo.getWrittenBytes() - before);
+        }
+
+        assertTrue(written.get(0) * 5 < base);
+        assertTrue(written.get(1) * 5 < base);
+        assertTrue(written.get(2) * 5 > base * 4, "The third snapshot is a new base");
+        assertEquals(5, this.repo.getLatest(home.getId()).orElseThrow().getKernel().getNumberOfBedrooms());
+        assertEquals(this.repo.getLiveBytes(), written.get(2));
+    }
+
+    @Test
+    void aBaseAndItsDeltasDecodeToTheSameSnapshotAsAFullEncoding() throws Exception {
+        this.open(64 * 1024, 8);
+        HolidayHome first = homeWithReports(this.factory, 5);
+        EntityId reportId = first.getChildren("inspection subject").get(2).getId();
+        first = (HolidayHome) ((AggregateRoot) first).asSnapshot();
+
+        HolidayHome second = this.factory.createInspectionIssue(first.getId(), reportId, "Loose tile");
+        second = (HolidayHome) ((AggregateRoot) second).asSnapshot();
+        HolidayHome third = this.factory.changeInspectorName(first.getId(), reportId, "Bob");
+        third = (HolidayHome) ((AggregateRoot) this.factory.createInspectionReport(third.getId(), report("Cat"), "inspection subject")).asSnapshot();
+
+        HolidayHome chained = this.codec.decode(List.of(
+                ByteBuffer.wrap(this.codec.encode(first)),
+                ByteBuffer.wrap(this.codec.encodeDelta(second, first.getVersion())),
+                ByteBuffer.wrap(this.codec.encodeDelta(third, second.getVersion()))));
+        HolidayHome full = this.codec.decode(ByteBuffer.wrap(this.codec.encode(third)));
+
+        assertEquals(full.toString(), chained.toString());
+        assertEquals(full.getDescendentCount(), chained.getDescendentCount());
+        for (int ordinal = 0; ordinal < full.getDescendentCount(); ordinal++) {
+            assertEquals(full.getDescendentAt(ordinal).toString(), chained.getDescendentAt(ordinal).toString());
+        }
+        ByteBuffer delta = ByteBuffer.wrap(this.codec.encodeDelta(third, second.getVersion()));
+        assertThrows(IllegalArgumentException.class, () -> this.codec.decode(delta));
+    }
+}
@@ -0,0 +1,99 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentVectorTest {
+
+    private static PersistentVector<Integer> vectorOf(int size) {
+        PersistentVector<Integer> vector = PersistentVector.empty();
+        for (int i = 0; i < size; i++) vector = vector.append(i);
+        return vector;
+    }
+
+    @Test
+    void appendedElementsAreFoundAcrossEveryLevelOfTheTrie() {
+        // Enough elements to grow the trie past the point where the root is a full node of leaves, twice over
+        int size = 32 * 32 * 32 + 100;
+        PersistentVector<Integer> vector = PersistentVector.empty();
+        for (int i = 0; i < size; i++) {
+            vector = vector.append(i);
+            assertEquals(i + 1, vector.size());
+        }
+
+        for (int i = 0; i < size; i++) assertEquals(i, vector.get(i));
+        assertEquals(size, vector.asList().size());
+        assertEquals(size - 1, vector.asList().get(size - 1));
+    }
+
+    @Test
+    void earlierVersionsAreUnchanged() {
+        PersistentVector<Integer> before = vectorOf(2000);
+        PersistentVector<Integer> appended = before.append(2000);
+        PersistentVector<Integer> replaced = appended.set(1500, -1);
+
+        assertEquals(2000, before.size());
+        assertThrows(IndexOutOfBoundsException.class, () -> before.get(2000));
+        assertEquals(1500, before.get(1500));
+        assertEquals(1500, appended.get(1500));
+        assertEquals(-1, replaced.get(1500));
+        assertEquals(2000, replaced.get(2000));
+    }
+
+    @Test
+    void aReplacementLeavesEveryOtherElementInPlace() {
+        PersistentVector<Integer> vector = vectorOf(32 * 32 * 4);
+        PersistentVector<Integer> replaced = vector.set(100, -1);
+
+        List<Integer> expected = new ArrayList<>(vector.asList());
+        expected.set(100, -1);
+        assertEquals(expected, replaced.asList());
+    }
+
+    @Test
+    void replacingSeveralElementsAtOnceMatchesReplacingThemOneAtATime() {
+        PersistentVector<Integer> vector = vectorOf(32 * 32 * 32 + 100);
+
+        // Indices that share leaves, share interior nodes, and lie in different subtrees, in no particular order
+        int[] indices = {32800, 5, 6, 1055, 31, 32768, 1024, 32867};
+        List<Integer> elements = new ArrayList<>();
+        PersistentVector<Integer> oneAtATime = vector;
+        for (int index : indices) {
+            elements.add(-index);
+            oneAtATime = oneAtATime.set(index, -index);
+        }
+
+        PersistentVector<Integer> batched = vector.setAll(indices, elements);
+
+        assertEquals(oneAtATime.asList(), batched.asList());
+        assertEquals(6, vector.get(6));
+        assertSame(vector, vector.setAll(new int[0], List.of()));
+    }
+
+    @Test
+    void indicesOutsideTheSequenceAreRejected() {
+        PersistentVector<Integer> vector = vectorOf(3);
+
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.get(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.get(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.set(3, 0));
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.setAll(new int[] {0, 3}, List.of(0, 0)));
+        assertTrue(PersistentVector.empty().isEmpty());
+    }
+
+    @Test
+    void theFootprintCountsTheNodesOfTheTrie() {
+        long node = 16 + 4 * 32;
+
+        assertEquals(24 + node, PersistentVector.empty().footprint());
+        assertEquals(24 + 3 * node, vectorOf(33).footprint());
+
+        // A root, two nodes below it, and the 33 leaves that hold the elements
+        assertEquals(24 + 36 * node, vectorOf(1025).footprint());
+        assertEquals(vectorOf(1025).footprint(), vectorOf(1025).set(7, -1).footprint());
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class SnapshotPolicyTest {
+
+    private final InMemoryAggregateRootRepository<HolidayHome> repo = new InMemoryAggregateRootRepository<>();
+
+    private final HolidayHomeFactory factory = factory(this.repo);
+
+    @Test
+    void bytesAreCountedAgainEachTimeASnapshotIsTaken() throws Exception {
+        SnapshotPolicy policy = SnapshotPolicy.afterBytes(25, event -> 10);
+        this.factory.setSnapshotPolicy(SnapshotPolicy.everyEvents(100));
+        HolidayHome home = this.factory.setOwner(this.factory.create(kernel("Ann")).getId(), "Bob");
+        Event<?> event = home.getCreatedEvent();
+
+        assertFalse(home.isSnapshot());
+        assertFalse(policy.requiresSnapshot(event, home));
+        assertFalse(policy.requiresSnapshot(event, home));
+
+        // A snapshot taken for some other reason starts the count again
+        AggregateRoot snapshot = ((AggregateRoot) home).asSnapshot();
+        assertFalse(policy.requiresSnapshot(event, snapshot));
+        assertFalse(policy.requiresSnapshot(event, snapshot));
+        assertTrue(policy.requiresSnapshot(event, snapshot));
+    }
+
+    @Test
+    void theEncodedSizeOfAnEventIsUsedWhenItIsKnown() throws Exception {
+        SnapshotPolicy policy = SnapshotPolicy.afterBytes(25, event -> { throw new AssertionError("Encoded again"); });
+        HolidayHome home = this.factory.setOwner(this.factory.create(kernel("Ann")).getId(), "Bob");
+        Event<?> event = home.getCreatedEvent();
+        event.recordEncodedSize(30);
+
+        assertTrue(policy.requiresSnapshot(event, home));
+    }
+
+    @Test
+    void everyEventOfABatchIsCountedTowardsItsBytes() throws Exception {
+        List<Event<?>> sized = new ArrayList<>();
+        this.factory.setSnapshotPolicy(SnapshotPolicy.afterBytes(25, event -> {
+            sized.add(event);
+            return 10;
+        }));
+        HolidayHome home = this.factory.create(kernel("Ann"));
+
+        AggregateRootFactory<HolidayHome>.Batch batch = this.factory.newBatch();
+        home = batch.perform(this.factory.setOwner.using(home, "Bob"));
+        home = batch.perform(this.factory.setOwner.using(home, "Bea"));
+        batch.perform(this.factory.setOwner.using(home, "Cat"));
+        HolidayHome latest = batch.commit().get(0);
+
+        // Three events of ten bytes each amount to more than the limit, though no one of them does
+        assertEquals(3, sized.size());
+        assertTrue(latest.isSnapshot());
+        assertEquals(4, latest.getVersion());
+        assertTrue(this.repo.getLatest(latest.getId()).orElseThrow().isSnapshot());
+    }
+
+    @Test
+    void onlyEventsThatAreFoldedAreReportedAsReplayed() throws Exception {
+        List<Integer> replayed = new ArrayList<>();
+        this.factory.setSnapshotPolicy(new SnapshotPolicy() {
+            @Override
+            public boolean requiresSnapshot(Event<?> event, AggregateRoot next) {
+                return false;
+            }
+
+            @Override
+            public void replayed(AggregateRoot latest, int events, long nanos) {
+                replayed.add(events);
+            }
+        });
+
+        EntityId id = this.factory.create(kernel("Ann")).getId();
+        this.repo.getLatest(id);
+        assertEquals(List.of(), replayed);
+
+        this.factory.setOwner(id, "Bob");
+        this.factory.setNumberOfBeds(id, 3);
+        assertEquals(3, this.repo.getLatest(id).orElseThrow().getVersion());
+        assertEquals(List.of(2), replayed.subList(replayed.size() - 1, replayed.size()));
+    }
+}
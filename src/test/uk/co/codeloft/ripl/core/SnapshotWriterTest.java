@@ -0,0 +1,72 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHome;
+import uk.co.codeloft.ripl.example.holidayhome.HolidayHomeFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.codeloft.ripl.core.HolidayHomeFixtures.*;
+
+class SnapshotWriterTest {
+
+    /**
+     * Takes a while to store each snapshot, and records whether it was interrupted while doing so
+     */
+    private static class SlowRepository extends InMemoryAggregateRootRepository<HolidayHome> {
+
+        private final List<EntityId> stored = new CopyOnWriteArrayList<>();
+
+        private volatile boolean interrupted;
+
+        @Override
+        public void storeSnapshot(HolidayHome snapshot) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                this.interrupted = true;
+            }
+            super.storeSnapshot(snapshot);
+            this.stored.add(snapshot.getId());
+        }
+    }
+
+    private final SlowRepository repo = new SlowRepository();
+
+    private final HolidayHomeFactory factory = factory(this.repo);
+
+    @Test
+    void closingStoresEverySnapshotWithoutInterruptingTheWriter() throws Exception {
+        List<HolidayHome> homes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            homes.add(this.factory.create(kernel("Owner " + i)));
+        }
+        int storedBefore = this.repo.stored.size();
+
+        SnapshotWriter<HolidayHome> writer = new SnapshotWriter<>(this.repo);
+        homes.forEach(writer::submit);
+
+        writer.close();
+
+        assertEquals(5 + storedBefore, this.repo.stored.size());
+        assertFalse(this.repo.interrupted);
+        assertEquals(0, writer.getDropped());
+    }
+
+    @Test
+    void snapshotsSubmittedAfterClosingAreDropped() throws Exception {
+        SnapshotWriter<HolidayHome> writer = new SnapshotWriter<>(this.repo);
+        HolidayHome home = this.factory.create(kernel("Ann"));
+        int storedBefore = this.repo.stored.size();
+
+        writer.close();
+        writer.submit(home);
+        writer.close();
+
+        assertEquals(storedBefore, this.repo.stored.size());
+        assertEquals(1, writer.getDropped());
+    }
+}
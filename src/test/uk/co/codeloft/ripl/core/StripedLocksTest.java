@@ -0,0 +1,35 @@
+package uk.co.codeloft.ripl.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripedLocksTest {
+
+    @Test
+    void aKeyIsHeldByOneThreadAtATime() throws Exception {
+        StripedLocks locks = new StripedLocks(16);
+        EntityId key = new EntityId(1L, 2L);
+        CountDownLatch acquired = new CountDownLatch(1);
+
+        Thread other;
+        try (StripedLocks.Held held = locks.acquire(key)) {
+            // The lock is re-entrant
+            locks.acquire(key).close();
+
+            other = new Thread(() -> {
+                try (StripedLocks.Held theirs = locks.acquire(key)) {
+                    acquired.countDown();
+                }
+            });
+            other.start();
+            assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        }
+
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        other.join();
+    }
+}